@@ -0,0 +1,57 @@
+package aggregation;
+
+import org.openjdk.jmh.annotations.*;
+import utilize.WeatherCodec;
+import utilize.WeatherData;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of maintaining the aggregates on apply, and of answering an aggregate query, with 1k and
+ * 100k stations: the query reads the maintained values, its time should not grow with the stations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AggregateBenchmark {
+    private static final String[] STATES = {"NSW", "VIC", "QLD", "SA", "WA", "TAS", "NT", "ACT"};
+
+    @Param({"1000", "100000"})
+    public int stations;
+
+    private StationAggregates aggregates;
+    private WeatherData[] updates;
+    private long lamport;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        aggregates = new StationAggregates();
+        for (int i = 0; i < stations; i++) {
+            aggregates.update("ST" + i, ++lamport, station(i, i % 400 / 10.0));
+        }
+        updates = new WeatherData[1024];
+        for (int i = 0; i < updates.length; i++) {
+            updates[i] = station(i, (i * 7) % 400 / 10.0);
+        }
+    }
+
+    private WeatherData station(int i, double temp) {
+        return WeatherCodec.decode("{\"id\":\"ST" + i + "\",\"state\":\"" + STATES[i % STATES.length] + "\",\"time_zone\":\"CST\","
+                + "\"air_temp\":\"" + temp + "\",\"press\":\"1023.9\",\"rel_hum\":\"" + (i % 100) + "\",\"wind_spd_kmh\":\"15\"}");
+    }
+
+    @Benchmark
+    public void update() {
+        WeatherData data = updates[next++ & (updates.length - 1)];
+        aggregates.update(data.id(), ++lamport, data);
+    }
+
+    @Benchmark
+    public byte[] queryByState() {
+        return aggregates.toJson(StationAggregates.STATE, null);
+    }
+}
@@ -0,0 +1,83 @@
+package aggregation;
+
+import org.openjdk.jmh.annotations.*;
+import utilize.WeatherData;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drain time of a burst of queued PUTs on a few hot stations, as after a partition heals: the burst
+ * is queued before the consumers start, then the time to apply (and log) all of it is measured.
+ * The applied and coalesced counters show how much apply and write-ahead log work coalescing saves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class CoalesceBenchmark {
+    private static final int UPDATES = 20_000;
+
+    @Param({"16", "1000"})
+    public int stations;
+
+    @Param({"true", "false"})
+    public boolean coalesce;
+
+    /**
+     * Work done per burst
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Work {
+        public long applied;
+        public long coalesced;
+    }
+
+    private WeatherData[] bodies;
+    private AggregationServer server;
+    private Path dir;
+    private int burst;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("coalesce");
+        bodies = new WeatherData[UPDATES];
+        for (int i = 0; i < UPDATES; i++) {
+            bodies[i] = new WeatherData.Builder()
+                    .putString("id", "IDS" + i % stations)
+                    .putString("state", "SA")
+                    .putString("air_temp", String.valueOf(i / stations))
+                    .build();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void queueBurst() throws IOException {
+        System.setProperty("aggregation.coalesce", String.valueOf(coalesce));
+        server = new AggregationServer(0, dir.resolve("data" + burst++ + ".json"));
+        System.clearProperty("aggregation.coalesce");
+        for (int i = 0; i < UPDATES; i++) {
+            server.enqueuePut("cs1", i, bodies[i]);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        server.stop();
+    }
+
+    @Benchmark
+    public void drainBurst(Work work) {
+        server.startConsumer();
+        while (server.getPendingCount() > 0) {
+            Thread.onSpinWait();
+        }
+        work.applied += server.getAppliedCount();
+        work.coalesced += server.getCoalescedCount();
+    }
+}
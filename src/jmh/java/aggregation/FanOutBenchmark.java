@@ -0,0 +1,52 @@
+package aggregation;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost for a consumer to hand one applied update to every subscriber of its station, with the
+ * subscribers parked on the station beforehand. Delivery is a no-op, so this is the hub alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class FanOutBenchmark {
+    @Param({"1000", "10000", "50000"})
+    public int subscribers;
+
+    private final byte[] json = "{\"id\":\"IDS60901\",\"air_temp\":13.3}".getBytes(StandardCharsets.UTF_8);
+    private SubscriptionHub<Integer> hub;
+    private Blackhole blackhole;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        hub = new SubscriptionHub<>(60_000, (connection, stations, version) -> this.blackhole.consume(connection));
+    }
+
+    @Setup(Level.Invocation)
+    public void park() {
+        List<String> station = List.of("IDS60901");
+        for (int i = 0; i < subscribers; i++) {
+            hub.subscribe(station, 0, i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        hub.close();
+    }
+
+    @Benchmark
+    public int publish() {
+        hub.publish("IDS60901", 1, json);
+        return hub.getWaiting();
+    }
+}
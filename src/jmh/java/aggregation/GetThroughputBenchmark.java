@@ -0,0 +1,104 @@
+package aggregation;
+
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+import utilize.WeatherCodec;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GET body production with 15 reader threads per writer thread. "serializePerGet" reproduces the former path
+ * (JsonObject.toString() on every GET), "preSerialized" reads the bytes published by the consumer.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetThroughputBenchmark {
+    private static final int STATIONS = 1000;
+
+    private AggregationServer server;
+    private final Map<String, JsonObject> trees = new ConcurrentHashMap<>();
+    private String[] ids;
+    private long timestamp;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        server = new AggregationServer(0, Files.createTempDirectory("get").resolve("data.json"));
+        server.startConsumer();
+
+        ids = new String[STATIONS];
+        for (int i = 0; i < STATIONS; i++) {
+            ids[i] = "IDS" + i;
+            JsonObject body = body(ids[i]);
+            trees.put(ids[i], body);
+            server.enqueuePut("cs1", ++timestamp, WeatherCodec.fromJson(body)).get();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.stop();
+    }
+
+    private static JsonObject body(String id) {
+        JsonObject body = new JsonObject();
+        body.addProperty("id", id);
+        body.addProperty("name", "Adelaide (West Terrace /  ngayirdapira)");
+        body.addProperty("state", "SA");
+        body.addProperty("time_zone", "CST");
+        body.addProperty("lat", "-34.9");
+        body.addProperty("lon", "138.6");
+        body.addProperty("local_date_time_full", "20230715160000");
+        body.addProperty("air_temp", String.valueOf(ThreadLocalRandom.current().nextInt(40)));
+        body.addProperty("press", "1023.9");
+        body.addProperty("rel_hum", "60");
+        body.addProperty("wind_spd_kmh", "15");
+        return body;
+    }
+
+    private String randomId() {
+        return ids[ThreadLocalRandom.current().nextInt(STATIONS)];
+    }
+
+    @Benchmark
+    @Group("serializePerGet")
+    @GroupThreads(15)
+    public void serializeRead(Blackhole bh) {
+        bh.consume(trees.get(randomId()).toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    @Group("serializePerGet")
+    @GroupThreads(1)
+    public void serializeWrite() {
+        String id = randomId();
+        trees.put(id, body(id));
+    }
+
+    @Benchmark
+    @Group("preSerialized")
+    @GroupThreads(15)
+    public void preSerializedRead(Blackhole bh) {
+        bh.consume(server.readStation(randomId()));
+    }
+
+    @Benchmark
+    @Group("preSerialized")
+    @GroupThreads(1)
+    public void preSerializedWrite() {
+        server.enqueuePut("cs1", ++timestamp, WeatherCodec.fromJson(body(randomId())));
+    }
+}
@@ -0,0 +1,47 @@
+package aggregation;
+
+import org.openjdk.jmh.annotations.*;
+import utilize.WeatherCodec;
+import utilize.WeatherData;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of keeping observation history: appending one observation to a full station ring (run with
+ * -prof gc, it should not allocate), and reading a range of it back as the history GET does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryBenchmark {
+    @Param({"256"})
+    public int capacity;
+
+    private StationHistory history;
+    private WeatherData data;
+    private long lamport;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        data = WeatherCodec.decode("{\"id\":\"IDS60901\",\"local_date_time_full\":\"20230715160000\",\"air_temp\":\"13.3\","
+                + "\"apparent_t\":\"9.5\",\"dewpt\":\"5.7\",\"press\":\"1023.9\",\"rel_hum\":\"60\",\"wind_spd_kmh\":\"15\"}");
+        history = new StationHistory("IDS60901", capacity);
+        for (int i = 0; i < capacity; i++) {
+            history.append(++lamport, data); // full ring: every measured append overwrites the oldest
+        }
+    }
+
+    @Benchmark
+    public boolean append() {
+        return history.append(++lamport, data);
+    }
+
+    @Benchmark
+    public byte[] rangeToJson() {
+        StationHistory.Range range = history.range(lamport - capacity / 4, lamport, false);
+        return StationHistory.toJson("IDS60901", range);
+    }
+}
@@ -0,0 +1,73 @@
+package aggregation;
+
+import org.openjdk.jmh.annotations.*;
+import utilize.WeatherData;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PUT apply throughput (updates per second, write-ahead log included) against the number of consumer lanes.
+ * Console logging is discarded so the synchronized PrintStream does not serialize the lanes.
+ * Every update carries a new reading and coalescing is off, so each one is logged and applied.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LaneScalingBenchmark {
+    private static final int STATIONS = 1000;
+    private static final int UPDATES = 10_000;
+
+    @Param({"1", "2", "4", "8"})
+    public int lanes;
+
+    private AggregationServer server;
+    private WeatherData[] bodies;
+    private Path dir;
+    private long timestamp;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        dir = Files.createTempDirectory("lanes");
+        System.setProperty("aggregation.lanes", String.valueOf(lanes));
+        System.setProperty("aggregation.coalesce", "false");
+        server = new AggregationServer(0, dir.resolve("data.json"));
+        System.clearProperty("aggregation.lanes");
+        System.clearProperty("aggregation.coalesce");
+        server.startConsumer();
+
+        bodies = new WeatherData[UPDATES];
+        for (int i = 0; i < UPDATES; i++) {
+            bodies[i] = new WeatherData.Builder()
+                    .putString("id", "IDS" + i % STATIONS)
+                    .putString("state", "SA")
+                    .putString("air_temp", String.valueOf(i / STATIONS))
+                    .build();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(UPDATES)
+    public void applyUpdates() throws InterruptedException {
+        long target = server.getAppliedCount() + UPDATES;
+        for (int i = 0; i < UPDATES; i++) {
+            server.enqueuePut("cs1", ++timestamp, bodies[i]);
+        }
+        while (server.getAppliedCount() < target) {
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package aggregation;
+
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+import utilize.WeatherCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold start: time for the constructor to restore the snapshot, which is what stands between a restart
+ * and the first accept, followed by one GET. Run with "-prof gc": gc.alloc.rate.norm is the heap
+ * allocated by the restore.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g", "-Daggregation.compactEvery=100000000"})
+public class RestoreBenchmark {
+    private static final int BATCH = 1000;
+
+    @Param({"json", "binary"})
+    public String format;
+
+    @Param({"100000", "500000"})
+    public int stations;
+
+    private Path snapshot;
+    private AggregationServer restored;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setProperty("aggregation.snapshotFormat", format);
+        System.setProperty("aggregation.ttlMillis", String.valueOf(TimeUnit.HOURS.toMillis(1)));
+        snapshot = Files.createTempDirectory("restore").resolve("data.json");
+
+        AggregationServer server = new AggregationServer(0, snapshot);
+        server.startConsumer();
+        long timestamp = 0;
+        for (int from = 0; from < stations; from += BATCH) {
+            List<JsonObject> bodies = new ArrayList<>();
+            for (int i = from; i < Math.min(stations, from + BATCH); i++) {
+                bodies.add(body("IDS" + i));
+            }
+            server.enqueueBatch("cs1", ++timestamp, bodies.stream().map(WeatherCodec::fromJson).toList()).get();
+        }
+        server.stop();
+        // Reopening folds the write-ahead log into the snapshot, the measured restores only read the snapshot
+        new AggregationServer(0, snapshot).stop();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.clearProperty("aggregation.snapshotFormat");
+        System.clearProperty("aggregation.ttlMillis");
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() throws IOException {
+        restored.stop();
+    }
+
+    private static JsonObject body(String id) {
+        JsonObject body = new JsonObject();
+        body.addProperty("id", id);
+        body.addProperty("name", "Adelaide (West Terrace /  ngayirdapira)");
+        body.addProperty("state", "SA");
+        body.addProperty("time_zone", "CST");
+        body.addProperty("lat", "-34.9");
+        body.addProperty("lon", "138.6");
+        body.addProperty("local_date_time_full", "20230715160000");
+        body.addProperty("air_temp", "13.3");
+        body.addProperty("press", "1023.9");
+        body.addProperty("rel_hum", "60");
+        body.addProperty("wind_spd_kmh", "15");
+        return body;
+    }
+
+    @Benchmark
+    public byte[] restoreAndFirstGet() {
+        restored = new AggregationServer(0, snapshot);
+        return restored.readStation("IDS0");
+    }
+}
@@ -0,0 +1,77 @@
+package aggregation;
+
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+import utilize.WeatherCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to write the whole snapshot file (serialize, write, fsync, atomic rename) for a number of stations.
+ * This is the pause a compaction puts on every consumer lane.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotBenchmark {
+    private static final int BATCH = 1000;
+
+    @Param({"1000", "10000", "100000"})
+    public int stations;
+
+    private AggregationServer server;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        // Stations must not expire while the benchmark runs
+        System.setProperty("aggregation.ttlMillis", String.valueOf(TimeUnit.HOURS.toMillis(1)));
+        server = new AggregationServer(0, Files.createTempDirectory("snapshot").resolve("data.json"));
+        System.clearProperty("aggregation.ttlMillis");
+        server.startConsumer();
+
+        long timestamp = 0;
+        for (int from = 0; from < stations; from += BATCH) {
+            List<JsonObject> bodies = new ArrayList<>();
+            for (int i = from; i < Math.min(stations, from + BATCH); i++) {
+                bodies.add(body("IDS" + i));
+            }
+            server.enqueueBatch("cs1", ++timestamp, bodies.stream().map(WeatherCodec::fromJson).toList()).get();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.stop();
+    }
+
+    private static JsonObject body(String id) {
+        JsonObject body = new JsonObject();
+        body.addProperty("id", id);
+        body.addProperty("name", "Adelaide (West Terrace /  ngayirdapira)");
+        body.addProperty("state", "SA");
+        body.addProperty("time_zone", "CST");
+        body.addProperty("lat", "-34.9");
+        body.addProperty("lon", "138.6");
+        body.addProperty("local_date_time_full", "20230715160000");
+        body.addProperty("air_temp", "13.3");
+        body.addProperty("press", "1023.9");
+        body.addProperty("rel_hum", "60");
+        body.addProperty("wind_spd_kmh", "15");
+        return body;
+    }
+
+    @Benchmark
+    public void persistSnapshot() {
+        server.persistSnapshot();
+    }
+}
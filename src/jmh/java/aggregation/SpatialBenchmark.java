@@ -0,0 +1,84 @@
+package aggregation;
+
+import org.openjdk.jmh.annotations.*;
+import utilize.Geo;
+import utilize.WeatherCodec;
+import utilize.WeatherData;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nearest and bounding-box queries on the spatial grid with 300k stations spread over the globe,
+ * against the full scan they replace, and the cost of moving a station in the grid on apply.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpatialBenchmark {
+    @Param({"300000"})
+    public int stations;
+
+    private StationGrid grid;
+    private double[] lats;
+    private double[] lons;
+    private WeatherData[] moves;
+    private long lamport;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(1);
+        grid = new StationGrid(1);
+        lats = new double[stations];
+        lons = new double[stations];
+        for (int i = 0; i < stations; i++) {
+            lats[i] = Math.toDegrees(Math.asin(2 * random.nextDouble() - 1)); // uniform over the sphere
+            lons[i] = random.nextDouble() * 360 - 180;
+            grid.update("ST" + i, ++lamport, station(i, lats[i], lons[i]));
+        }
+        moves = new WeatherData[1024];
+        for (int i = 0; i < moves.length; i++) {
+            int j = i % 512; // every station moves away, then back
+            moves[i] = station(j, lats[j] + (i < 512 ? 0.5 : 0), lons[j]);
+        }
+    }
+
+    private static WeatherData station(int i, double lat, double lon) {
+        return WeatherCodec.decode("{\"id\":\"ST" + i + "\",\"lat\":" + lat + ",\"lon\":" + lon + ",\"air_temp\":13.3}");
+    }
+
+    @Benchmark
+    public List<String> nearest10() {
+        return grid.nearest(-34.9, 138.6, 10);
+    }
+
+    @Benchmark
+    public List<String> box2x2() {
+        return grid.inBox(-36, 137, -34, 139);
+    }
+
+    @Benchmark
+    public int scanNearest() {
+        int closest = -1;
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < stations; i++) {
+            double angle = Geo.angle(-34.9, 138.6, lats[i], lons[i]);
+            if (angle < best) {
+                best = angle;
+                closest = i;
+            }
+        }
+        return closest;
+    }
+
+    @Benchmark
+    public void update() {
+        WeatherData data = moves[next++ & (moves.length - 1)];
+        grid.update(data.id(), ++lamport, data);
+    }
+}
@@ -0,0 +1,75 @@
+package benchmark;
+
+import aggregation.AggregationServer;
+import client.GETClient;
+import content.ContentServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full request path in one process: a content server PUT (acknowledged once logged and applied)
+ * and a GET client read, both over persistent connections to an aggregation server on localhost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+    private AggregationServer server;
+    private String address;
+    private ContentServer content;
+    private GETClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        address = "localhost:" + port;
+
+        System.setProperty("aggregation.frontend", "virtual");
+        System.setProperty("aggregation.syncPut", "true");
+        server = new AggregationServer(port, Files.createTempDirectory("e2e").resolve("data.json"));
+        System.clearProperty("aggregation.frontend");
+        System.clearProperty("aggregation.syncPut");
+        new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }).start();
+        Thread.sleep(300);
+
+        content = new ContentServer("src/main/java/content/weather_1.txt");
+        client = new GETClient();
+        content.sendPUT(address);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.stop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int put() throws IOException {
+        return content.sendPUT(address);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String get() throws Exception {
+        return client.sendGET(address, "IDS60901");
+    }
+}
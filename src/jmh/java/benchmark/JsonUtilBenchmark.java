@@ -0,0 +1,86 @@
+package benchmark;
+
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+import utilize.JsonUtil;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JsonUtil conversions on one station record: reading the content server text format,
+ * building a JsonObject from a map or from a JSON string, and serializing it back.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonUtilBenchmark {
+    private Path textFile;
+    private Map<String, String> map;
+    private String json;
+    private JsonObject tree;
+
+    @Setup
+    public void setUp() throws Exception {
+        map = new LinkedHashMap<>();
+        map.put("id", "IDS60901");
+        map.put("name", "Adelaide (West Terrace /  ngayirdapira)");
+        map.put("state", "SA");
+        map.put("time_zone", "CST");
+        map.put("lat", "-34.9");
+        map.put("lon", "138.6");
+        map.put("local_date_time", "15/04:00pm");
+        map.put("local_date_time_full", "20230715160000");
+        map.put("air_temp", "13.3");
+        map.put("apparent_t", "9.5");
+        map.put("cloud", "Partly cloudy");
+        map.put("dewpt", "5.7");
+        map.put("press", "1023.9");
+        map.put("rel_hum", "60");
+        map.put("wind_dir", "S");
+        map.put("wind_spd_kmh", "15");
+        map.put("wind_spd_kt", "8");
+
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            text.append(entry.getKey()).append(':').append(entry.getValue()).append('\n');
+        }
+        textFile = Files.createTempFile("weather", ".txt");
+        Files.writeString(textFile, text);
+
+        tree = JsonUtil.toJsonObj(map);
+        json = JsonUtil.serialize(tree);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(textFile);
+    }
+
+    @Benchmark
+    public JsonObject fromText() throws Exception {
+        return JsonUtil.fromText(textFile.toString());
+    }
+
+    @Benchmark
+    public JsonObject toJsonObjFromMap() throws Exception {
+        return JsonUtil.toJsonObj(map);
+    }
+
+    @Benchmark
+    public JsonObject toJsonObjFromString() throws Exception {
+        return JsonUtil.toJsonObj(json);
+    }
+
+    @Benchmark
+    public String serialize() {
+        return JsonUtil.serialize(tree);
+    }
+}
@@ -0,0 +1,45 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import utilize.LamportClock;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LamportClock.onReceive on one shared clock, alone and with 8 threads merging timestamps at once
+ * (every connection thread and consumer lane of the server goes through the same clock).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LamportClockBenchmark {
+    private final LamportClock clock = new LamportClock();
+
+    private long timestamp() {
+        // Received timestamps are sometimes ahead of the local clock, sometimes behind it
+        return clock.get() + ThreadLocalRandom.current().nextInt(-2, 3);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long onReceiveUncontended() {
+        return clock.onReceive(timestamp());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long onReceiveContended() {
+        return clock.onReceive(timestamp());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long onSendContended() {
+        return clock.onSend();
+    }
+}
@@ -0,0 +1,68 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import utilize.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the four per-request log lines of a PUT for 8 request threads at once.
+ * "println" is the former path: System.out.println on an autoflushing console stream (here /dev/null),
+ * serialized by the PrintStream lock. "asyncDebugOff" is the default configuration (per-request lines
+ * disabled), "asyncDebugOn" enqueues every line for the background writer.
+ * Lines dropped because the writer could not keep up are printed at tear down.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class LoggingBenchmark {
+    private PrintStream console;
+    private long lamport = 42;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkParams params) throws IOException {
+        Log.setLevel(params.getBenchmark().endsWith("asyncDebugOn") ? Log.Level.DEBUG : Log.Level.INFO);
+        console = new PrintStream(new BufferedOutputStream(new FileOutputStream("/dev/null")), true);
+        Log.setSink(console::print);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.err.println("[LoggingBenchmark] dropped lines: " + Log.getDropped());
+        console.close();
+    }
+
+    @Benchmark
+    public void println() {
+        console.println("PUT");
+        console.println("[Info] Current local Lamport = " + lamport);
+        console.println("[Info] Request from: cs42 with external Lamport = " + lamport);
+        console.println("[Respond] Send response (Lamport = " + lamport + ")");
+    }
+
+    @Benchmark
+    public void asyncDebugOff() {
+        logRequest();
+    }
+
+    @Benchmark
+    public void asyncDebugOn() {
+        logRequest();
+    }
+
+    private void logRequest() {
+        Log.debug("PUT");
+        Log.debug(() -> "[Info] Current local Lamport = " + lamport);
+        Log.debug(() -> "[Info] Request from: cs42 with external Lamport = " + lamport);
+        Log.debug(() -> "[Respond] Send response (Lamport = " + lamport + ")");
+    }
+}
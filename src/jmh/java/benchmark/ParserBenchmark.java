@@ -0,0 +1,83 @@
+package benchmark;
+
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import utilize.HttpRequestParser;
+import utilize.ReqResParser;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse one PUT request with the String/regex ReqResParser path and with the byte-level HttpRequestParser.
+ * Run with "-prof gc" to compare allocations per request (gc.alloc.rate.norm).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    private byte[] request;
+    private String head;
+    private String body;
+    private ByteBuffer buf;
+    private HttpRequestParser parser;
+
+    @Setup
+    public void setUp() {
+        body = "{\"id\":\"IDS60901\",\"name\":\"Adelaide (West Terrace /  ngayirdapira)\",\"state\":\"SA\"," +
+                "\"time_zone\":\"CST\",\"lat\":\"-34.9\",\"lon\":\"138.6\",\"local_date_time\":\"15/04:00pm\"," +
+                "\"local_date_time_full\":\"20230715160000\",\"air_temp\":\"13.3\",\"apparent_t\":\"9.5\"," +
+                "\"cloud\":\"Partly cloudy\",\"dewpt\":\"5.7\",\"press\":\"1023.9\",\"rel_hum\":\"60\"," +
+                "\"wind_dir\":\"S\",\"wind_spd_kmh\":\"15\",\"wind_spd_kt\":\"8\"}";
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        head = "PUT /weather.json HTTP/1.1\r\n" +
+                "User-Agent: ATOMClient/1/0\r\n" +
+                "ServerId: cs42\r\n" +
+                "LamportClock: 12345\r\n" +
+                "Connection: keep-alive\r\n" +
+                "Content-Type: application/json\r\n" +
+                "Content-Length: " + bodyBytes.length + "\r\n" +
+                "\r\n";
+        request = (head + body).getBytes(StandardCharsets.UTF_8);
+        buf = ByteBuffer.wrap(request);
+        parser = new HttpRequestParser();
+    }
+
+    @Benchmark
+    public void reqResParser(Blackhole bh) throws Exception {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(request)));
+        String[] parts = ReqResParser.splitHeaderAndBodyFromRequest(in);
+        ReqResParser.Header header = ReqResParser.readHeader(parts[0]);
+        bh.consume(Long.parseLong(header.metadata().get("LamportClock")));
+        bh.consume(header.metadata().get("ServerId"));
+        bh.consume(parts[1]);
+    }
+
+    @Benchmark
+    public ReqResParser.Header reqResParserHeader() {
+        return ReqResParser.readHeader(head);
+    }
+
+    @Benchmark
+    public JsonObject reqResParserBody() throws Exception {
+        return ReqResParser.readBody(body);
+    }
+
+    @Benchmark
+    public void httpRequestParser(Blackhole bh) {
+        buf.clear();
+        parser.reset();
+        parser.parse(buf);
+        bh.consume(parser.lamportClock());
+        bh.consume(parser.serverId());
+        bh.consume(parser.bodyAsString());
+    }
+}
@@ -0,0 +1,58 @@
+package benchmark;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.annotations.*;
+import utilize.WeatherCodec;
+import utilize.WeatherData;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One station record decoded and encoded as a Gson JsonObject tree against the streaming
+ * WeatherCodec. Run with -prof gc to compare the allocation per request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WeatherCodecBenchmark {
+    private static final String JSON = "{\"id\":\"IDS60901\",\"name\":\"Adelaide (West Terrace /  ngayirdapira)\"," +
+            "\"state\":\"SA\",\"time_zone\":\"CST\",\"lat\":\"-34.9\",\"lon\":\"138.6\",\"local_date_time\":\"15/04:00pm\"," +
+            "\"local_date_time_full\":\"20230715160000\",\"air_temp\":\"13.3\",\"apparent_t\":\"9.5\",\"cloud\":\"Partly cloudy\"," +
+            "\"dewpt\":\"5.7\",\"press\":\"1023.9\",\"rel_hum\":\"60\",\"wind_dir\":\"S\",\"wind_spd_kmh\":\"15\",\"wind_spd_kt\":\"8\"}";
+
+    private byte[] bytes;
+    private JsonObject tree;
+    private WeatherData data;
+
+    @Setup
+    public void setUp() {
+        bytes = JSON.getBytes(StandardCharsets.UTF_8);
+        tree = JsonParser.parseString(JSON).getAsJsonObject();
+        data = WeatherCodec.decode(JSON);
+    }
+
+    @Benchmark
+    public JsonObject decodeTree() {
+        return JsonParser.parseString(new String(bytes, StandardCharsets.UTF_8)).getAsJsonObject();
+    }
+
+    @Benchmark
+    public WeatherData decodeTyped() {
+        return WeatherCodec.decode(bytes, 0, bytes.length);
+    }
+
+    @Benchmark
+    public byte[] encodeTree() {
+        return tree.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeTyped() {
+        return WeatherCodec.encode(data);
+    }
+}
@@ -1,45 +1,205 @@
 package aggregation;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import utilize.HashRing;
+import utilize.HttpRequestParser;
+import utilize.HybridLogicalClock;
 import utilize.LamportClock;
-import utilize.JsonUtil;
-import utilize.ReqResParser;
-import utilize.ReqResParser.Header;
+import utilize.LogicalClock;
+import utilize.Log;
+import utilize.WeatherCodec;
+import utilize.WeatherData;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
-public class AggregationServer {
-    private record Request(String type, JsonObject header, JsonObject body, long lamport) {}
-    private record WeatherRecord(JsonObject data, long lamport) {}
+public final class AggregationServer {
+    // applied: completed with the version the station holds once the update was processed, its own Lamport value if it was applied
+    private record Request(String type, String serverId, WeatherData body, long lamport, long sent, long base, CompletableFuture<Long> applied, long enqueuedAt) {}
+    /**
+     * Immutable stored version of a station. The GET response body is serialized once, when the
+     * update is applied, and the whole record is swapped atomically, so readers never see a partial update.
+     * A record restored from a binary snapshot only keeps its offset in the mapped file: the body is
+     * copied on first read and decoded only if the fields are needed.
+     */
+    private static final class WeatherRecord {
+        final long lamport;
+        final String serverId; // tie-breaker between updates with the same Lamport value, null if unknown
+        final long sent; // LamportClock the content server sent it with, -1 if unknown (restored, replicated, handed over)
+        private final SnapshotFile source;
+        private final int offset;
+        private volatile WeatherData data;
+        private volatile byte[] json;
+
+        WeatherRecord(WeatherData data, long lamport, String serverId) {
+            this(data, WeatherCodec.encode(data), lamport, serverId);
+        }
+
+        WeatherRecord(WeatherData data, byte[] json, long lamport, String serverId) {
+            this(data, json, lamport, serverId, -1);
+        }
+
+        WeatherRecord(WeatherData data, byte[] json, long lamport, String serverId, long sent) {
+            this.data = data;
+            this.json = json;
+            this.lamport = lamport;
+            this.serverId = serverId;
+            this.sent = sent;
+            this.source = null;
+            this.offset = 0;
+        }
+
+        WeatherRecord(byte[] json, long lamport, String serverId) {
+            this(null, json, lamport, serverId); // fields decoded on first use, like a mapped snapshot
+        }
+
+        WeatherRecord(SnapshotFile source, int offset, long lamport) {
+            this.lamport = lamport;
+            this.serverId = null;
+            this.sent = -1;
+            this.source = source;
+            this.offset = offset;
+        }
+
+        /**
+         * Last-writer-wins order of versions: Lamport value first, then ServerId
+         * @return negative, zero or positive as this version is older than, equal to or newer than the other
+         */
+        int compareVersion(long otherLamport, String otherServerId) {
+            int order = Long.compare(lamport, otherLamport);
+            if (order != 0) return order;
+            return (serverId == null ? "" : serverId).compareTo(otherServerId == null ? "" : otherServerId);
+        }
+
+        /**
+         * Whether the same content server sent this version no earlier than another update. Requests
+         * of one sender can reach the server out of order and be stamped out of order, its own clock
+         * still tells which one it sent last.
+         */
+        boolean supersedes(String otherServerId, long otherSent) {
+            return sent >= 0 && otherSent >= 0 && serverId != null && serverId.equals(otherServerId) && sent >= otherSent;
+        }
+
+        byte[] json() {
+            byte[] bytes = json;
+            if (bytes == null) {
+                bytes = source.readJson(offset);
+                json = bytes;
+            }
+            return bytes;
+        }
+
+        WeatherData data() {
+            WeatherData fields = data;
+            if (fields == null) {
+                byte[] bytes = json();
+                fields = WeatherCodec.decode(bytes, 0, bytes.length);
+                data = fields;
+            }
+            return fields;
+        }
+    }
     private record WeatherSnapshot(WeatherRecord record, long counter) {}
 
+    private static final int COMMIT_BATCH = Integer.getInteger("aggregation.commitBatch", 256);
+    private static final int COMPACT_EVERY = Integer.getInteger("aggregation.compactEvery", 1000);
+    private static final int POOL_SIZE = Integer.getInteger("aggregation.poolSize", 4);
+    private static final int ACCEPT_BACKLOG = Integer.getInteger("aggregation.backlog", 4096);
+    private static final int KEEP_ALIVE_MILLIS = Integer.getInteger("aggregation.keepAliveMillis", 30_000);
+    private static final long REBALANCE_MILLIS = 1000;
+    private static final String BATCH_PATH = "/weather/batch.json";
+    private static final String METRICS_PATH = "/metrics";
+    private static final String SUBSCRIBE_PATH = "/weather/subscribe";
+    private static final String HISTORY_PATH = "/weather/history.json";
+    private static final String AGGREGATE_PATH = "/weather/aggregate.json";
+    private static final String NEAREST_PATH = "/weather/nearest.json";
+    private static final String BOX_PATH = "/weather/box.json";
+    private static final int MAX_NEAREST = 1000;
+    private static final String REPLICATION_PATH = ReplicaFollower.STREAM_PATH;
+    private static final String DELTA = "DELTA"; // request type of a PUT carrying only the changed fields
+    private static final String HANDOFF = "HANDOFF"; // request type of a station handed over by its previous owner
+    private static final long CONNECTION_CLOSED = Long.MIN_VALUE; // System.nanoTime() may be negative
+    private static final Comparator<Request> LAMPORT_ORDER = Comparator.comparingLong((Request a) -> a.lamport)
+                                                                      .thenComparing(a -> a.body.id());
+    // Which of two queued updates of a station is newer: the sender's own clock between updates of
+    // one content server, they may have been stamped out of order, the Lamport stamp otherwise
+    private static final Comparator<Request> VERSION_ORDER = (a, b) ->
+            a.sent >= 0 && b.sent >= 0 && a.sent != b.sent && a.serverId != null && a.serverId.equals(b.serverId)
+                    ? Long.compare(a.sent, b.sent)
+                    : LAMPORT_ORDER.compare(a, b);
+
     private int port;
-    private LamportClock clock;
+    private final String frontend;
+    private final int maxPending;
+    private final boolean syncPut;
+    private final boolean coalesce;
+    private final int retryAfterSeconds;
+    private final AtomicInteger pending = new AtomicInteger();
+    private LogicalClock clock;
     private final Path snapshotPath;
-    private PriorityBlockingQueue<Request> requestQueue;
+    private final Path binarySnapshotPath;
+    private final boolean binarySnapshot;
+    private final Path walPath;
+    private WriteAheadLog wal;
+    private final PriorityBlockingQueue<Request>[] lanes;
+    private final Map<String, Request> newestPending = new ConcurrentHashMap<>(); // per station, when coalescing
+    private final List<Thread> consumers = new ArrayList<>();
+    private final ReentrantReadWriteLock applyLock = new ReentrantReadWriteLock();
+    private final AtomicLong appliedCount = new AtomicLong();
     private Map<String, WeatherRecord> storage = new ConcurrentHashMap<>();
     private volatile boolean running = true;
     private ServerSocket serverSocket;
-    private Map<String, Long> lastUpdate = new ConcurrentHashMap<>();
+    private final ExpiryWheel expiry;
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong staleCount = new AtomicLong();
+    private final AtomicLong unchangedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong deltasReceived = new AtomicLong();
+    private final AtomicLong deltasRejected = new AtomicLong();
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final SubscriptionHub<Connection> subscriptions;
+    private volatile ExecutorService connections; // runs the connections, set by start()
+    private final ReplicationLog replication;
+    private final ReplicaFollower follower; // null on a primary
+    private final Set<Connection> replicaStreams = ConcurrentHashMap.newKeySet();
+    private final HistoryStore history; // null when aggregation.historySize is 0
+    private final StationAggregates aggregates; // null when aggregation.aggregates is false
+    private final StationGrid grid;
+    private final Object indexLock = new Object();
+    private volatile boolean indexed = true; // false until the restored stations are in the aggregates and the grid
+    private final Cluster cluster; // null unless the stations are sharded across several servers
+    private final Object rebalanceLock = new Object();
+    private volatile boolean rebalanceNeeded = true; // some stations held here may belong to another node
+    private final AtomicLong misroutedCount = new AtomicLong();
+    private final AtomicLong handedOffCount = new AtomicLong();
+    private final AtomicLong takenOverCount = new AtomicLong();
 
 
 
     public static void main(String[] args) throws Exception {
-        int port = 4567;
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 4567;
         Path snapshotPath = Path.of("data.json");
         AggregationServer server = new AggregationServer(port, snapshotPath);
         server.start();
@@ -48,12 +208,78 @@ public class AggregationServer {
 
     public AggregationServer(int port, Path snapshotPath){
         this.port = port;
+        this.frontend = System.getProperty("aggregation.frontend", "virtual");
+        this.maxPending = Integer.getInteger("aggregation.maxPending", 100_000);
+        this.syncPut = Boolean.getBoolean("aggregation.syncPut");
+        this.coalesce = Boolean.parseBoolean(System.getProperty("aggregation.coalesce", "true"));
+        this.retryAfterSeconds = Integer.getInteger("aggregation.retryAfterSeconds", 1);
+        this.expiry = new ExpiryWheel(Long.getLong("aggregation.ttlMillis", 30_000),
+                                      Long.getLong("aggregation.expiryTickMillis", 1_000),
+                                      System.currentTimeMillis());
         this.snapshotPath = snapshotPath;
-        this.clock = new LamportClock();
-        this.requestQueue = new PriorityBlockingQueue<>(1024,
-                                Comparator.comparingLong((Request a) -> a.lamport)
-                                .thenComparing(a -> a.body.get("id").toString()));
+        this.binarySnapshotPath = snapshotPath.resolveSibling(snapshotPath.getFileName().toString() + ".bin");
+        this.binarySnapshot = System.getProperty("aggregation.snapshotFormat", "json").equals("binary");
+        this.walPath = snapshotPath.resolveSibling(snapshotPath.getFileName().toString() + ".wal");
+        this.clock = System.getProperty("aggregation.clock", "lamport").equals("hlc")
+                ? new HybridLogicalClock(Long.getLong("aggregation.maxDriftMillis", 10_000))
+                : new LamportClock();
+        this.subscriptions = new SubscriptionHub<>(Long.getLong("aggregation.longPollMillis", 25_000), this::deliver);
+        int laneCount = Integer.getInteger("aggregation.lanes", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        this.lanes = newLanes(laneCount);
+        this.replication = new ReplicationLog(System.currentTimeMillis(), Integer.getInteger("aggregation.replicationLogSize", 65_536));
+        String primary = System.getProperty("aggregation.replicaOf");
+        String members = System.getProperty("aggregation.cluster");
+        // A replica serves whatever its primary owns, only primaries take part in the ring
+        this.cluster = members == null || primary != null ? null
+                : new Cluster(System.getProperty("aggregation.clusterSelf", "localhost:" + port), HashRing.parse(members), clock);
+        int historySize = Integer.getInteger("aggregation.historySize", 256);
+        Path historyPath = snapshotPath.resolveSibling(snapshotPath.getFileName().toString() + ".history");
+        this.history = historySize <= 0 ? null : new HistoryStore(primary != null ? null : historyPath, historySize);
+        this.aggregates = Boolean.parseBoolean(System.getProperty("aggregation.aggregates", "true")) ? new StationAggregates(laneCount) : null;
+        this.grid = new StationGrid(Double.parseDouble(System.getProperty("aggregation.gridCellDegrees", "1")));
+        if (primary != null) {
+            // A replica holds no state of its own: the primary streams it a snapshot, then every update
+            this.follower = new ReplicaFollower(primary, new ReplicaFollower.Applier() {
+                @Override
+                public void apply(WriteAheadLog.Entry entry, boolean snapshot) {
+                    applyReplicated(entry, snapshot);
+                }
+
+                @Override
+                public void retain(Set<String> stationIds) {
+                    retainReplicated(stationIds);
+                }
+            }, clock::onSend);
+            return;
+        }
+        this.follower = null;
+        if (history != null) {
+            try {
+                history.load();
+            } catch (IOException e) {
+                Log.error("Load history log failed, histories are kept in memory only: " + e.getMessage());
+            }
+        }
         restoreSnapshotIfPresent();
+        if (history != null) {
+            history.retain(storage.keySet()); // stations expired or handed over since they were logged
+            history.flush();
+        }
+        // Indexing decodes every station: left to the first aggregate or spatial query, so a restore stays lazy
+        this.indexed = storage.isEmpty();
+        try {
+            this.wal = new WriteAheadLog(walPath);
+        } catch (IOException e) {
+            Log.error("Open write-ahead log failed, fall back to full snapshots: " + e.getMessage());
+            return;
+        }
+        try {
+            if (Files.size(walPath) > 0) {
+                wal.compact(this::writeSnapshot); // fold the replayed tail into the snapshot, nothing runs concurrently yet
+            }
+        } catch (IOException e) {
+            Log.error("Compact write-ahead log failed, the log is kept for the next restart: " + e.getMessage());
+        }
     }
 
     public long getLocalLamport() {
@@ -64,33 +290,107 @@ public class AggregationServer {
         return storage.containsKey(stationId);
     }
 
+    /**
+     * Number of PUT updates applied to storage since the server started
+     * @return count
+     */
+    public long getAppliedCount() {
+        return appliedCount.get();
+    }
+
+    /**
+     * Updates accepted but not applied yet, over all lanes
+     * @return count
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Pending updates per consumer lane
+     * @return queue depth of every lane
+     */
+    public int[] getLaneDepths() {
+        int[] depths = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            depths[i] = lanes[i].size();
+        }
+        return depths;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+    private static PriorityBlockingQueue<Request>[] newLanes(int count) {
+        PriorityBlockingQueue<Request>[] lanes = new PriorityBlockingQueue[count];
+        for (int i = 0; i < count; i++) {
+            lanes[i] = new PriorityBlockingQueue<>(1024, LAMPORT_ORDER);
+        }
+        return lanes;
+    }
+
+    /**
+     * Lamport order only matters per station, so every station is pinned to one lane
+     * @param stationId (String)
+     * @return lane queue
+     */
+    private PriorityBlockingQueue<Request> laneOf(String stationId) {
+        return lanes[Math.floorMod(stationId.hashCode(), lanes.length)];
+    }
+
     /**
      * Start server
      * @throws IOException
      */
     public void start() throws IOException {
-        startConsumer();
+        if (!running) return; // stopped before it was started
 
-        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-        scheduler.scheduleAtFixedRate(this::removeExpired, 10, 10, TimeUnit.SECONDS);
+        // Handoffs wait for other nodes, so they get a thread of their own and never delay expiry
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(cluster == null ? 1 : 2);
+        if (follower != null) {
+            follower.start(); // updates and expiry both come from the primary
+        } else {
+            startConsumer();
+            long tick = expiry.getTickMillis();
+            scheduler.scheduleAtFixedRate(this::removeExpired, tick, tick, TimeUnit.MILLISECONDS);
+        }
+        if (cluster != null) {
+            scheduler.execute(this::announceMembership);
+            scheduler.scheduleWithFixedDelay(this::rebalanceIfNeeded, REBALANCE_MILLIS, REBALANCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
 
 
-        ExecutorService pool = Executors.newFixedThreadPool(4);
-        this.serverSocket = new ServerSocket(this.port);
+        ExecutorService pool = newConnectionExecutor();
+        this.connections = pool;
+        this.serverSocket = new ServerSocket(this.port, ACCEPT_BACKLOG);
         try {
-            System.out.println("Server listening on port " + this.port);
+            Log.info("Server listening on port " + this.port + " (" + this.frontend + " front end)");
 
             while (running) {
                 try {
                     Socket clientSocket = this.serverSocket.accept(); // waits for client
-                    pool.submit(() -> handleClient(clientSocket));
+                    long acceptedAt = System.nanoTime();
+                    pool.submit(() -> handleClient(clientSocket, acceptedAt));
                 } catch (IOException e) {
                     if (!running) break;
                 }
             }
         } finally {
             pool.shutdown();
+            scheduler.shutdown();
+            this.serverSocket.close();
+        }
+    }
+
+    /**
+     * Create the executor that serves accepted connections.
+     * "virtual" (the default) runs one virtual thread per connection so idle or slow clients park
+     * cheaply instead of holding a pool thread, "pool" is a fixed pool of platform threads.
+     * @return ExecutorService
+     */
+    private ExecutorService newConnectionExecutor() {
+        if (this.frontend.equals("virtual")) {
+            return Executors.newVirtualThreadPerTaskExecutor();
         }
+        return Executors.newFixedThreadPool(POOL_SIZE);
     }
 
     /**
@@ -102,226 +402,1808 @@ public class AggregationServer {
         if (serverSocket != null && !serverSocket.isClosed()) {
             serverSocket.close(); // will break out of accept()
         }
+        synchronized (consumers) {
+            for (Thread consumer : consumers) {
+                consumer.interrupt();
+            }
+        }
+        for (Connection connection : subscriptions.close()) {
+            connection.close();
+        }
+        for (Connection connection : replicaStreams) {
+            connection.close();
+        }
+        if (follower != null) {
+            follower.stop();
+        }
+        if (cluster != null) {
+            cluster.close();
+        }
+        if (history != null) {
+            history.close();
+        }
+        if (wal != null) {
+            wal.close();
+        }
     }
 
     /**
-     * Start Consumer
+     * Start one consumer thread per lane. Each lane applies its stations in Lamport order,
+     * different lanes apply in parallel.
      */
     public void startConsumer() {
-        Thread t = new Thread(() -> {
-            while (true) {
-                try {
-                    Request request = this.requestQueue.take(); // block until an update is available
-                    String stationId = request.body.get("id").toString();
-
-                    // Update storage if there is any change and
-                    // the task counter to mark down current timestamp of processing task
-                    storage.put(stationId, new WeatherRecord(request.body, request.lamport));
-                    lastUpdate.put(stationId, System.currentTimeMillis());
+        synchronized (consumers) {
+            for (int i = 0; i < lanes.length; i++) {
+                PriorityBlockingQueue<Request> lane = lanes[i];
+                Thread t = new Thread(() -> consume(lane), "Consumer-" + i);
+                t.setDaemon(true);
+                t.start();
+                consumers.add(t);
+            }
+        }
+    }
 
-                    System.out.println("[Consumer] Applied PUT update to stationId: " + stationId + " (Lamport = " + request.lamport + ")");
-                    persistSnapshot();
+    private void consume(PriorityBlockingQueue<Request> lane) {
+        List<Request> batch = new ArrayList<>(COMMIT_BATCH);
+        while (running) {
+            try {
+                batch.add(lane.take()); // block until an update is available
+                lane.drainTo(batch, COMMIT_BATCH - 1);
+                long now = System.nanoTime();
+                for (Request request : batch) {
+                    metrics.queueWait.record(now - request.enqueuedAt);
+                }
+                List<Request> survivors = coalesce ? dropSuperseded(batch) : batch;
+                if (!survivors.isEmpty()) {
+                    applyBatch(survivors);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
 
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
+    /**
+     * Coalescing: an update is skipped when a newer one for the same station is already queued,
+     * wherever it sits in the lane. Its future completes with the newer update and its version, so
+     * the sender sees a durable PUT that was not the one stored. The survivors keep their Lamport order.
+     * @param batch updates drained from a lane, in Lamport order
+     * @return updates to apply
+     */
+    private List<Request> dropSuperseded(List<Request> batch) {
+        List<Request> survivors = new ArrayList<>(batch.size());
+        for (Request request : batch) {
+            Request newest = newestPending.get(request.body.id());
+            if (newest == null || newest == request || VERSION_ORDER.compare(newest, request) <= 0) {
+                survivors.add(request);
+                continue;
+            }
+            coalescedCount.incrementAndGet();
+            newest.applied.whenComplete((version, error) -> {
+                pending.decrementAndGet();
+                if (error != null) {
+                    request.applied.completeExceptionally(error);
+                } else {
+                    request.applied.complete(version);
                 }
+            });
+        }
+        return survivors;
+    }
+
+    /**
+     * Log a batch of PUT updates, then apply them to storage. Batches of all lanes share fsyncs.
+     * @param batch (List)
+     */
+    private void applyBatch(List<Request> batch) {
+        List<WeatherRecord> changed = new ArrayList<>(batch.size());
+        List<WeatherRecord> unchanged = new ArrayList<>();
+        long[] versions = filterVersions(batch, changed, unchanged);
+        List<WriteAheadLog.Entry> entries = new ArrayList<>(changed.size());
+        for (WeatherRecord record : changed) {
+            entries.add(logEntry(record));
+        }
+
+        if (wal == null) {
+            for (WeatherRecord record : changed) {
+                apply(record);
+            }
+            refresh(unchanged);
+            replicate(entries, unchanged);
+            if (!changed.isEmpty()) {
+                persistSnapshot();
             }
-        }, "Consumer");
-        t.setDaemon(true);
-        t.start();
+            flushHistory();
+            complete(batch, versions);
+            return;
+        }
+
+        // Compaction takes the write lock, so it never sees an update that is logged but not applied yet
+        applyLock.readLock().lock();
+        try {
+            try {
+                long start = System.nanoTime();
+                wal.sync(wal.append(entries));
+                metrics.walSync.record(System.nanoTime() - start);
+            } catch (IOException e) {
+                // Not durable: neither applied nor shipped, the senders are told it failed
+                Log.error("Append write-ahead log failed, batch of " + batch.size() + " updates refused: " + e.getMessage());
+                fail(batch, e);
+                return;
+            }
+
+            for (WeatherRecord record : changed) {
+                apply(record);
+            }
+            refresh(unchanged);
+            replicate(entries, unchanged);
+        } finally {
+            applyLock.readLock().unlock();
+        }
+        flushHistory();
+
+        complete(batch, versions);
+
+        if (wal.getEntryCount() >= COMPACT_EVERY) {
+            compact();
+        }
+    }
+
+    private void flushHistory() {
+        if (history != null) {
+            history.flush();
+        }
     }
 
     /**
-     * Remove expired data
+     * The body logged is the one encoded for GET responses, nothing is serialized twice
+     * @param record (WeatherRecord) version applied by a consumer, with its fields
+     * @return PUT entry
      */
-    public void removeExpired() {
-        long cutoff = System.currentTimeMillis() - 30_000;
-        int before = storage.size();
+    private static WriteAheadLog.Entry logEntry(WeatherRecord record) {
+        return new WriteAheadLog.Entry(WriteAheadLog.PUT, record.data().id(), record.lamport, record.serverId, record.json());
+    }
+
+    /**
+     * Hand an applied batch to the replication log. Refreshed versions are shipped too, so the
+     * versions on the replicas are the primary's.
+     * @param logged (List) entries of the changed records
+     * @param unchanged (List) refreshed records
+     */
+    private void replicate(List<WriteAheadLog.Entry> logged, List<WeatherRecord> unchanged) {
+        if (unchanged.isEmpty()) {
+            replication.append(logged);
+            return;
+        }
+        List<WriteAheadLog.Entry> entries = new ArrayList<>(logged);
+        for (WeatherRecord record : unchanged) {
+            entries.add(logEntry(record));
+        }
+        replication.append(entries);
+    }
+
+    /**
+     * Apply an entry shipped by the primary. Stream entries go through the same last-writer-wins check
+     * as PUTs, as an entry may already be part of the snapshot that preceded it.
+     * @param entry (WriteAheadLog.Entry)
+     * @param snapshot (boolean) part of a snapshot, replaces whatever is stored
+     */
+    private void applyReplicated(WriteAheadLog.Entry entry, boolean snapshot) {
+        String stationId = entry.stationId();
+        clock.onReceive(entry.lamport());
+        if (entry.op().equals(WriteAheadLog.DEL)) {
+            storage.computeIfPresent(stationId, (k, record) -> {
+                if (record.lamport > entry.lamport()) return record;
+                unindex(k, record.lamport);
+                return null;
+            });
+            replication.append(List.of(entry));
+            return;
+        }
+        WeatherRecord current = storage.get(stationId);
+        if (!snapshot && current != null && current.compareVersion(entry.lamport(), entry.serverId()) >= 0) {
+            staleCount.incrementAndGet();
+            return;
+        }
+        WeatherRecord record = new WeatherRecord(entry.json(), entry.lamport(), entry.serverId());
+        storage.put(stationId, record);
+        appliedCount.incrementAndGet();
+        if (history != null) {
+            history.record(stationId, record.lamport, record.data());
+        }
+        index(stationId, record);
+        subscriptions.publish(stationId, record.lamport, record.json());
+        replication.append(List.of(entry)); // replicas of this replica
+    }
+
+    /**
+     * End of a snapshot from the primary: stations it did not hold were removed meanwhile
+     * @param stationIds (Set)
+     */
+    private void retainReplicated(Set<String> stationIds) {
+        storage.keySet().retainAll(stationIds);
+        if (history != null) {
+            history.retain(stationIds);
+        }
+        if (aggregates != null) {
+            aggregates.retain(stationIds);
+        }
+        grid.retain(stationIds);
+    }
+
+    /**
+     * Entries of every stored station, the snapshot sent to a new replica
+     * @return List
+     */
+    private List<WriteAheadLog.Entry> replicationSnapshot() {
+        List<WriteAheadLog.Entry> entries = new ArrayList<>(storage.size());
+        for (Map.Entry<String, WeatherRecord> entry : storage.entrySet()) {
+            WeatherRecord record = entry.getValue();
+            entries.add(new WriteAheadLog.Entry(WriteAheadLog.PUT, entry.getKey(), record.lamport, record.serverId, record.json()));
+        }
+        return entries;
+    }
 
-        for (Map.Entry<String, Long> entry : lastUpdate.entrySet()) {
-            if (entry.getValue() < cutoff) {
-                String key = entry.getKey();
-                storage.entrySet().removeIf(e -> e.getKey().equals(key));
-                lastUpdate.entrySet().removeIf(e -> e.getKey().equals(key));
-                System.out.println("Expired: " + key);
+    /**
+     * Last-writer-wins filter. Each station belongs to one lane, so its stored version can only be
+     * changed by this consumer (or removed by expiry) while the batch is checked.
+     * An update not newer than the current version (Lamport value, then ServerId) is dropped, and so is
+     * one its content server sent before the current version, even if it was received after it. A newer
+     * update with the same content only refreshes the version and the TTL: nothing to write to disk.
+     * A delta is only merged into the version it was computed against. A handed over station never
+     * replaces an update a content server sent to this node: its stamp comes from the previous
+     * owner's clock, which says nothing about the order of the two.
+     * @param batch updates in Lamport order
+     * @param changed receives the records to log and apply
+     * @param unchanged receives the refreshed records
+     * @return per update of the batch, the version its station holds once it is processed
+     */
+    private long[] filterVersions(List<Request> batch, List<WeatherRecord> changed, List<WeatherRecord> unchanged) {
+        Map<String, WeatherRecord> current = new HashMap<>();
+        long[] versions = new long[batch.size()];
+        for (int i = 0; i < versions.length; i++) {
+            Request request = batch.get(i);
+            Request update = request;
+            String stationId = request.body.id();
+            WeatherRecord latest = current.containsKey(stationId) ? current.get(stationId) : storage.get(stationId);
+            boolean delta = DELTA.equals(request.type);
+            boolean stale = latest != null
+                    ? latest.compareVersion(request.lamport, request.serverId) >= 0 || latest.supersedes(request.serverId, request.sent)
+                      || delta && latest.lamport != request.base
+                      || HANDOFF.equals(request.type) && latest.sent >= 0
+                    : delta;
+            if (stale) {
+                // A delta needs the record it was computed against, lost if the station expired or moved on meanwhile
+                versions[i] = latest == null ? -1 : latest.lamport;
+                staleCount.incrementAndGet();
+                Log.debug(() -> "[Consumer] Drop stale PUT for stationId: " + stationId + " (Lamport = " + update.lamport + ")");
+                continue;
+            }
+            if (delta) {
+                request = new Request("PUT", request.serverId, latest.data().merge(request.body),
+                                      request.lamport, request.sent, -1, request.applied, request.enqueuedAt);
+            }
+
+            WeatherRecord next;
+            if (latest != null && latest.data().equals(request.body)) {
+                next = new WeatherRecord(latest.data(), latest.json(), request.lamport, request.serverId, request.sent);
+                unchanged.add(next);
+                unchangedCount.incrementAndGet();
+            } else {
+                next = new WeatherRecord(request.body, WeatherCodec.encode(request.body), request.lamport, request.serverId, request.sent);
+                changed.add(next);
             }
+            current.put(stationId, next);
+            versions[i] = request.lamport;
         }
+        return versions;
+    }
 
-        int after = storage.size();
-        if (before != after) {
-            System.out.println("[Cleanup] Removed " + (before - after) + " expired stations");
-            System.out.println();
-            persistSnapshot();
+    /**
+     * Store the new version of stations whose content did not change
+     * @param records (List)
+     */
+    private void refresh(List<WeatherRecord> records) {
+        long now = System.currentTimeMillis();
+        for (WeatherRecord record : records) {
+            String stationId = record.data().id();
+            expiry.touch(stationId, updateTime(record.lamport, now));
+            storage.put(stationId, record);
+            appliedCount.incrementAndGet();
+            index(stationId, record); // back in, should expiry have removed it meanwhile
         }
     }
 
     /**
-     * Restore weather data when crashing
+     * Release the admission slots of a durably applied batch and wake up PUTs waiting for it
+     * @param batch (List)
+     * @param versions (long[]) per update, the version of its station once it was processed
      */
-    private void restoreSnapshotIfPresent() {
-        if (!Files.exists(snapshotPath)) return;
-        try (BufferedReader br = Files.newBufferedReader(snapshotPath, StandardCharsets.UTF_8)) {
-            JsonElement root = JsonParser.parseReader(br);
-            if (root != null && root.isJsonObject()) {
-                JsonObject obj = root.getAsJsonObject();
-                long snapLamport = obj.has("Lamport") ? obj.get("Lamport").getAsLong() : 0L;
-                JsonArray arr = obj.getAsJsonArray("stations");
-                if (arr != null) {
-                    for (JsonElement el : arr) {
-                        JsonObject data = el.getAsJsonObject();
-                        String stationId = data.get("id").toString();
-                        storage.put(stationId, new WeatherRecord(data, snapLamport));
-                        lastUpdate.put(stationId, System.currentTimeMillis());
-                    }
-                }
-                long restoredLamport = Math.max(clock.get(), snapLamport);
-                clock.set(restoredLamport);
-                System.out.println("[Restore] Restore the server to Lamport = " + clock.get());
+    private void complete(List<Request> batch, long[] versions) {
+        pending.addAndGet(-batch.size());
+        for (int i = 0; i < versions.length; i++) {
+            Request request = batch.get(i);
+            if (coalesce) {
+                newestPending.remove(request.body.id(), request);
             }
-        } catch (Exception e) {
-            System.err.println("[Error] Restore server failed: " + e.getMessage());
+            request.applied.complete(versions[i]);
         }
     }
 
     /**
-     * Store weather data for recovery purpose
+     * Release the admission slots of a batch that could not be logged, and fail the PUTs waiting for it
+     * @param batch (List)
+     * @param error (IOException)
      */
-    private void persistSnapshot() {
-        try {
-            JsonObject root = new JsonObject();
-            root.addProperty("Lamport", clock.get());
-            JsonArray arr = new JsonArray();
-            for (WeatherRecord record : storage.values()) {
-                arr.add(record.data);
+    private void fail(List<Request> batch, IOException error) {
+        pending.addAndGet(-batch.size());
+        for (Request request : batch) {
+            if (coalesce) {
+                newestPending.remove(request.body.id(), request);
             }
-            root.add("stations", arr);
+            request.applied.completeExceptionally(error);
+        }
+    }
 
-            // Write down in tmp file
-            byte[] bytes = JsonUtil.serialize(root).getBytes(StandardCharsets.UTF_8);
-            Path tmp = snapshotPath.resolveSibling(snapshotPath.getFileName().toString() + ".tmp");
-            Files.write(tmp, bytes, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-            Files.move(tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-        } catch (Exception e) {
-            // log failed message
-            System.out.println("Persist snapshot failed: " + e.getMessage());
+    /**
+     * Apply one PUT update to storage
+     * @param record (WeatherRecord) new version of the station
+     */
+    private void apply(WeatherRecord record) {
+        long start = System.nanoTime();
+        String stationId = record.data().id();
+
+        // Update storage if there is any change and
+        // the task counter to mark down current timestamp of processing task
+        // Deadline first: an expiry racing with this update then sees the station as live again
+        expiry.touch(stationId, updateTime(record.lamport, System.currentTimeMillis()));
+        storage.put(stationId, record);
+        appliedCount.incrementAndGet();
+        if (history != null) {
+            history.record(stationId, record.lamport, record.data());
         }
+        index(stationId, record);
+        subscriptions.publish(stationId, record.lamport, record.json());
+        metrics.apply.record(System.nanoTime() - start);
+
+        Log.debug(() -> "[Consumer] Applied PUT update to stationId: " + stationId + " (Lamport = " + record.lamport + ")");
     }
 
     /**
-     * Handle PUT requests
-     * @param out
-     * @param jsonHeader
-     * @param jsonBody
+     * Time from which the TTL of an update runs: the physical part of its timestamp with a hybrid
+     * logical clock, so ordering and expiry use one clock, the local wall clock otherwise
+     * @param lamport timestamp of the update
+     * @param now current wall-clock time
+     * @return milliseconds since the epoch, never later than now
      */
-    private void handlePut(PrintWriter out, JsonObject jsonHeader, JsonObject jsonBody) {
-        long timestamp = jsonHeader.get("LamportClock").getAsLong();
-        long lamportValue = clock.onReceive(timestamp);
-        //System.out.println("[Lamport] Update local Lamport = " + lamportValue);
+    private long updateTime(long lamport, long now) {
+        long physical = clock.physicalMillis(lamport);
+        return physical < 0 ? now : Math.min(physical, now);
+    }
 
-        requestQueue.put(new Request("PUT", jsonHeader, jsonBody, lamportValue));
-        System.out.println("[Producer] Receive and enqueue PUT with stationId: " + jsonBody.get("id") + " (Lamport = " + lamportValue + ")");
+    /**
+     * Fold the write-ahead log into the snapshot file
+     */
+    private void compact() {
+        if (!applyLock.writeLock().tryLock()) return; // another lane is compacting
+        try {
+            if (wal.getEntryCount() == 0) return;
+            wal.compact(this::writeSnapshot);
+        } catch (IOException e) {
+            Log.error("Compact write-ahead log failed, the log is kept: " + e.getMessage());
+        } finally {
+            applyLock.writeLock().unlock();
+        }
     }
 
     /**
-     * Handle GET requests
-     * @param jsonHeader
-     * @return
+     * Number of stations removed by expiry since the server started
+     * @return count
      */
-    private WeatherSnapshot handleGet(JsonObject jsonHeader) {
-        String stationId = jsonHeader.get("StationId").toString();
-        long timestamp = jsonHeader.get("LamportClock").getAsLong();
-        long lamportValue = clock.onReceive(timestamp);
-        //System.out.println("[Lamport] Update local Lamport = " + lamportValue);
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
 
-        if (storage.isEmpty()) {
-            return null;
+    /**
+     * PUT updates dropped because the station already held the same or a newer version
+     * @return count
+     */
+    public long getStaleCount() {
+        return staleCount.get();
+    }
+
+    /**
+     * PUT updates that only refreshed the version of a station, with content equal to the stored one
+     * @return count
+     */
+    public long getUnchangedCount() {
+        return unchangedCount.get();
+    }
+
+    /**
+     * Stored stations whose fields have been decoded, the others only hold their JSON or its place in a mapped snapshot
+     * @return count
+     */
+    public long getDecodedCount() {
+        return storage.values().stream().filter(record -> record.data != null).count();
+    }
+
+    /**
+     * PUT updates skipped because a newer update for the same station was already queued
+     * @return count
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Long-poll subscriptions parked and waiting for an update
+     * @return count
+     */
+    public int getSubscriberCount() {
+        return subscriptions.getWaiting();
+    }
+
+    /**
+     * Sequence of the newest update in the replication log, what a caught-up replica has applied
+     * @return sequence, 0 before the first update
+     */
+    public long getReplicationHead() {
+        return replication.getHead();
+    }
+
+    /**
+     * Last sequence of the primary's log this replica applied
+     * @return sequence, -1 on a primary
+     */
+    public long getReplicatedSeq() {
+        return follower == null ? -1 : follower.getAppliedSeq();
+    }
+
+    /**
+     * Replica lag in updates: applied on the primary, not yet here, as of the last line received
+     * @return count, 0 on a primary
+     */
+    public long getReplicationLag() {
+        return follower == null ? 0 : follower.getLagEntries();
+    }
+
+    /**
+     * Number of stations held by this server
+     * @return count
+     */
+    public int getStationCount() {
+        return storage.size();
+    }
+
+    /**
+     * Stations handed over to another node of the cluster after a ring change
+     * @return count
+     */
+    public long getHandedOffCount() {
+        return handedOffCount.get();
+    }
+
+    /**
+     * Delta PUTs refused with 409 because their base version was not the station's current one
+     * @return count
+     */
+    public long getDeltaRejectedCount() {
+        return deltasRejected.get();
+    }
+
+    /**
+     * Remove expired data. Only the stations whose deadline has passed are visited.
+     */
+    public void removeExpired() {
+        List<String> expired = expiry.advance(System.currentTimeMillis());
+        if (expired.isEmpty()) return;
+
+        List<WriteAheadLog.Entry> removed = new ArrayList<>(expired.size());
+        for (String key : expired) {
+            // Keep the record if an update touched the station after its deadline was collected
+            if (storage.computeIfPresent(key, (k, record) -> {
+                if (expiry.contains(k)) return record;
+                unindex(k, record.lamport); // with the record, so a later update is not subtracted
+                return null;
+            }) == null) {
+                forgetHistory(key);
+                removed.add(new WriteAheadLog.Entry(WriteAheadLog.DEL, key, clock.get(), null));
+                Log.debug(() -> "Expired: " + key);
+            }
         }
-        WeatherRecord record = storage.get(stationId);
-        if (record == null) {
-            System.out.println("[Error] No data with stationId: " + jsonHeader.get("StationId") + " (Lamport = " + lamportValue + ")");
-            return null;
+        if (removed.isEmpty()) return;
+
+        expiredCount.addAndGet(removed.size());
+        Log.info("[Cleanup] Removed " + removed.size() + " expired stations");
+        logRemoved(removed);
+    }
+
+    private void forgetHistory(String stationId) {
+        if (history != null) {
+            history.remove(stationId);
         }
-        //log
-        System.out.println("[Producer] Receive and process GET with stationId: " + jsonHeader.get("StationId") + " (Lamport = " + lamportValue + ")");
-        return new WeatherSnapshot(record, timestamp);
     }
 
     /**
-     * Send response back to clients
-     * @param out
-     * @param statusCode
-     * @param status
-     * @param lamport
-     * @param body
+     * Add the applied version of a station to the aggregates and the spatial grid
+     * @param stationId (String)
+     * @param record (WeatherRecord)
      */
-    private void sendResponse(PrintWriter out, int statusCode, String status, long lamport, String body) {
-        byte[] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
-        String response =   "HTTP/1.1 " + statusCode + " " + status + "\r\n" +
-                            "Content-Type: application/json\r\n" +
-                            "Content-Length: " + bytes.length + "\r\n" +
-                            "LamportClock: " + lamport + "\r\n" +
-                            "\r\n" +
-                            (bytes.length > 0 ? body : "");
-        out.println(response);
-        out.flush();
+    private void index(String stationId, WeatherRecord record) {
+        if (!indexed) {
+            synchronized (indexLock) {
+                if (!indexed) return; // the first query indexes the stored version
+            }
+        }
+        addToIndex(stationId, record);
     }
 
-    /**
-     * Classify request type and handle it properly
-     * @param socket
-     */
-    private void handleClient(Socket socket) {
-        try (
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
-        ) {
-            String[] request = ReqResParser.splitHeaderAndBodyFromRequest(in);
-
-            // Read request header
-            Header header = ReqResParser.readHeader(request[0]);
-            String requestType = header.requestType();
-            Map<String, String> metadata = header.metadata();
-            JsonObject jsonHeader = JsonUtil.toJsonObj(metadata);
-            System.out.println(requestType);
-            System.out.println("[Info] Current local Lamport = " + clock.get());
-            // send simple HTTP response
-            if (requestType == null) return;
-
-            if (requestType.equals("PUT")) {
-                System.out.println("[Info] Request from: " + header.metadata().get("ServerId") + " with external Lamport = " + header.metadata().get("LamportClock"));
-                JsonObject jsonBody = ReqResParser.readBody(request[1]);
-                String stationId = jsonBody.get("id").toString();
-                boolean isExist = hasStationId(stationId);
-
-                this.handlePut(out, jsonHeader, jsonBody);
-
-                int statusCode = isExist ? 200 : 201;
-                String status = isExist ? "OK" : "Created";
-                sendResponse(out, statusCode, status, clock.onSend(), "");
-                //System.out.println("[Lamport] Increase Lamport to " + clock.get());
-                System.out.println("[Respond] Send response (Lamport = " + clock.get() + ")");
-
-            } else if (requestType.equals("GET")) {
-                System.out.println("[Info] From: " + header.metadata().get("ClientId") + " with external Lamport = " + header.metadata().get("LamportClock"));
-                WeatherSnapshot snap = this.handleGet(jsonHeader);
-                //System.out.println("[Lamport] Increase Lamport to " + clock.get());
-                if (snap != null){
-                    sendResponse(out, 200, "OK", clock.onSend(), snap.record.data.toString());
-                } else {
-                    sendResponse(out, 500, "Internal Server Error", clock.onSend(), "");
-                }
-                System.out.println("[Respond] Send response (Lamport = " + clock.get() + ")");
+    private void addToIndex(String stationId, WeatherRecord record) {
+        if (aggregates != null) {
+            aggregates.update(stationId, record.lamport, record.data());
+        }
+        grid.update(stationId, record.lamport, record.data());
+    }
 
-            } else {
-                out.println("HTTP/1.1 400 Bad Request");
-                out.flush();
+    /**
+     * Add every stored station to the aggregates and the spatial grid, once, before the first query
+     * reads them. Applies and removals meanwhile wait for the pass, or are left to it when they come before.
+     */
+    private void ensureIndexed() {
+        if (indexed) return;
+        synchronized (indexLock) {
+            if (indexed) return;
+            for (Map.Entry<String, WeatherRecord> entry : storage.entrySet()) {
+                addToIndex(entry.getKey(), entry.getValue());
             }
-            System.out.println();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (Exception e) {
+            indexed = true;
+        }
+    }
+
+    /**
+     * Take a removed station out of the aggregates and the spatial grid
+     * @param stationId (String)
+     * @param lamport (long) version removed, a newer version applied meanwhile stays
+     */
+    private void unindex(String stationId, long lamport) {
+        if (!indexed) {
+            synchronized (indexLock) {
+                if (!indexed) return;
+            }
+        }
+        if (aggregates != null) {
+            aggregates.remove(stationId, lamport);
+        }
+        grid.remove(stationId, lamport);
+    }
+
+    /**
+     * Make removals durable and ship them to the replicas
+     * @param removed (List) DEL entries of the stations removed from storage
+     */
+    private void logRemoved(List<WriteAheadLog.Entry> removed) {
+        replication.append(removed);
+        if (wal == null) {
+            persistSnapshot();
+            return;
+        }
+        applyLock.readLock().lock();
+        try {
+            wal.appendAll(removed);
+        } catch (IOException e) {
+            Log.error("Append write-ahead log failed: " + e.getMessage());
+        } finally {
+            applyLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Tell every other member of the cluster about the ring this node was started with, then hand
+     * over the stations held here that belong to another node
+     */
+    private void announceMembership() {
+        for (String node : cluster.getRing().nodes()) {
+            if (node.equals(cluster.getSelf())) continue;
+            try {
+                cluster.announce(node);
+            } catch (IOException e) {
+                // Not up yet: it reads the same ring from its own configuration
+                Log.warn("[Cluster] Announce to " + node + " failed: " + e.getMessage());
+            }
+        }
+        rebalanceIfNeeded();
+    }
+
+    /**
+     * Hand the stations owned by another node over to it. Runs once the ring changed, and again
+     * while a handoff failed or a moving station was updated during its handoff.
+     */
+    private void rebalanceIfNeeded() {
+        synchronized (rebalanceLock) {
+            if (!rebalanceNeeded || !running) return;
+            rebalanceNeeded = false;
+
+            Map<String, List<Map.Entry<String, WeatherRecord>>> moving = new HashMap<>();
+            for (Map.Entry<String, WeatherRecord> entry : storage.entrySet()) {
+                String owner = cluster.ownerOf(entry.getKey());
+                if (!owner.equals(cluster.getSelf())) {
+                    moving.computeIfAbsent(owner, k -> new ArrayList<>()).add(Map.entry(entry.getKey(), entry.getValue()));
+                }
+            }
+            for (Map.Entry<String, List<Map.Entry<String, WeatherRecord>>> node : moving.entrySet()) {
+                List<Map.Entry<String, WeatherRecord>> stations = node.getValue();
+                for (int from = 0; from < stations.size(); from += Cluster.HANDOFF_CHUNK) {
+                    List<Map.Entry<String, WeatherRecord>> chunk = stations.subList(from, Math.min(stations.size(), from + Cluster.HANDOFF_CHUNK));
+                    List<WriteAheadLog.Entry> entries = new ArrayList<>(chunk.size());
+                    for (Map.Entry<String, WeatherRecord> station : chunk) {
+                        WeatherRecord record = station.getValue();
+                        entries.add(new WriteAheadLog.Entry(WriteAheadLog.PUT, station.getKey(), record.lamport, record.serverId, record.json()));
+                    }
+                    try {
+                        cluster.handOff(node.getKey(), entries);
+                    } catch (IOException e) {
+                        Log.warn("[Cluster] Handoff to " + node.getKey() + " failed, retry later: " + e.getMessage());
+                        rebalanceNeeded = true;
+                        break;
+                    }
+                    dropHandedOff(chunk);
+                }
+                Log.info("[Cluster] Handed " + stations.size() + " stations over to " + node.getKey());
+            }
+        }
+    }
+
+    /**
+     * Remove stations their new owner has durably applied
+     * @param stations (List) station ids with the version that was handed over
+     */
+    private void dropHandedOff(List<Map.Entry<String, WeatherRecord>> stations) {
+        List<WriteAheadLog.Entry> removed = new ArrayList<>(stations.size());
+        for (Map.Entry<String, WeatherRecord> station : stations) {
+            String stationId = station.getKey();
+            if (storage.remove(stationId, station.getValue())) {
+                expiry.remove(stationId);
+                forgetHistory(stationId);
+                unindex(stationId, station.getValue().lamport);
+                removed.add(new WriteAheadLog.Entry(WriteAheadLog.DEL, stationId, clock.get(), null));
+            } else {
+                rebalanceNeeded = true; // updated meanwhile, the next pass hands the newer version over
+            }
+        }
+        if (removed.isEmpty()) return;
+        handedOffCount.addAndGet(removed.size());
+        logRemoved(removed);
+    }
+
+    /**
+     * Restore weather data when crashing: load the snapshot, then replay the write-ahead log tail.
+     * With binary snapshots an existing JSON snapshot is still imported when no binary one exists yet.
+     */
+    private void restoreSnapshotIfPresent() {
+        long restoredLamport = clock.get();
+        boolean restored = false;
+
+        // Whatever format this run writes, the newer snapshot holds the last state
+        if (isNewer(binarySnapshotPath, snapshotPath)) {
+            try {
+                SnapshotFile file = SnapshotFile.open(binarySnapshotPath);
+                long now = System.currentTimeMillis();
+                file.forEach((stationId, lamport, offset) -> {
+                    storage.put(stationId, new WeatherRecord(file, offset, lamport));
+                    expiry.touch(stationId, updateTime(lamport, now));
+                });
+                restoredLamport = Math.max(restoredLamport, file.getLamport());
+                restored = true;
+            } catch (Exception e) {
+                Log.error("Restore server failed: " + e.getMessage());
+            }
+        } else if (Files.exists(snapshotPath)) {
+            try (BufferedReader br = Files.newBufferedReader(snapshotPath, StandardCharsets.UTF_8)) {
+                // Streamed: stations are decoded one by one, the file is never held as a tree
+                JsonReader reader = new JsonReader(br);
+                reader.setLenient(true);
+                List<WeatherData> stations = new ArrayList<>();
+                long snapLamport = 0L;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (name.equals("Lamport")) {
+                        snapLamport = reader.nextLong();
+                    } else if (name.equals("stations") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            stations.add(WeatherCodec.read(reader));
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                // The Lamport value may come after the stations
+                long now = System.currentTimeMillis();
+                for (WeatherData data : stations) {
+                    storage.put(data.id(), new WeatherRecord(data, snapLamport, null));
+                    expiry.touch(data.id(), updateTime(snapLamport, now));
+                }
+                restoredLamport = Math.max(restoredLamport, snapLamport);
+                restored = true;
+            } catch (Exception e) {
+                Log.error("Restore server failed: " + e.getMessage());
+            }
+        }
+
+        try {
+            List<WriteAheadLog.Entry> entries = WriteAheadLog.replay(walPath);
+            for (WriteAheadLog.Entry entry : entries) {
+                if (entry.op().equals(WriteAheadLog.PUT)) {
+                    byte[] json = entry.json();
+                    WeatherData data = WeatherCodec.decode(json, 0, json.length);
+                    storage.put(entry.stationId(), new WeatherRecord(data, json, entry.lamport(), entry.serverId()));
+                    expiry.touch(entry.stationId(), updateTime(entry.lamport(), System.currentTimeMillis()));
+                    if (history != null) {
+                        history.record(entry.stationId(), entry.lamport(), data); // logged but not in the history log yet
+                    }
+                } else {
+                    storage.remove(entry.stationId());
+                    expiry.remove(entry.stationId());
+                }
+                restoredLamport = Math.max(restoredLamport, entry.lamport());
+            }
+            restored |= !entries.isEmpty();
+        } catch (Exception e) {
+            Log.error("Replay write-ahead log failed: " + e.getMessage());
+        }
+
+        if (restored) {
+            clock.set(restoredLamport);
+            Log.info("[Restore] Restore the server to Lamport = " + clock.get());
+        }
+    }
+
+    /**
+     * Whether a snapshot exists and was written no earlier than another one
+     * @param path (Path)
+     * @param other (Path)
+     * @return false when it is missing or its modification time cannot be read
+     */
+    private static boolean isNewer(Path path, Path other) {
+        try {
+            return Files.exists(path)
+                    && (!Files.exists(other) || Files.getLastModifiedTime(path).compareTo(Files.getLastModifiedTime(other)) >= 0);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Store weather data for recovery purpose
+     */
+    synchronized void persistSnapshot() {
+        try {
+            writeSnapshot();
+        } catch (Exception e) {
+            // log failed message
+            Log.error("Persist snapshot failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write the snapshot file, failures are thrown so that a compaction keeps the log
+     * @throws IOException
+     */
+    private synchronized void writeSnapshot() throws IOException {
+        long start = System.nanoTime();
+        long bytes;
+        if (binarySnapshot) {
+            List<SnapshotFile.Station> stations = new ArrayList<>(storage.size());
+            for (Map.Entry<String, WeatherRecord> entry : storage.entrySet()) {
+                WeatherRecord record = entry.getValue();
+                stations.add(new SnapshotFile.Station(entry.getKey(), record.lamport, record.json()));
+            }
+            bytes = SnapshotFile.write(binarySnapshotPath, clock.get(), stations);
+        } else {
+            bytes = writeJsonSnapshot(snapshotPath);
+        }
+        metrics.persist.record(System.nanoTime() - start);
+        metrics.persistedBytes.add(bytes);
+        metrics.lastSnapshotBytes.set(bytes);
+    }
+
+    /**
+     * Export the current stations as a JSON snapshot, the format restored when binary snapshots are off
+     * @param path (Path)
+     * @throws IOException
+     */
+    public void exportJson(Path path) throws IOException {
+        writeJsonSnapshot(path);
+    }
+
+    private long writeJsonSnapshot(Path path) throws IOException {
+        // Stored bodies are already encoded, they are copied as they are
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("{\"Lamport\":" + clock.get() + ",\"stations\":[").getBytes(StandardCharsets.UTF_8));
+        boolean first = true;
+        for (WeatherRecord record : storage.values()) {
+            if (!first) out.write(',');
+            out.write(record.json());
+            first = false;
+        }
+        out.write(']');
+        out.write('}');
+
+        // Write down in tmp file
+        byte[] bytes = out.toByteArray();
+        Path tmp = path.resolveSibling(path.getFileName().toString() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            ch.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return bytes.length;
+    }
+
+    /**
+     * Handle PUT requests
+     * @param request
+     * @param jsonBody
+     */
+    private Request handlePut(HttpRequestParser request, WeatherData jsonBody) {
+        if (request.baseVersion() >= 0) {
+            deltasReceived.incrementAndGet();
+            return enqueueDelta(request.serverId(), request.lamportClock(), request.baseVersion(), jsonBody);
+        }
+        return enqueueFull(request.serverId(), request.lamportClock(), jsonBody);
+    }
+
+    /**
+     * Stamp a PUT update with the local Lamport clock and queue it on its station's lane
+     * @param serverId
+     * @param timestamp Lamport value sent by the content server
+     * @param jsonBody
+     * @return completed once the update is logged and applied, with the version the station then holds
+     */
+    CompletableFuture<Long> enqueuePut(String serverId, long timestamp, WeatherData jsonBody) {
+        pending.incrementAndGet(); // in-process updates bypass admission control
+        return enqueueFull(serverId, timestamp, jsonBody).applied;
+    }
+
+    private Request enqueueFull(String serverId, long timestamp, WeatherData jsonBody) {
+        long lamportValue = clock.onReceive(timestamp);
+        //System.out.println("[Lamport] Update local Lamport = " + lamportValue);
+
+        Request request = enqueue("PUT", serverId, timestamp, -1, lamportValue, jsonBody);
+        Log.debug(() -> "[Producer] Receive and enqueue PUT with stationId: " + jsonBody.id() + " (Lamport = " + lamportValue + ")");
+        return request;
+    }
+
+    /**
+     * Stamp a delta PUT and queue it, provided the version stored for its station is the base the
+     * delta was computed against. The consumer checks the base again when it merges the delta, so
+     * of two deltas built on the same base only the first one is applied.
+     * @param serverId
+     * @param timestamp Lamport value sent by the content server
+     * @param baseVersion StationVersion the content server last had acknowledged
+     * @param delta changed fields and the station id
+     * @return the queued update, null when the base is not current and the full record must be sent
+     */
+    Request enqueueDelta(String serverId, long timestamp, long baseVersion, WeatherData delta) {
+        String stationId = delta.id();
+        if (storedVersion(stationId) != baseVersion) {
+            Log.debug(() -> "[Producer] Refuse delta PUT for stationId: " + stationId + " on stale base " + baseVersion);
+            return null;
+        }
+        long lamportValue = clock.onReceive(timestamp);
+
+        Request request = enqueue(DELTA, serverId, timestamp, baseVersion, lamportValue, delta);
+        Log.debug(() -> "[Producer] Receive and enqueue delta PUT with stationId: " + stationId + " (Lamport = " + lamportValue + ")");
+        return request;
+    }
+
+    private long storedVersion(String stationId) {
+        WeatherRecord record = storage.get(stationId);
+        return record == null ? -1 : record.lamport;
+    }
+
+    /**
+     * Stamp a batch of updates with one Lamport value and queue them as a unit: one admission,
+     * one acknowledgement once every lane has logged and applied its share
+     * @param serverId
+     * @param timestamp Lamport value sent by the content server
+     * @param bodies
+     * @return completed once the whole batch is logged and applied
+     */
+    CompletableFuture<Void> enqueueBatch(String serverId, long timestamp, Collection<WeatherData> bodies) {
+        pending.addAndGet(bodies.size()); // in-process updates bypass admission control
+        return queueBatch(serverId, timestamp, bodies);
+    }
+
+    /**
+     * Queue a batch in pending slots the caller already holds, one per body
+     */
+    private CompletableFuture<Void> queueBatch(String serverId, long timestamp, Collection<WeatherData> bodies) {
+        long lamportValue = clock.onReceive(timestamp);
+
+        CompletableFuture<?>[] applied = new CompletableFuture<?>[bodies.size()];
+        int i = 0;
+        for (WeatherData body : bodies) {
+            applied[i++] = enqueue("PUT", serverId, timestamp, -1, lamportValue, body).applied;
+        }
+        Log.debug(() -> "[Producer] Receive and enqueue batch PUT of " + bodies.size() + " stations (Lamport = " + lamportValue + ")");
+        return CompletableFuture.allOf(applied);
+    }
+
+    /**
+     * Queue an update on its station's lane, in a pending slot the caller already holds
+     */
+    private Request enqueue(String type, String serverId, long sent, long base, long lamportValue, WeatherData jsonBody) {
+        Request request = new Request(type, serverId, jsonBody, lamportValue, sent, base, new CompletableFuture<>(), System.nanoTime());
+        String stationId = jsonBody.id();
+        if (type.equals("PUT")) {
+            // Only a full record can supersede older updates, a delta builds on them
+            if (coalesce) {
+                newestPending.merge(stationId, request, (queued, next) -> VERSION_ORDER.compare(next, queued) > 0 ? next : queued);
+            }
+        }
+        laneOf(stationId).put(request);
+        return request;
+    }
+
+    /**
+     * Handle GET requests
+     * @param request
+     * @return
+     */
+    private WeatherSnapshot handleGet(HttpRequestParser request) {
+        String stationId = request.stationId();
+        long timestamp = request.lamportClock();
+        long lamportValue = clock.onReceive(timestamp);
+        //System.out.println("[Lamport] Update local Lamport = " + lamportValue);
+
+        if (storage.isEmpty() || stationId == null) {
+            return null;
+        }
+        WeatherRecord record = storage.get(stationId);
+        if (record == null) {
+            Log.debug(() -> "[Error] No data with stationId: " + stationId + " (Lamport = " + lamportValue + ")");
+            return null;
+        }
+        //log
+        Log.debug(() -> "[Producer] Receive and process GET with stationId: " + stationId + " (Lamport = " + lamportValue + ")");
+        return new WeatherSnapshot(record, timestamp);
+    }
+
+    /**
+     * Pre-serialized JSON of a station, as served to GET requests
+     * @param stationId
+     * @return UTF-8 bytes, null when the station is unknown
+     */
+    byte[] readStation(String stationId) {
+        WeatherRecord record = storage.get(stationId);
+        return record == null ? null : record.json();
+    }
+
+    /**
+     * Send response back to clients
+     * @param out
+     * @param statusCode
+     * @param status
+     * @param lamport
+     * @param body
+     * @param keepAlive
+     */
+    private void sendResponse(OutputStream out, int statusCode, String status, long lamport, String body, boolean keepAlive) throws IOException {
+        sendResponse(out, statusCode, status, lamport, body, keepAlive, "");
+    }
+
+    /**
+     * Send response back to clients with additional header lines
+     * @param out
+     * @param statusCode
+     * @param status
+     * @param lamport
+     * @param body
+     * @param keepAlive
+     * @param extraHeaders header lines, each terminated by CRLF
+     */
+    private void sendResponse(OutputStream out, int statusCode, String status, long lamport, String body, boolean keepAlive, String extraHeaders) throws IOException {
+        byte[] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        sendResponse(out, statusCode, status, lamport, bytes, keepAlive, extraHeaders);
+    }
+
+    /**
+     * Send response back to clients with a body that is already encoded
+     * @param out
+     * @param statusCode
+     * @param status
+     * @param lamport
+     * @param bytes UTF-8 body
+     * @param keepAlive
+     * @param extraHeaders header lines, each terminated by CRLF
+     */
+    private void sendResponse(OutputStream out, int statusCode, String status, long lamport, byte[] bytes, boolean keepAlive, String extraHeaders) throws IOException {
+        sendResponse(out, statusCode, status, lamport, "application/json", bytes, keepAlive, extraHeaders);
+    }
+
+    /**
+     * Send response back to clients with a body of any content type
+     * @param out
+     * @param statusCode
+     * @param status
+     * @param lamport
+     * @param contentType
+     * @param bytes body
+     * @param keepAlive
+     * @param extraHeaders header lines, each terminated by CRLF
+     */
+    private void sendResponse(OutputStream out, int statusCode, String status, long lamport, String contentType, byte[] bytes, boolean keepAlive, String extraHeaders) throws IOException {
+        String head =   "HTTP/1.1 " + statusCode + " " + status + "\r\n" +
+                        "Content-Type: " + contentType + "\r\n" +
+                        "Content-Length: " + bytes.length + "\r\n" +
+                        "LamportClock: " + lamport + "\r\n" +
+                        "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n" +
+                        extraHeaders +
+                        "\r\n";
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+        out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * Whether a request asked to keep its connection open. Only honored by the virtual front end:
+     * on the fixed pool an idle persistent connection would pin one of the few worker threads.
+     * @param request
+     * @return boolean
+     */
+    private boolean keepAlive(HttpRequestParser request) {
+        return this.frontend.equals("virtual") && request.keepAlive();
+    }
+
+    /**
+     * Admission control: refuse a PUT of some updates while too many are pending. Slots are reserved
+     * by the check itself, so concurrent PUTs cannot all pass it and overshoot the bound. Every
+     * update queued afterwards takes one of them, the caller releases those it did not use.
+     * @param request
+     * @param out
+     * @param keepAlive
+     * @param updates number of updates the PUT carries
+     * @return true when the PUT was rejected with 503, false when its slots are reserved
+     */
+    private boolean shedLoad(HttpRequestParser request, OutputStream out, boolean keepAlive, int updates) throws IOException {
+        for (int current = pending.get(); current + updates <= maxPending; current = pending.get()) {
+            if (pending.compareAndSet(current, current + updates)) return false;
+        }
+        metrics.putsRejected.increment();
+
+        // Shed load instead of queueing without bound while the consumers are behind
+        clock.onReceive(request.lamportClock());
+        sendResponse(out, 503, "Service Unavailable", clock.onSend(), "", keepAlive, "Retry-After: " + retryAfterSeconds + "\r\n");
+        Log.debug(() -> "[Respond] Reject PUT, " + pending.get() + " updates pending (Lamport = " + clock.get() + ")");
+        return true;
+    }
+
+    /**
+     * In synchronous mode, wait until the updates are in the write-ahead log and in storage
+     * @param applied
+     * @param out
+     * @param keepAlive
+     * @return false when the wait timed out and a 503 was sent instead, or the write-ahead log
+     *         failed and a 500 was sent
+     */
+    private boolean awaitApplied(CompletableFuture<?> applied, OutputStream out, boolean keepAlive) throws Exception {
+        return !syncPut || await(applied, out, keepAlive);
+    }
+
+    /**
+     * Wait until the updates are in the write-ahead log and in storage
+     * @return false when the wait timed out and a 503 was sent instead, or the write-ahead log
+     *         failed and a 500 was sent
+     */
+    private boolean await(CompletableFuture<?> applied, OutputStream out, boolean keepAlive) throws Exception {
+        try {
+            applied.get(KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            sendResponse(out, 503, "Service Unavailable", clock.onSend(), "", keepAlive, "Retry-After: " + retryAfterSeconds + "\r\n");
+            return false;
+        } catch (ExecutionException e) {
+            sendResponse(out, 500, "Internal Server Error", clock.onSend(), "", keepAlive);
+            return false;
+        }
+    }
+
+    private void servePut(HttpRequestParser request, OutputStream out, boolean keepAlive, long receivedAt) throws Exception {
+        if (shedLoad(request, out, keepAlive, 1)) return;
+
+        Log.debug(() -> "[Info] Request from: " + request.serverId() + " with external Lamport = " + request.lamportClock());
+        boolean isExist;
+        Request update = null;
+        try {
+            WeatherData jsonBody;
+            try {
+                jsonBody = WeatherCodec.decode(request.body(), 0, request.contentLength());
+            } catch (JsonParseException e) {
+                jsonBody = null;
+            }
+            if (jsonBody == null || jsonBody.id() == null) {
+                // Answered like a malformed batch rather than dropping the connection unanswered
+                sendResponse(out, 400, "Bad Request", clock.onSend(), "", keepAlive);
+                return;
+            }
+            String stationId = jsonBody.id();
+            if (cluster != null && !cluster.owns(stationId)) {
+                redirectToOwner(request, out, keepAlive, stationId);
+                return;
+            }
+            isExist = hasStationId(stationId);
+            update = this.handlePut(request, jsonBody);
+        } finally {
+            if (update == null) pending.decrementAndGet(); // nothing was queued in the reserved slot
+        }
+        if (update == null) {
+            deltasRejected.incrementAndGet();
+            sendResponse(out, 409, "Conflict", clock.onSend(), "", keepAlive);
+            Log.debug(() -> "[Respond] Delta PUT on a stale base, full record required (Lamport = " + clock.get() + ")");
+            return;
+        }
+        metrics.acceptToEnqueue.record(System.nanoTime() - receivedAt);
+        if (!syncPut && !request.hasBaseVersion()) {
+            // Not known yet whether it will be stored: no version to build a delta on
+            sendResponse(out, isExist ? 200 : 201, isExist ? "OK" : "Created", clock.onSend(), "", keepAlive);
+            return;
+        }
+        if (!await(update.applied, out, keepAlive)) return;
+
+        long version = update.applied.join();
+        if (version != update.lamport) {
+            if (update.base >= 0) {
+                deltasRejected.incrementAndGet(); // the base moved on while the delta was queued
+                sendResponse(out, 409, "Conflict", clock.onSend(), "", keepAlive);
+                return;
+            }
+            // Dropped for a newer version: acknowledged, but only the stored version is advertised
+            sendResponse(out, 200, "OK", clock.onSend(), "", keepAlive, "StoredVersion: " + version + "\r\n");
+            Log.debug(() -> "[Respond] PUT superseded by version " + version + " (Lamport = " + clock.get() + ")");
+            return;
+        }
+        int statusCode = isExist ? 200 : 201;
+        String status = isExist ? "OK" : "Created";
+        sendResponse(out, statusCode, status, clock.onSend(), "", keepAlive, "StationVersion: " + update.lamport + "\r\n");
+        //System.out.println("[Lamport] Increase Lamport to " + clock.get());
+        Log.debug(() -> "[Respond] Send response (Lamport = " + clock.get() + ")");
+    }
+
+    private void serveGet(HttpRequestParser request, OutputStream out, boolean keepAlive) throws IOException {
+        Log.debug(() -> "[Info] From: " + request.clientId() + " with external Lamport = " + request.lamportClock());
+        String stationId = request.stationId();
+        if (cluster != null && stationId != null && !cluster.owns(stationId)) {
+            redirectToOwner(request, out, keepAlive, stationId);
+            return;
+        }
+        WeatherSnapshot snap = this.handleGet(request);
+        //System.out.println("[Lamport] Increase Lamport to " + clock.get());
+        if (snap != null){
+            sendResponse(out, 200, "OK", clock.onSend(), snap.record.json(), keepAlive, "");
+        } else {
+            sendResponse(out, 500, "Internal Server Error", clock.onSend(), "", keepAlive);
+        }
+        Log.debug(() -> "[Respond] Send response (Lamport = " + clock.get() + ")");
+    }
+
+    /**
+     * Observation history of one station: "StationId", optional inclusive "HistoryFrom" and "HistoryTo"
+     * bounds on the Lamport values, or on local_date_time_full (yyyyMMddHHmmss) with "HistoryBy: time".
+     * Answered column by column, oldest observation first, empty for an unknown station.
+     */
+    private void serveHistory(HttpRequestParser request, OutputStream out, boolean keepAlive) throws IOException {
+        String stationId = request.stationId();
+        if (cluster != null && stationId != null && !cluster.owns(stationId)) {
+            redirectToOwner(request, out, keepAlive, stationId);
+            return;
+        }
+        long lamportValue = clock.onReceive(request.lamportClock());
+        if (stationId == null) {
+            sendResponse(out, 400, "Bad Request", clock.onSend(), "", keepAlive);
+            return;
+        }
+        Log.debug(() -> "[Info] History GET for stationId: " + stationId + " from: " + request.clientId() + " (Lamport = " + lamportValue + ")");
+
+        StationHistory stationHistory = history == null ? null : history.get(stationId);
+        StationHistory.Range range;
+        if (stationHistory == null) {
+            range = new StationHistory.Range(new long[0], new long[0], new float[StationHistory.COLUMNS.length][0]);
+        } else {
+            long from = request.historyFrom() < 0 ? Long.MIN_VALUE : request.historyFrom();
+            long to = request.historyTo() < 0 ? Long.MAX_VALUE : request.historyTo();
+            range = stationHistory.range(from, to, request.historyByTime());
+        }
+        sendResponse(out, 200, "OK", clock.onSend(), StationHistory.toJson(stationId, range), keepAlive, "");
+        Log.debug(() -> "[Respond] Send " + range.size() + " observations (Lamport = " + clock.get() + ")");
+    }
+
+    /**
+     * Min, max and average of the numeric fields: "GroupBy" state, time_zone or all (the default),
+     * "Group" to answer a single group. Read from the maintained aggregates, whatever the number of
+     * stations. In a cluster each node answers for the stations it owns.
+     */
+    private void serveAggregate(HttpRequestParser request, OutputStream out, boolean keepAlive) throws IOException {
+        long lamportValue = clock.onReceive(request.lamportClock());
+        String groupBy = request.groupBy() == null ? StationAggregates.ALL : request.groupBy();
+        if (aggregates == null) {
+            sendResponse(out, 404, "Not Found", clock.onSend(), "", keepAlive);
+            return;
+        }
+        ensureIndexed();
+        byte[] body = aggregates.toJson(groupBy, request.group());
+        if (body == null) {
+            sendResponse(out, 400, "Bad Request", clock.onSend(), "", keepAlive); // unknown grouping
+            return;
+        }
+        Log.debug(() -> "[Info] Aggregate GET by " + groupBy + " from: " + request.clientId() + " (Lamport = " + lamportValue + ")");
+        sendResponse(out, 200, "OK", clock.onSend(), body, keepAlive, "");
+    }
+
+    /**
+     * Stations around a point or in a box, found through the spatial grid. Nearest: "Near: lat,lon"
+     * and "Count: k" (1 by default), answered closest first. Box: "Box: minLat,minLon,maxLat,maxLon",
+     * minLon greater than maxLon crossing the antimeridian. Answered like a batch GET; in a cluster
+     * each node answers for the stations it owns.
+     */
+    private void serveSpatial(HttpRequestParser request, OutputStream out, boolean keepAlive) throws IOException {
+        long lamportValue = clock.onReceive(request.lamportClock());
+        boolean nearest = request.path().equals(NEAREST_PATH);
+        double[] coordinates = parseCoordinates(nearest ? request.near() : request.box(), nearest ? 2 : 4);
+        if (coordinates == null || (!nearest && coordinates[0] > coordinates[2])) {
+            sendResponse(out, 400, "Bad Request", clock.onSend(), "", keepAlive);
+            return;
+        }
+        Log.debug(() -> "[Info] " + (nearest ? "Nearest" : "Box") + " GET from: " + request.clientId() + " (Lamport = " + lamportValue + ")");
+
+        ensureIndexed();
+        List<String> ids = nearest
+                ? grid.nearest(coordinates[0], coordinates[1], (int) Math.min(MAX_NEAREST, Math.max(1, request.count())))
+                : grid.inBox(coordinates[0], coordinates[1], coordinates[2], coordinates[3]);
+        List<byte[]> found = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            byte[] json = readStation(id);
+            if (json != null) found.add(json); // removed since the grid was read
+        }
+        sendResponse(out, 200, "OK", clock.onSend(), jsonArray(found), keepAlive, "");
+        Log.debug(() -> "[Respond] Send " + found.size() + " stations (Lamport = " + clock.get() + ")");
+    }
+
+    /**
+     * Comma separated lat,lon pairs of a spatial query
+     * @param value (String) header value, may be null
+     * @param count (int) numbers expected
+     * @return lat, lon, ... or null when absent, malformed or out of range
+     */
+    private static double[] parseCoordinates(String value, int count) {
+        if (value == null) return null;
+        String[] parts = value.split(",");
+        if (parts.length != count) return null;
+        double[] coordinates = new double[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                coordinates[i] = Double.parseDouble(parts[i].trim());
+                double limit = i % 2 == 0 ? 90 : 180;
+                if (!(Math.abs(coordinates[i]) <= limit)) return null; // NaN too
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return coordinates;
+    }
+
+    /**
+     * Batch PUT: the body is a JSON array of station records, acknowledged by one response
+     */
+    private void serveBatchPut(HttpRequestParser request, OutputStream out, boolean keepAlive, long receivedAt) throws Exception {
+        // The last record of a station wins, every record of a batch carries the same Lamport value
+        Map<String, WeatherData> bodies = new LinkedHashMap<>();
+        try {
+            for (WeatherData body : WeatherCodec.decodeArray(request.body(), 0, request.contentLength())) {
+                if (body.id() == null) {
+                    bodies.clear();
+                    break;
+                }
+                bodies.put(body.id(), body);
+            }
+        } catch (JsonParseException e) {
+            bodies.clear();
+        }
+        if (bodies.isEmpty()) {
+            sendResponse(out, 400, "Bad Request", clock.onSend(), "", keepAlive);
+            return;
+        }
+        if (cluster != null && !bodies.keySet().stream().allMatch(cluster::owns)) {
+            // Stations of several nodes: the content server splits the batch along the ring it is sent
+            misroutedCount.incrementAndGet();
+            clock.onReceive(request.lamportClock());
+            sendResponse(out, 421, "Misdirected Request", clock.onSend(), "", keepAlive, "ClusterNodes: " + cluster.getRing().toHeader() + "\r\n");
+            return;
+        }
+        if (shedLoad(request, out, keepAlive, bodies.size())) return;
+
+        Log.debug(() -> "[Info] Batch of " + bodies.size() + " stations from: " + request.serverId() + " with external Lamport = " + request.lamportClock());
+        boolean allExist = bodies.keySet().stream().allMatch(this::hasStationId);
+
+        CompletableFuture<Void> applied = queueBatch(request.serverId(), request.lamportClock(), bodies.values());
+        metrics.acceptToEnqueue.record(System.nanoTime() - receivedAt);
+        if (!awaitApplied(applied, out, keepAlive)) return;
+
+        sendResponse(out, allExist ? 200 : 201, allExist ? "OK" : "Created", clock.onSend(), "", keepAlive);
+        Log.debug(() -> "[Respond] Send response (Lamport = " + clock.get() + ")");
+    }
+
+    /**
+     * Long-poll: answer with the subscribed stations that have a version newer than the Since
+     * header, as soon as there is one. The connection is parked without a thread until then.
+     * @param connection (Connection)
+     * @param keepAlive (boolean)
+     * @return true when the connection was parked, false when the request was refused
+     * @throws IOException
+     */
+    private boolean serveSubscribe(Connection connection, boolean keepAlive) throws IOException {
+        HttpRequestParser request = connection.request;
+        long lamportValue = clock.onReceive(request.lamportClock());
+        String ids = request.stationIds();
+        if (ids == null || ids.isBlank()) {
+            sendResponse(connection.out, 400, "Bad Request", clock.onSend(), "", false);
+            return false;
+        }
+        List<String> stationIds = new ArrayList<>();
+        for (String id : ids.split(",")) {
+            stationIds.add(id.trim());
+        }
+        long since = request.since();
+        Log.debug(() -> "[Info] Subscription from: " + request.clientId() + " to " + ids + " since " + since + " (Lamport = " + lamportValue + ")");
+
+        // Register before looking at storage: an update applied meanwhile is caught by one or the other
+        SubscriptionHub.Subscriber<Connection> subscriber = subscriptions.subscribe(stationIds, since, connection);
+        List<byte[]> found = new ArrayList<>();
+        long version = since;
+        if (stationIds.contains(SubscriptionHub.EVERY_STATION)) {
+            for (WeatherRecord record : storage.values()) {
+                if (record.lamport > since) {
+                    found.add(record.json());
+                    version = Math.max(version, record.lamport);
+                }
+            }
+        } else {
+            for (String id : stationIds) {
+                WeatherRecord record = storage.get(id);
+                if (record != null && record.lamport > since) {
+                    found.add(record.json());
+                    version = Math.max(version, record.lamport);
+                }
+            }
+        }
+        if (!found.isEmpty()) {
+            subscriptions.complete(subscriber, found, version);
+        }
+        return true;
+    }
+
+    /**
+     * Answer a completed subscription on a connection thread, then go on serving the connection
+     * @param connection (Connection)
+     * @param stations (List) bodies to send, empty when the long-poll timed out
+     * @param version (long) sent as StationVersion, the Since of the next subscription
+     */
+    private void deliver(Connection connection, List<byte[]> stations, long version) {
+        Runnable answer = () -> {
+            try {
+                String versionHeader = "StationVersion: " + version + "\r\n";
+                if (stations.isEmpty()) {
+                    sendResponse(connection.out, 204, "No Content", clock.onSend(), new byte[0], connection.keepAlive, versionHeader);
+                } else {
+                    sendResponse(connection.out, 200, "OK", clock.onSend(), jsonArray(stations), connection.keepAlive, versionHeader);
+                }
+            } catch (IOException e) {
+                connection.close();
+                return;
+            }
+            if (connection.keepAlive) {
+                serve(connection, 0, false);
+            } else {
+                connection.close();
+            }
+        };
+        ExecutorService executor = connections;
+        try {
+            if (executor == null) throw new RejectedExecutionException("Server not started");
+            executor.execute(answer);
+        } catch (RejectedExecutionException e) {
+            connection.close();
+        }
+    }
+
+    private static byte[] jsonArray(List<byte[]> bodies) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write('[');
+        for (int i = 0; i < bodies.size(); i++) {
+            if (i > 0) body.write(',');
+            body.write(bodies.get(i), 0, bodies.get(i).length);
+        }
+        body.write(']');
+        return body.toByteArray();
+    }
+
+    /**
+     * A replica only serves reads, PUTs are sent to the primary
+     */
+    private void redirectToPrimary(HttpRequestParser request, OutputStream out, boolean keepAlive) throws IOException {
+        clock.onReceive(request.lamportClock());
+        String location = "Location: http://" + follower.getPrimary() + request.path() + "\r\n";
+        sendResponse(out, 307, "Temporary Redirect", clock.onSend(), "", keepAlive, location);
+    }
+
+    /**
+     * A station of another node: send the client there, along with the ring to route by from now on
+     */
+    private void redirectToOwner(HttpRequestParser request, OutputStream out, boolean keepAlive, String stationId) throws IOException {
+        clock.onReceive(request.lamportClock());
+        misroutedCount.incrementAndGet();
+        HashRing ring = cluster.getRing();
+        String headers = "Location: http://" + ring.owner(stationId) + request.path() + "\r\n" +
+                         "ClusterNodes: " + ring.toHeader() + "\r\n";
+        sendResponse(out, 307, "Temporary Redirect", clock.onSend(), "", keepAlive, headers);
+    }
+
+    /**
+     * Membership change announced by a node: adopt its ring, the stations that moved are handed over
+     * by the scheduler
+     */
+    private void serveClusterNodes(HttpRequestParser request, OutputStream out, boolean keepAlive) throws IOException {
+        clock.onReceive(request.lamportClock());
+        HashRing ring;
+        try {
+            ring = HashRing.parse(request.clusterNodes());
+        } catch (NullPointerException | IllegalArgumentException e) {
+            sendResponse(out, 400, "Bad Request", clock.onSend(), "", keepAlive);
+            return;
+        }
+        if (cluster.adopt(ring)) {
+            rebalanceNeeded = true;
+            Log.info("[Cluster] Adopt ring " + ring + " announced by " + request.serverId());
+        }
+        sendResponse(out, 200, "OK", clock.onSend(), "", keepAlive, "ClusterNodes: " + cluster.getRing().toHeader() + "\r\n");
+    }
+
+    /**
+     * Stations handed over by their previous owner. They go through the lanes with the versions they
+     * had there, after this node's clock caught up with them, and never replace an update that reached
+     * this node directly. Answered once they are durable whatever the PUT mode: the sender drops its copy then.
+     */
+    private void serveHandoff(HttpRequestParser request, OutputStream out, boolean keepAlive) throws Exception {
+        List<WriteAheadLog.Entry> entries = new ArrayList<>();
+        try {
+            for (String line : request.bodyAsString().split("\n")) {
+                if (line.isBlank()) continue;
+                WriteAheadLog.Entry entry = WriteAheadLog.decode(line);
+                if (entry.op().equals(WriteAheadLog.PUT) && entry.json() != null) entries.add(entry);
+            }
+        } catch (RuntimeException e) {
+            sendResponse(out, 400, "Bad Request", clock.onSend(), "", keepAlive);
+            return;
+        }
+        if (shedLoad(request, out, keepAlive, entries.size())) return;
+
+        clock.onReceive(request.lamportClock());
+        CompletableFuture<?>[] applied = new CompletableFuture<?>[entries.size()];
+        for (int i = 0; i < applied.length; i++) {
+            WriteAheadLog.Entry entry = entries.get(i);
+            clock.onReceive(entry.lamport());
+            applied[i] = enqueue(HANDOFF, entry.serverId(), -1, -1, entry.lamport(), entry.data()).applied;
+            if (!cluster.owns(entry.stationId())) rebalanceNeeded = true; // the rings still disagree
+        }
+        try {
+            CompletableFuture.allOf(applied).get(KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            sendResponse(out, 503, "Service Unavailable", clock.onSend(), "", keepAlive, "Retry-After: " + retryAfterSeconds + "\r\n");
+            return;
+        } catch (ExecutionException e) {
+            sendResponse(out, 500, "Internal Server Error", clock.onSend(), "", keepAlive); // not logged, the old owner keeps them
+            return;
+        }
+        takenOverCount.addAndGet(entries.size());
+        sendResponse(out, 200, "OK", clock.onSend(), "", keepAlive);
+        Log.debug(() -> "[Respond] Took over " + entries.size() + " stations from " + request.serverId());
+    }
+
+    /**
+     * Log shipping: the connection becomes a stream of applied updates to one replica, written by a
+     * thread of its own until the replica disconnects
+     * @param connection (Connection)
+     */
+    private void serveReplication(Connection connection) {
+        HttpRequestParser request = connection.request;
+        long lamportValue = clock.onReceive(request.lamportClock());
+        long since = request.since();
+        long replicaEpoch = request.replicationEpoch();
+        Log.info("[Replication] Replica " + connection.socket.getRemoteSocketAddress() + " streams from " + since + " (Lamport = " + lamportValue + ")");
+
+        replicaStreams.add(connection);
+        Thread sender = new Thread(() -> {
+            try {
+                String head = "HTTP/1.1 200 OK\r\n" +
+                              "Content-Type: text/plain; charset=utf-8\r\n" +
+                              "LamportClock: " + clock.onSend() + "\r\n" +
+                              "ReplicationEpoch: " + replication.getEpoch() + "\r\n" +
+                              "Connection: close\r\n" +
+                              "\r\n";
+                connection.out.write(head.getBytes(StandardCharsets.US_ASCII));
+                replication.ship(connection.out, replicaEpoch, since, this::replicationSnapshot, () -> running);
+            } catch (IOException | InterruptedException e) {
+                Log.debug(() -> "[Replication] Stream closed: " + e.getMessage());
+            } finally {
+                replicaStreams.remove(connection);
+                connection.close();
+            }
+        }, "Replication-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Batch GET: "StationIds: a,b,c", "StationIds: *" for every station or "StationPrefix: p".
+     * Answers one JSON array of the stations found, built from their pre-serialized bodies.
+     */
+    private void serveBatchGet(HttpRequestParser request, OutputStream out, boolean keepAlive) throws IOException {
+        long lamportValue = clock.onReceive(request.lamportClock());
+        Log.debug(() -> "[Info] Batch GET from: " + request.clientId() + " (Lamport = " + lamportValue + ")");
+
+        List<byte[]> found = new ArrayList<>();
+        String ids = request.stationIds();
+        String prefix = request.stationPrefix();
+        if (ids != null && !ids.equals("*")) {
+            for (String id : ids.split(",")) {
+                byte[] json = readStation(id.trim());
+                if (json != null) found.add(json);
+            }
+        } else if (ids != null || prefix != null) {
+            for (Map.Entry<String, WeatherRecord> entry : storage.entrySet()) {
+                if (prefix == null || entry.getKey().startsWith(prefix)) {
+                    found.add(entry.getValue().json());
+                }
+            }
+        } else {
+            sendResponse(out, 400, "Bad Request", clock.onSend(), "", keepAlive);
+            return;
+        }
+
+        sendResponse(out, 200, "OK", clock.onSend(), jsonArray(found), keepAlive, "");
+        Log.debug(() -> "[Respond] Send " + found.size() + " stations (Lamport = " + clock.get() + ")");
+    }
+
+    /**
+     * Prometheus scrape. Not a message between processes of the system, so it neither needs
+     * a LamportClock header nor ticks the clock.
+     */
+    private void serveMetrics(OutputStream out, boolean keepAlive) throws IOException {
+        byte[] body = renderMetrics().getBytes(StandardCharsets.UTF_8);
+        sendResponse(out, 200, "OK", clock.get(), "text/plain; version=0.0.4", body, keepAlive, "");
+    }
+
+    /**
+     * Metrics in the Prometheus text exposition format
+     * @return String
+     */
+    String renderMetrics() {
+        StringBuilder sb = new StringBuilder(8 * 1024);
+        metrics.write(sb);
+        ServerMetrics.counter(sb, "aggregation_put_applied_total", "PUT updates applied to storage", appliedCount.get());
+        ServerMetrics.counter(sb, "aggregation_put_stale_total", "PUT updates dropped, not newer than the stored version", staleCount.get());
+        ServerMetrics.counter(sb, "aggregation_put_coalesced_total", "Queued PUT updates superseded by a newer update of the same station", coalescedCount.get());
+        ServerMetrics.counter(sb, "aggregation_put_delta_total", "Delta PUTs received", deltasReceived.get());
+        ServerMetrics.counter(sb, "aggregation_put_delta_rejected_total", "Delta PUTs refused with 409, base version not current", deltasRejected.get());
+        ServerMetrics.gauge(sb, "aggregation_subscribers", "Long-poll subscriptions waiting for an update", subscriptions.getWaiting());
+        ServerMetrics.counter(sb, "aggregation_subscription_pushes_total", "Subscriptions answered with an applied update", subscriptions.getPushes());
+        ServerMetrics.counter(sb, "aggregation_put_unchanged_total", "PUT updates with unchanged content, version refreshed without a disk write", unchangedCount.get());
+        ServerMetrics.counter(sb, "aggregation_expired_total", "Stations removed after their TTL", expiredCount.get());
+        ServerMetrics.counter(sb, "aggregation_log_dropped_total", "Log lines dropped because the log ring was full", Log.getDropped());
+        ServerMetrics.gauge(sb, "aggregation_lamport_clock", "Local Lamport clock, its deriv() is the clock advance rate", clock.get());
+        ServerMetrics.gauge(sb, "aggregation_stations", "Stations in storage", storage.size());
+        if (history != null) {
+            ServerMetrics.gauge(sb, "aggregation_history_observations", "Observations kept in the station histories", history.entryCount());
+        }
+        ServerMetrics.gauge(sb, "aggregation_grid_stations", "Stations located in the spatial grid, restored ones from the first spatial or aggregate query on", grid.size());
+        ServerMetrics.gauge(sb, "aggregation_pending_updates", "PUT updates admitted but not applied yet", pending.get());
+        ServerMetrics.gauge(sb, "aggregation_replication_head", "Sequence of the newest update in the replication log", replication.getHead());
+        ServerMetrics.gauge(sb, "aggregation_replication_streams", "Replicas streaming the replication log", replication.getStreams());
+        ServerMetrics.counter(sb, "aggregation_replication_snapshots_total", "Snapshots sent to new or lagging replicas", replication.getSnapshots());
+        if (cluster != null) {
+            ServerMetrics.gauge(sb, "aggregation_cluster_nodes", "Nodes on the consistent-hash ring", cluster.getRing().nodes().size());
+            ServerMetrics.counter(sb, "aggregation_cluster_misrouted_total", "Requests for stations of another node, redirected", misroutedCount.get());
+            ServerMetrics.counter(sb, "aggregation_cluster_handed_off_total", "Stations handed over to a new owner", handedOffCount.get());
+            ServerMetrics.counter(sb, "aggregation_cluster_taken_over_total", "Stations taken over from their previous owner", takenOverCount.get());
+        }
+        if (follower != null) {
+            follower.getLag().writePrometheus(sb, "aggregation_replica_lag_seconds",
+                    "Time from applying an update on the primary to applying it on this replica");
+            ServerMetrics.gauge(sb, "aggregation_replica_lag_entries", "Updates applied on the primary and not yet here", follower.getLagEntries());
+            ServerMetrics.gauge(sb, "aggregation_replica_connected", "Whether the stream from the primary is open", follower.isConnected() ? 1 : 0);
+        }
+
+        ServerMetrics.header(sb, "aggregation_lane_depth", "Updates queued in each consumer lane", "gauge");
+        for (int i = 0; i < lanes.length; i++) {
+            sb.append("aggregation_lane_depth{lane=\"").append(i).append("\"} ").append(lanes[i].size()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Read the next request of a connection into the parser, reusing one buffer for the whole connection
+     * @param in
+     * @param buf buffer in read mode, may already hold bytes of the next request
+     * @param parser
+     * @return System.nanoTime() when the first bytes of the request were available,
+     * CONNECTION_CLOSED when the client closed the connection between two requests
+     * @throws IOException
+     */
+    private long readRequest(InputStream in, ByteBuffer buf, HttpRequestParser parser) throws IOException {
+        parser.reset();
+        long arrivedAt = System.nanoTime();
+        boolean waiting = !buf.hasRemaining();
+        while (!parser.parse(buf)) {
+            buf.clear(); // the parser consumed every buffered byte
+            int n = in.read(buf.array(), 0, buf.capacity());
+            if (n == -1) {
+                if (parser.isStarted()) throw new EOFException("Connection closed in the middle of a request");
+                return CONNECTION_CLOSED;
+            }
+            buf.limit(n);
+            if (waiting) {
+                arrivedAt = System.nanoTime();
+                waiting = false;
+            }
+        }
+        return arrivedAt;
+    }
+
+    /**
+     * State of one client connection. It outlives the worker thread while a subscription is parked.
+     */
+    private static final class Connection implements Closeable {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        final ByteBuffer buf = ByteBuffer.allocate(8 * 1024).limit(0);
+        final HttpRequestParser request = new HttpRequestParser();
+        boolean keepAlive = true;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = socket.getInputStream();
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void handleClient(Socket socket, long acceptedAt) {
+        Connection connection;
+        try {
+            socket.setSoTimeout(KEEP_ALIVE_MILLIS);
+            connection = new Connection(socket);
+        } catch (IOException e) {
+            Log.warn("[Connection] " + e);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+        serve(connection, acceptedAt, true);
+    }
+
+    /**
+     * Serve the requests of a connection until it closes or parks on a subscription
+     * @param connection (Connection)
+     * @param acceptedAt (long) when the connection was accepted
+     * @param first (boolean) whether the next request is the first one of the connection
+     */
+    private void serve(Connection connection, long acceptedAt, boolean first) {
+        boolean parked = false;
+        try {
+            OutputStream out = connection.out;
+            HttpRequestParser request = connection.request;
+            boolean keepAlive = connection.keepAlive;
+            while (keepAlive && running) {
+                long arrivedAt;
+                try {
+                    arrivedAt = readRequest(connection.in, connection.buf, request);
+                    if (arrivedAt == CONNECTION_CLOSED) break; // client closed the connection
+                } catch (IllegalArgumentException e) {
+                    sendResponse(out, 400, "Bad Request", clock.onSend(), "", false);
+                    break;
+                }
+                // The first request of a connection also waited for a worker thread since the accept
+                long receivedAt = first ? acceptedAt : arrivedAt;
+                first = false;
+
+                if (request.method().equals("GET") && request.path().equals(METRICS_PATH)) {
+                    keepAlive = keepAlive(request);
+                    serveMetrics(out, keepAlive);
+                    continue;
+                }
+
+                String requestType = request.method();
+                keepAlive = keepAlive(request);
+                connection.keepAlive = keepAlive;
+                Log.debug(requestType);
+                Log.debug(() -> "[Info] Current local Lamport = " + clock.get());
+
+                boolean batch = request.path().equals(BATCH_PATH);
+                if (request.lamportClock() < 0) {
+                    sendResponse(out, 400, "Bad Request", clock.onSend(), "", false);
+                    keepAlive = false;
+                } else if (!clock.isPlausible(request.lamportClock())) {
+                    // Merging a timestamp from a clock far in the future would drag every peer along
+                    metrics.clockRejected.increment();
+                    sendResponse(out, 400, "Bad Request", clock.onSend(), "", keepAlive);
+                    Log.debug(() -> "[Respond] Reject timestamp " + request.lamportClock() + " too far in the future");
+                } else if (requestType.equals("PUT") && follower != null) {
+                    redirectToPrimary(request, out, keepAlive);
+                } else if (requestType.equals("PUT") && cluster != null && request.path().equals(Cluster.NODES_PATH)) {
+                    serveClusterNodes(request, out, keepAlive);
+                } else if (requestType.equals("PUT") && cluster != null && request.path().equals(Cluster.HANDOFF_PATH)) {
+                    serveHandoff(request, out, keepAlive);
+                } else if (requestType.equals("PUT") && batch) {
+                    serveBatchPut(request, out, keepAlive, receivedAt);
+                } else if (requestType.equals("PUT")) {
+                    servePut(request, out, keepAlive, receivedAt);
+                } else if (requestType.equals("GET") && request.path().equals(SUBSCRIBE_PATH)) {
+                    if (serveSubscribe(connection, keepAlive)) {
+                        parked = true; // answered later, from the thread that completes the subscription
+                        return;
+                    }
+                    keepAlive = false;
+                } else if (requestType.equals("GET") && request.path().equals(REPLICATION_PATH)) {
+                    serveReplication(connection);
+                    parked = true; // the sender thread owns the connection now
+                    return;
+                } else if (requestType.equals("GET") && request.path().equals(HISTORY_PATH)) {
+                    serveHistory(request, out, keepAlive);
+                    metrics.getService.record(System.nanoTime() - arrivedAt);
+                } else if (requestType.equals("GET") && request.path().equals(AGGREGATE_PATH)) {
+                    serveAggregate(request, out, keepAlive);
+                    metrics.getService.record(System.nanoTime() - arrivedAt);
+                } else if (requestType.equals("GET") && (request.path().equals(NEAREST_PATH) || request.path().equals(BOX_PATH))) {
+                    serveSpatial(request, out, keepAlive);
+                    metrics.getService.record(System.nanoTime() - arrivedAt);
+                } else if (requestType.equals("GET") && batch) {
+                    serveBatchGet(request, out, keepAlive);
+                    metrics.getService.record(System.nanoTime() - arrivedAt);
+                } else if (requestType.equals("GET")) {
+                    serveGet(request, out, keepAlive);
+                    metrics.getService.record(System.nanoTime() - arrivedAt);
+                } else {
+                    sendResponse(out, 400, "Bad Request", clock.onSend(), "", false);
+                    keepAlive = false;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // idle persistent connection, close it
+        } catch (IOException e) {
+            Log.warn("[Connection] " + e);
+        } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            if (!parked) connection.close();
         }
     }
 }
@@ -0,0 +1,134 @@
+package aggregation;
+
+import utilize.ConnectionPool;
+import utilize.HashRing;
+import utilize.LogicalClock;
+import utilize.ReqResParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Membership of one aggregation server in a sharded cluster: the consistent-hash ring of every node,
+ * this node's name on it, and the requests nodes send each other. A node that joins (or a ring
+ * change an operator sends to one node) is announced to every member with PUT /cluster/nodes. Each
+ * member adopts the new ring and hands the stations it no longer owns to their owner with
+ * PUT /cluster/handoff, versions included.
+ */
+final class Cluster {
+    static final String NODES_PATH = "/cluster/nodes";
+    static final String HANDOFF_PATH = "/cluster/handoff";
+    static final int HANDOFF_CHUNK = 1024; // stations per handoff request
+
+    private final String self;
+    private final LogicalClock clock;
+    private final ConnectionPool pool = new ConnectionPool();
+    private volatile HashRing ring;
+
+    /**
+     * @param self (String) host:port of this node, as written in the node list
+     * @param ring (HashRing) initial membership
+     * @param clock (LogicalClock) clock of the server, stamped on every request between nodes
+     */
+    Cluster(String self, HashRing ring, LogicalClock clock) {
+        this.self = self;
+        this.ring = ring;
+        this.clock = clock;
+    }
+
+    String getSelf() {
+        return self;
+    }
+
+    HashRing getRing() {
+        return ring;
+    }
+
+    /**
+     * @param stationId (String)
+     * @return host:port of the node the station belongs to
+     */
+    String ownerOf(String stationId) {
+        return ring.owner(stationId);
+    }
+
+    boolean owns(String stationId) {
+        return ring.owner(stationId).equals(self);
+    }
+
+    /**
+     * Take a new membership
+     * @param next (HashRing)
+     * @return true when it differs from the current one
+     */
+    synchronized boolean adopt(HashRing next) {
+        if (next.equals(ring)) return false;
+        ring = next;
+        return true;
+    }
+
+    /**
+     * Send the current ring to another member. Its answer carries its clock, merged here: stations
+     * that node hands over afterwards are older than anything this node stamps from then on.
+     * @param node (String) host:port
+     * @throws IOException when the node is down or refused the ring
+     */
+    void announce(String node) throws IOException {
+        int status = send(node, NODES_PATH, "ClusterNodes: " + ring.toHeader() + "\r\n", new byte[0]);
+        if (status != 200) throw new IOException("Node " + node + " refused the ring with " + status);
+    }
+
+    /**
+     * Hand stations over to their new owner, which applies them with their own versions
+     * @param node (String) host:port of the owner
+     * @param entries (List) PUT entries, at most {@link #HANDOFF_CHUNK}
+     * @throws IOException unless the owner answered once every entry was durably applied
+     */
+    void handOff(String node, List<WriteAheadLog.Entry> entries) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(entries.size() * 512);
+        for (WriteAheadLog.Entry entry : entries) {
+            WriteAheadLog.encode(entry, body);
+            body.write('\n');
+        }
+        int status = send(node, HANDOFF_PATH, "", body.toByteArray());
+        if (status != 200) throw new IOException("Node " + node + " refused the handoff with " + status);
+    }
+
+    private int send(String node, String path, String extraHeaders, byte[] body) throws IOException {
+        String[] parts = node.split(":");
+        ConnectionPool.Connection conn = pool.acquire(parts[0], Integer.parseInt(parts[1]));
+        try {
+            String request = "PUT " + path + " HTTP/1.1\r\n" +
+                             "ServerId: " + self + "\r\n" +
+                             "LamportClock: " + clock.onSend() + "\r\n" +
+                             extraHeaders +
+                             "Connection: keep-alive\r\n" +
+                             "Content-Length: " + body.length + "\r\n" +
+                             "\r\n";
+            conn.out().print(request);
+            // The writer encodes UTF-8, so the bytes sent are the bytes counted
+            conn.out().print(new String(body, StandardCharsets.UTF_8));
+            conn.out().flush();
+
+            String[] response = ReqResParser.splitHeaderAndBodyFromRequest(conn.in());
+            if (response[0].isEmpty()) throw new EOFException("Connection closed by " + node);
+            ReqResParser.Header header = ReqResParser.readHeader(response[0]);
+            clock.onReceive(Long.parseLong(header.metadata().get("LamportClock")));
+            pool.release(conn, "keep-alive".equalsIgnoreCase(header.metadata().get("Connection")));
+            return Integer.parseInt(response[0].split(" ", 3)[1]);
+        } catch (IOException e) {
+            pool.discard(conn);
+            throw e;
+        } catch (Exception e) {
+            pool.discard(conn);
+            throw new IOException(e);
+        }
+    }
+
+    void close() {
+        pool.close();
+    }
+}
@@ -0,0 +1,113 @@
+package aggregation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Timing wheel of station deadlines. Touching a station moves it to the slot of its new deadline,
+ * advancing the wheel only visits the slots whose time has passed, so expiring k stations costs
+ * O(k) whatever the number of stations. Deadlines are precise to one tick.
+ */
+public class ExpiryWheel {
+    private final long ttlMillis;
+    private final long tickMillis;
+    private final List<Set<String>> slots;
+    private final Map<String, Long> deadlines = new ConcurrentHashMap<>();
+    private volatile long doneTick; // every slot up to this tick has been emptied, only written by advance()
+
+    public ExpiryWheel(long ttlMillis, long tickMillis, long now) {
+        if (ttlMillis <= 0 || tickMillis <= 0) {
+            throw new IllegalArgumentException("TTL and tick must be positive");
+        }
+        this.ttlMillis = ttlMillis;
+        this.tickMillis = tickMillis;
+        // One revolution must cover a full TTL, plus the tick being filled and the tick being drained
+        int size = (int) (ttlMillis / tickMillis) + 2;
+        this.slots = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            slots.add(ConcurrentHashMap.newKeySet());
+        }
+        this.doneTick = now / tickMillis - 1;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Number of stations with a pending deadline
+     * @return count
+     */
+    public int size() {
+        return deadlines.size();
+    }
+
+    public boolean contains(String key) {
+        return deadlines.containsKey(key);
+    }
+
+    /**
+     * Reset the deadline of a station to now + TTL. A deadline already passed (a station restored
+     * with an old update time) is moved to the next tick the wheel drains: its own slot may have
+     * just been emptied, and would only be visited again a whole revolution later.
+     * @param key (String)
+     * @param now (long) current time in milliseconds
+     */
+    public void touch(String key, long now) {
+        long deadline = Math.max(now + ttlMillis, (doneTick + 1) * tickMillis);
+        Long old = deadlines.put(key, deadline);
+        if (old != null && slotOf(old) != slotOf(deadline)) {
+            slotOf(old).remove(key);
+        }
+        slotOf(deadline).add(key);
+    }
+
+    /**
+     * Forget a station without expiring it
+     * @param key (String)
+     */
+    public void remove(String key) {
+        Long old = deadlines.remove(key);
+        if (old != null) {
+            slotOf(old).remove(key);
+        }
+    }
+
+    /**
+     * Collect every station whose deadline is at or before now. A station touched concurrently keeps its new deadline.
+     * @param now (long) current time in milliseconds
+     * @return expired stations
+     */
+    public List<String> advance(long now) {
+        List<String> expired = new ArrayList<>();
+        long nowTick = now / tickMillis;
+        long from = Math.max(doneTick + 1, nowTick - slots.size() + 1);
+
+        for (long tick = from; tick <= nowTick; tick++) {
+            Set<String> slot = slots.get((int) (tick % slots.size()));
+            for (String key : slot) {
+                Long deadline = deadlines.get(key);
+                if (deadline == null) {
+                    slot.remove(key);
+                } else if (deadline <= now && deadlines.remove(key, deadline)) {
+                    slot.remove(key);
+                    expired.add(key);
+                }
+            }
+        }
+        // The current tick may still hold deadlines later than now, visit it again next time
+        doneTick = nowTick - 1;
+        return expired;
+    }
+
+    private Set<String> slotOf(long deadline) {
+        return slots.get((int) ((deadline / tickMillis) % slots.size()));
+    }
+}
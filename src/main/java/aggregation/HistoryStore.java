@@ -0,0 +1,220 @@
+package aggregation;
+
+import utilize.Log;
+import utilize.WeatherData;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Observation histories of every station, persisted next to the snapshot in an append-only log of
+ * fixed-layout binary records. Records are buffered and written once per applied batch, without an
+ * fsync: the write-ahead log stays the durable copy of the latest versions, and the restore replays
+ * it into the histories as well. Once the log holds several times what the rings can keep it is
+ * rewritten from the rings.
+ * <p>
+ * Layout (big endian): header magic "WHST", int version, then per observation short id length,
+ * id bytes, long Lamport, long local_date_time_full, one float per {@link StationHistory#COLUMNS}.
+ */
+final class HistoryStore implements Closeable {
+    static final int MAGIC = 0x57485354; // "WHST"
+    static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 4;
+    private static final int VALUE_BYTES = 8 + 8 + 4 * StationHistory.COLUMNS.length;
+    private static final int REWRITE_FACTOR = 4;
+
+    private final Path path; // null: kept in memory only
+    private final int capacity;
+    private final Map<String, StationHistory> stations = new ConcurrentHashMap<>();
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private FileChannel channel;
+    private long logged; // observations in the log file
+
+    /**
+     * @param path (Path) history log, null to keep the histories in memory only
+     * @param capacity (int) observations kept per station
+     */
+    HistoryStore(Path path, int capacity) {
+        this.path = path;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Read the log back into the histories and open it for appending. A torn last record is dropped.
+     * @throws IOException when the log cannot be read or written, it is not used then
+     */
+    synchronized void load() throws IOException {
+        if (path == null) return;
+        if (Files.exists(path)) {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (in.remaining() < HEADER_BYTES || in.getInt() != MAGIC || in.getInt() != VERSION) {
+                Log.warn("[Restore] " + path + " is not a history log of version " + VERSION + ", start an empty one");
+                in.position(in.limit());
+            }
+            while (in.remaining() >= 2) {
+                int idLength = in.getShort() & 0xFFFF;
+                if (in.remaining() < idLength + VALUE_BYTES) break;
+                String stationId = new String(in.array(), in.position(), idLength, StandardCharsets.UTF_8);
+                in.position(in.position() + idLength);
+                long lamport = in.getLong();
+                long time = in.getLong();
+                of(stationId).append(lamport, time, in);
+                logged++;
+            }
+        }
+        rewrite(); // also truncates a torn tail
+    }
+
+    StationHistory get(String stationId) {
+        return stations.get(stationId);
+    }
+
+    private StationHistory of(String stationId) {
+        return stations.computeIfAbsent(stationId, id -> new StationHistory(id, capacity));
+    }
+
+    /**
+     * Add the observation of an applied version to its station's history and to the log buffer
+     * @param stationId (String)
+     * @param lamport (long)
+     * @param data (WeatherData)
+     */
+    void record(String stationId, long lamport, WeatherData data) {
+        StationHistory history = of(stationId);
+        if (!history.append(lamport, data) || path == null) return;
+        synchronized (this) {
+            if (channel == null) return; // closed
+            if (buffer.remaining() < 2 + history.idBytes.length + VALUE_BYTES) {
+                flushBuffer();
+            }
+            buffer.putShort((short) history.idBytes.length).put(history.idBytes);
+            buffer.putLong(lamport).putLong(StationHistory.parseTime(data.text("local_date_time_full")));
+            for (String column : StationHistory.COLUMNS) {
+                buffer.putFloat((float) StationAggregates.numberOf(data, column));
+            }
+            logged++;
+        }
+    }
+
+    /**
+     * Write the buffered observations, called once per applied batch
+     */
+    synchronized void flush() {
+        if (channel == null || buffer.position() == 0) return;
+        flushBuffer();
+        if (logged > (long) REWRITE_FACTOR * capacity * Math.max(1, stations.size())) {
+            try {
+                rewrite();
+            } catch (IOException e) {
+                Log.error("Rewrite history log failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void flushBuffer() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            Log.error("Append history log failed: " + e.getMessage());
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Replace the log with the observations currently kept
+     * @throws IOException
+     */
+    private void rewrite() throws IOException {
+        if (path == null) return;
+        if (channel != null) {
+            flushBuffer();
+            channel.close();
+            channel = null;
+        }
+        Path tmp = path.resolveSibling(path.getFileName().toString() + ".tmp");
+        long count = 0;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+            chunk.putInt(MAGIC).putInt(VERSION);
+            for (StationHistory history : stations.values()) {
+                StationHistory.Range range = history.all();
+                for (int i = 0; i < range.size(); i++) {
+                    if (chunk.remaining() < 2 + history.idBytes.length + VALUE_BYTES) {
+                        write(out, chunk);
+                    }
+                    chunk.putShort((short) history.idBytes.length).put(history.idBytes);
+                    chunk.putLong(range.lamports()[i]).putLong(range.times()[i]);
+                    for (float[] column : range.columns()) {
+                        chunk.putFloat(column[i]);
+                    }
+                    count++;
+                }
+            }
+            write(out, chunk);
+            out.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        logged = count;
+    }
+
+    private static void write(FileChannel out, ByteBuffer chunk) throws IOException {
+        chunk.flip();
+        while (chunk.hasRemaining()) {
+            out.write(chunk);
+        }
+        chunk.clear();
+    }
+
+    /**
+     * Forget a station that expired or moved to another node
+     * @param stationId (String)
+     */
+    void remove(String stationId) {
+        stations.remove(stationId);
+    }
+
+    /**
+     * Forget every station not in a set, e.g. the stations left after a restore
+     * @param stationIds (Set)
+     */
+    void retain(Set<String> stationIds) {
+        stations.keySet().retainAll(stationIds);
+    }
+
+    /**
+     * @return observations kept in memory, over every station
+     */
+    long entryCount() {
+        long count = 0;
+        for (StationHistory history : stations.values()) {
+            count += history.size();
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (channel == null) return;
+        flushBuffer();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+}
@@ -0,0 +1,193 @@
+package aggregation;
+
+import utilize.LatencyHistogram;
+import utilize.Log;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+/**
+ * Replica side of log shipping: one thread keeps a stream open to the primary and hands every entry
+ * to the local storage. After a disconnect it reconnects with the last applied sequence, so it only
+ * gets a snapshot again when the primary restarted or no longer retains that sequence.
+ */
+final class ReplicaFollower {
+    static final String STREAM_PATH = "/replication/stream";
+    private static final long RETRY_MILLIS = 1000;
+
+    /**
+     * Applies shipped entries to the replica's storage, called from the follower thread only
+     */
+    interface Applier {
+        /**
+         * @param entry (WriteAheadLog.Entry) PUT or DEL
+         * @param snapshot (boolean) part of a snapshot: applied as it is, not compared with the stored version
+         */
+        void apply(WriteAheadLog.Entry entry, boolean snapshot);
+
+        /**
+         * End of a snapshot: drop every station it did not hold
+         * @param stationIds (Set)
+         */
+        void retain(Set<String> stationIds);
+    }
+
+    private final String host;
+    private final int port;
+    private final Applier applier;
+    private final LongSupplier clock;
+    private final LatencyHistogram lag = new LatencyHistogram();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile Socket socket;
+    private volatile boolean connected;
+    private volatile long epoch = -1;
+    private volatile long appliedSeq;
+    private volatile long primaryHead;
+
+    /**
+     * @param primary (String) host:port of the primary
+     * @param applier (Applier)
+     * @param clock (LongSupplier) Lamport value sent with the stream request
+     */
+    ReplicaFollower(String primary, Applier applier, LongSupplier clock) {
+        String[] parts = primary.split(":");
+        this.host = parts[0];
+        this.port = Integer.parseInt(parts[1]);
+        this.applier = applier;
+        this.clock = clock;
+        this.thread = new Thread(this::run, "Replica-follower");
+        this.thread.setDaemon(true);
+    }
+
+    String getPrimary() {
+        return host + ":" + port;
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        thread.interrupt();
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    long getAppliedSeq() {
+        return appliedSeq;
+    }
+
+    /**
+     * Entries the primary had applied that this replica has not, as of the last line received
+     * @return count
+     */
+    long getLagEntries() {
+        return Math.max(0, primaryHead - appliedSeq);
+    }
+
+    /**
+     * Time from applying an update on the primary to applying it here
+     * @return LatencyHistogram
+     */
+    LatencyHistogram getLag() {
+        return lag;
+    }
+
+    private void run() {
+        while (running) {
+            try (Socket s = new Socket()) {
+                socket = s;
+                s.connect(new InetSocketAddress(host, port), 5000);
+                follow(s);
+            } catch (IOException e) {
+                if (running) Log.warn("[Replica] Stream from " + getPrimary() + " lost: " + e.getMessage());
+            } finally {
+                connected = false;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow(Socket s) throws IOException {
+        OutputStream out = s.getOutputStream();
+        String request = "GET " + STREAM_PATH + " HTTP/1.1\r\n" +
+                         "LamportClock: " + clock.getAsLong() + "\r\n" +
+                         "Since: " + appliedSeq + "\r\n" +
+                         "ReplicationEpoch: " + Math.max(0, epoch) + "\r\n" +
+                         "Connection: close\r\n" +
+                         "\r\n";
+        out.write(request.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8), 64 * 1024);
+        String status = in.readLine();
+        if (status == null || !status.startsWith("HTTP/1.1 200")) {
+            throw new IOException("Primary refused the stream: " + status);
+        }
+        long streamEpoch = -1;
+        for (String header = in.readLine(); header != null && !header.isEmpty(); header = in.readLine()) {
+            if (header.regionMatches(true, 0, "ReplicationEpoch:", 0, 17)) {
+                streamEpoch = Long.parseLong(header.substring(17).trim());
+            }
+        }
+        connected = true;
+        Log.info("[Replica] Following " + getPrimary() + " from sequence " + appliedSeq);
+
+        Set<String> snapshot = null; // station ids of the snapshot being received
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("HEAD ")) {
+                String[] parts = line.split(" ", 3);
+                primaryHead = Long.parseLong(parts[1]);
+            } else if (line.startsWith("SNAPSHOT ")) {
+                snapshot = new HashSet<>();
+            } else if (line.startsWith("END ")) {
+                if (snapshot == null) throw new IOException("Snapshot end without a start");
+                applier.retain(snapshot);
+                snapshot = null;
+                epoch = streamEpoch;
+                appliedSeq = Long.parseLong(line.substring(4).trim());
+            } else {
+                int first = line.indexOf(' ');
+                int second = line.indexOf(' ', first + 1);
+                if (first < 0 || second < 0) throw new IOException("Malformed replication line");
+                long seq = Long.parseLong(line.substring(0, first));
+                long appendedAt = Long.parseLong(line.substring(first + 1, second));
+                WriteAheadLog.Entry entry = WriteAheadLog.decode(line.substring(second + 1));
+                applier.apply(entry, snapshot != null);
+                if (snapshot != null) {
+                    snapshot.add(entry.stationId());
+                } else {
+                    lag.record((System.currentTimeMillis() - appendedAt) * 1_000_000);
+                    appliedSeq = seq;
+                    primaryHead = Math.max(primaryHead, seq);
+                }
+            }
+        }
+        throw new EOFException("Primary closed the stream");
+    }
+}
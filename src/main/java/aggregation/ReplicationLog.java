@@ -0,0 +1,176 @@
+package aggregation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Retained tail of the applied update stream, shipped to replicas. Every applied (or expired) update
+ * gets the next sequence number, and the entries are the lines of the write-ahead log, appended by the
+ * lane that applied them: the versions of one station are shipped in Lamport order.
+ * A replica streams the log from the last sequence it applied. When it is new, was following another
+ * run of the primary (epoch) or fell behind the retained tail, it gets a snapshot of the storage first.
+ * <p>
+ * Stream lines, UTF-8:
+ * <pre>
+ * SNAPSHOT seq            the following entries are the whole storage as of seq
+ * END seq                 end of the snapshot, stations it did not hold are gone
+ * seq appendedAt entry    one write-ahead log line, appendedAt in epoch milliseconds
+ * HEAD seq now            newest sequence of the primary, after every chunk and when idle
+ * </pre>
+ */
+final class ReplicationLog {
+    private static final int CHUNK = 1024;
+    private static final long HEARTBEAT_MILLIS = 1000;
+
+    /**
+     * One retained entry
+     * @param seq sequence number, from 1
+     * @param appendedAt wall-clock time it was applied on this server
+     * @param entry write-ahead log entry
+     */
+    record Shipped(long seq, long appendedAt, WriteAheadLog.Entry entry) {}
+
+    private final long epoch;
+    private final WriteAheadLog.Entry[] entries;
+    private final long[] appendedAt;
+    private long head; // sequence of the newest entry, 0 before the first one
+    private final AtomicInteger streams = new AtomicInteger();
+    private final LongAdder snapshots = new LongAdder();
+
+    /**
+     * @param epoch (long) identifies this run of the server, sequences restart with it
+     * @param capacity (int) entries retained for replicas that reconnect
+     */
+    ReplicationLog(long epoch, int capacity) {
+        this.epoch = epoch;
+        this.entries = new WriteAheadLog.Entry[Math.max(1, capacity)];
+        this.appendedAt = new long[entries.length];
+    }
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    synchronized long getHead() {
+        return head;
+    }
+
+    int getStreams() {
+        return streams.get();
+    }
+
+    long getSnapshots() {
+        return snapshots.sum();
+    }
+
+    /**
+     * Number the entries of an applied batch and wake up the senders
+     * @param batch (List)
+     */
+    synchronized void append(List<WriteAheadLog.Entry> batch) {
+        if (batch.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        for (WriteAheadLog.Entry entry : batch) {
+            head++;
+            int slot = (int) (head % entries.length);
+            entries[slot] = entry;
+            appendedAt[slot] = now;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Entries after a sequence, waiting for the first one up to a timeout
+     * @param since (long) last sequence the replica has
+     * @param max (int)
+     * @param waitMillis (long)
+     * @return entries in sequence order, empty on timeout, null when since is no longer retained
+     * @throws InterruptedException
+     */
+    synchronized List<Shipped> after(long since, int max, long waitMillis) throws InterruptedException {
+        if (!retains(since)) return null;
+        long deadline = System.currentTimeMillis() + waitMillis;
+        for (long left = waitMillis; head == since && left > 0; left = deadline - System.currentTimeMillis()) {
+            wait(left);
+        }
+        if (!retains(since)) return null;
+        List<Shipped> shipped = new ArrayList<>((int) Math.min(max, head - since));
+        for (long seq = since + 1; seq <= head && shipped.size() < max; seq++) {
+            int slot = (int) (seq % entries.length);
+            shipped.add(new Shipped(seq, appendedAt[slot], entries[slot]));
+        }
+        return shipped;
+    }
+
+    private boolean retains(long since) {
+        return since <= head && since >= head - entries.length;
+    }
+
+    /**
+     * Stream the log to one replica until it disconnects or the server stops
+     * @param out (OutputStream) response body
+     * @param replicaEpoch (long) epoch the replica's since refers to
+     * @param since (long) last sequence the replica applied
+     * @param storage (Supplier) entries of every stored station, for snapshots
+     * @param open (BooleanSupplier) false once the server stops
+     * @throws IOException when the replica is gone
+     * @throws InterruptedException
+     */
+    void ship(OutputStream out, long replicaEpoch, long since, Supplier<List<WriteAheadLog.Entry>> storage,
+              BooleanSupplier open) throws IOException, InterruptedException {
+        streams.incrementAndGet();
+        try {
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream(64 * 1024);
+            long cursor = replicaEpoch == epoch ? since : -1;
+            while (open.getAsBoolean()) {
+                List<Shipped> next = cursor < 0 ? null : after(cursor, CHUNK, HEARTBEAT_MILLIS);
+                if (next == null) {
+                    // Entries written meanwhile may already be in the snapshot, the replica drops them as stale
+                    cursor = getHead();
+                    snapshot(chunk, out, cursor, storage.get());
+                } else {
+                    for (Shipped shipped : next) {
+                        line(chunk, shipped.seq() + " " + shipped.appendedAt() + " ");
+                        WriteAheadLog.encode(shipped.entry(), chunk);
+                        chunk.write('\n');
+                        cursor = shipped.seq();
+                    }
+                }
+                line(chunk, "HEAD " + getHead() + " " + System.currentTimeMillis() + "\n");
+                chunk.writeTo(out);
+                out.flush();
+                chunk.reset();
+            }
+        } finally {
+            streams.decrementAndGet();
+        }
+    }
+
+    private void snapshot(ByteArrayOutputStream chunk, OutputStream out, long seq, List<WriteAheadLog.Entry> stations) throws IOException {
+        snapshots.increment();
+        long now = System.currentTimeMillis();
+        line(chunk, "SNAPSHOT " + seq + "\n");
+        for (WriteAheadLog.Entry entry : stations) {
+            line(chunk, seq + " " + now + " ");
+            WriteAheadLog.encode(entry, chunk);
+            chunk.write('\n');
+            if (chunk.size() >= 1 << 20) {
+                chunk.writeTo(out);
+                chunk.reset();
+            }
+        }
+        line(chunk, "END " + seq + "\n");
+    }
+
+    private static void line(ByteArrayOutputStream chunk, String text) {
+        chunk.writeBytes(text.getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,58 @@
+package aggregation;
+
+import utilize.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hot-path instrumentation of the aggregation server. Every recorder is lock-free and does not
+ * allocate, the Prometheus text is only built when /metrics is scraped.
+ */
+final class ServerMetrics {
+    final LatencyHistogram acceptToEnqueue = new LatencyHistogram();
+    final LatencyHistogram queueWait = new LatencyHistogram();
+    final LatencyHistogram apply = new LatencyHistogram();
+    final LatencyHistogram walSync = new LatencyHistogram();
+    final LatencyHistogram persist = new LatencyHistogram();
+    final LatencyHistogram getService = new LatencyHistogram();
+
+    final LongAdder putsRejected = new LongAdder();
+    final LongAdder clockRejected = new LongAdder();
+    final LongAdder persistedBytes = new LongAdder();
+    final AtomicLong lastSnapshotBytes = new AtomicLong();
+
+    /**
+     * Append the histograms and counters owned by this class
+     * @param sb (StringBuilder)
+     */
+    void write(StringBuilder sb) {
+        acceptToEnqueue.writePrometheus(sb, "aggregation_put_accept_to_enqueue_seconds",
+                "Time from accepting a PUT (or reading its first byte on a persistent connection) to queueing it");
+        queueWait.writePrometheus(sb, "aggregation_put_queue_wait_seconds", "Time a PUT waits in its lane");
+        apply.writePrometheus(sb, "aggregation_put_apply_seconds", "Time to apply one PUT to storage");
+        walSync.writePrometheus(sb, "aggregation_wal_commit_seconds", "Time to append and fsync one batch to the write-ahead log");
+        persist.writePrometheus(sb, "aggregation_snapshot_persist_seconds", "Time to write the snapshot file");
+        getService.writePrometheus(sb, "aggregation_get_service_seconds", "Time to serve a GET once it is read");
+
+        counter(sb, "aggregation_put_rejected_total", "PUTs refused with 503 by admission control", putsRejected.sum());
+        counter(sb, "aggregation_clock_rejected_total", "Requests refused because their timestamp is too far ahead of the wall clock", clockRejected.sum());
+        counter(sb, "aggregation_snapshot_persisted_bytes_total", "Bytes written to snapshot files", persistedBytes.sum());
+        gauge(sb, "aggregation_snapshot_bytes", "Size of the last snapshot file", lastSnapshotBytes.get());
+    }
+
+    static void counter(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, help, "counter");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    static void gauge(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, help, "gauge");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
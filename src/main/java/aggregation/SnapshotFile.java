@@ -0,0 +1,226 @@
+package aggregation;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Versioned binary snapshot. Layout (big endian):
+ * <pre>
+ * header   magic "WSNP", int version, long Lamport, int station count
+ * records  per station: int length, int CRC32C of the body, length bytes of UTF-8 JSON (the GET response body)
+ * index    per station: short id length, id bytes, long Lamport, int record offset
+ * footer   int index offset, int CRC32C of the header and the index
+ * </pre>
+ * Restore maps the file and only walks the index: record bodies stay in the page cache until a
+ * station is read, nothing is parsed up front. Each body is checked against its own checksum when
+ * it is read, so opening the file never touches the pages of the records. Version 1 files, with
+ * one checksum over the whole file and none per record, are still read, and checked on open.
+ */
+public final class SnapshotFile {
+    public static final int MAGIC = 0x57534E50; // "WSNP"
+    public static final int VERSION = 2;
+    private static final int VERSION_WHOLE_FILE_CRC = 1;
+
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4;
+    private static final int FOOTER_BYTES = 4 + 4;
+
+    public record Station(String id, long lamport, byte[] json) {}
+
+    /**
+     * Called for every station of the index
+     */
+    public interface IndexVisitor {
+        void visit(String id, long lamport, int offset);
+    }
+
+    private final MappedByteBuffer buf;
+    private final long lamport;
+    private final int count;
+    private final int indexOffset;
+    private final boolean recordChecksums;
+
+    private SnapshotFile(MappedByteBuffer buf, long lamport, int count, int indexOffset, boolean recordChecksums) {
+        this.buf = buf;
+        this.lamport = lamport;
+        this.count = count;
+        this.indexOffset = indexOffset;
+        this.recordChecksums = recordChecksums;
+    }
+
+    /**
+     * Whether a file starts with the binary snapshot magic number
+     * @param path (Path)
+     * @return boolean
+     */
+    public static boolean isBinary(Path path) {
+        if (!Files.exists(path)) return false;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(4);
+            while (head.hasRemaining() && ch.read(head) > 0) {}
+            return !head.hasRemaining() && head.getInt(0) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Write a snapshot to a temporary file, force it to disk and move it over the target atomically
+     * @param path (Path)
+     * @param lamport (long) Lamport clock of the server
+     * @param stations (Collection)
+     * @return size of the file in bytes
+     * @throws IOException
+     */
+    public static long write(Path path, long lamport, Collection<Station> stations) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName().toString() + ".tmp");
+        CRC32C crc = new CRC32C(); // header and index
+        CRC32C recordCrc = new CRC32C();
+        long size;
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             BufferedOutputStream buffered = new BufferedOutputStream(Channels.newOutputStream(ch), 64 * 1024);
+             DataOutputStream out = new DataOutputStream(buffered);
+             DataOutputStream checked = new DataOutputStream(new CheckedOutputStream(buffered, crc))) {
+            checked.writeInt(MAGIC);
+            checked.writeInt(VERSION);
+            checked.writeLong(lamport);
+            checked.writeInt(stations.size());
+            checked.flush();
+
+            // Records are streamed, the file is never held in memory as a whole
+            int[] offsets = new int[stations.size()];
+            long pos = HEADER_BYTES;
+            int i = 0;
+            for (Station station : stations) {
+                if (pos > Integer.MAX_VALUE) throw new IOException("Snapshot larger than 2 GB");
+                offsets[i++] = (int) pos;
+                recordCrc.reset();
+                recordCrc.update(station.json);
+                out.writeInt(station.json.length);
+                out.writeInt((int) recordCrc.getValue());
+                out.write(station.json);
+                pos += 8 + station.json.length;
+            }
+            out.flush();
+            long indexOffset = pos;
+            i = 0;
+            for (Station station : stations) {
+                byte[] id = station.id.getBytes(StandardCharsets.UTF_8);
+                checked.writeShort(id.length);
+                checked.write(id);
+                checked.writeLong(station.lamport);
+                checked.writeInt(offsets[i++]);
+                pos += 2 + id.length + 8 + 4;
+            }
+            if (pos > Integer.MAX_VALUE - FOOTER_BYTES) throw new IOException("Snapshot larger than 2 GB");
+
+            checked.flush();
+            int checksum = (int) crc.getValue();
+            out.writeInt((int) indexOffset);
+            out.writeInt(checksum);
+            out.flush();
+            ch.force(true);
+            size = pos + FOOTER_BYTES;
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return size;
+    }
+
+    /**
+     * Map a snapshot file and check its header and the checksum of its header and index
+     * @param path (Path)
+     * @return SnapshotFile
+     * @throws IOException when the file is not a valid snapshot of a supported version
+     */
+    public static SnapshotFile open(Path path) throws IOException {
+        MappedByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (ch.size() < HEADER_BYTES + FOOTER_BYTES || ch.size() > Integer.MAX_VALUE) {
+                throw new IOException("Invalid snapshot size " + ch.size());
+            }
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()); // stays valid once the channel is closed
+        }
+        if (buf.getInt(0) != MAGIC) {
+            throw new IOException("Not a binary snapshot");
+        }
+        int version = buf.getInt(4);
+        if (version != VERSION && version != VERSION_WHOLE_FILE_CRC) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        int footer = buf.capacity() - FOOTER_BYTES;
+        int indexOffset = buf.getInt(footer);
+        if (indexOffset < HEADER_BYTES || indexOffset > footer) {
+            throw new IOException("Snapshot checksum mismatch"); // a torn footer
+        }
+        CRC32C crc = new CRC32C();
+        if (version == VERSION) {
+            crc.update(buf.slice(0, HEADER_BYTES));
+            crc.update(buf.slice(indexOffset, footer - indexOffset));
+        } else {
+            crc.update(buf.slice(0, footer));
+        }
+        if ((int) crc.getValue() != buf.getInt(footer + 4)) {
+            throw new IOException("Snapshot checksum mismatch");
+        }
+        return new SnapshotFile(buf, buf.getLong(8), buf.getInt(16), indexOffset, version == VERSION);
+    }
+
+    public long getLamport() {
+        return lamport;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Walk the station index without touching the record bodies
+     * @param visitor (IndexVisitor)
+     */
+    public void forEach(IndexVisitor visitor) {
+        int pos = indexOffset;
+        for (int i = 0; i < count; i++) {
+            int idLength = buf.getShort(pos) & 0xFFFF;
+            byte[] id = new byte[idLength];
+            buf.get(pos + 2, id);
+            long stationLamport = buf.getLong(pos + 2 + idLength);
+            int offset = buf.getInt(pos + 2 + idLength + 8);
+            pos += 2 + idLength + 8 + 4;
+            visitor.visit(new String(id, StandardCharsets.UTF_8), stationLamport, offset);
+        }
+    }
+
+    /**
+     * Copy the JSON body of the record at an offset given by the index, checked against its checksum
+     * @param offset (int)
+     * @return UTF-8 bytes
+     * @throws UncheckedIOException when the body does not match its checksum
+     */
+    public byte[] readJson(int offset) {
+        byte[] json = new byte[buf.getInt(offset)];
+        if (!recordChecksums) {
+            buf.get(offset + 4, json);
+            return json;
+        }
+        buf.get(offset + 8, json);
+        CRC32C crc = new CRC32C();
+        crc.update(json);
+        if ((int) crc.getValue() != buf.getInt(offset + 4)) {
+            throw new UncheckedIOException(new IOException("Snapshot record checksum mismatch at offset " + offset));
+        }
+        return json;
+    }
+}
@@ -0,0 +1,321 @@
+package aggregation;
+
+import com.google.gson.stream.JsonWriter;
+import utilize.WeatherData;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Count, sum, min and max of the numeric observation fields over every stored station, grouped by
+ * state, by time zone and over all stations. Kept up to date as versions are applied and stations
+ * removed: each station's current contribution is subtracted before its new one is added, so a query
+ * reads the maintained values and never visits the stations. Min and max are backed by a count of
+ * every distinct value, so removing the current extreme finds the next one without a rescan.
+ * <p>
+ * Stations are spread over stripes, each with its own groups and lock, so consumer lanes applying
+ * updates do not wait for one another. A query merges the groups of every stripe.
+ */
+final class StationAggregates {
+    static final String[] FIELDS = {"air_temp", "apparent_t", "dewpt", "press", "rel_hum", "wind_spd_kmh", "wind_spd_kt"};
+    static final String ALL = "all";
+    static final String STATE = "state";
+    static final String TIME_ZONE = "time_zone";
+
+    /**
+     * What a station currently adds to its groups
+     * @param lamport version it was taken from
+     * @param state (String) null when absent
+     * @param timeZone (String) null when absent
+     * @param values one per {@link #FIELDS}, NaN when absent
+     */
+    private record Contribution(long lamport, String state, String timeZone, double[] values) {}
+
+    /**
+     * One field over the stations of a group
+     */
+    private static final class FieldStats {
+        long count;
+        double sum;
+        double min = Double.NaN;
+        double max = Double.NaN;
+        final TreeMap<Double, Integer> values = new TreeMap<>(); // distinct value, number of stations
+
+        void add(double value) {
+            count++;
+            sum += value;
+            values.merge(value, 1, Integer::sum);
+            if (count == 1 || value < min) min = value;
+            if (count == 1 || value > max) max = value;
+        }
+
+        void remove(double value) {
+            count--;
+            sum -= value;
+            values.computeIfPresent(value, (k, n) -> n == 1 ? null : n - 1);
+            if (count == 0) {
+                sum = 0; // no drift left behind by the subtractions
+                min = max = Double.NaN;
+            } else {
+                if (value == min) min = values.firstKey();
+                if (value == max) max = values.lastKey();
+            }
+        }
+
+        /**
+         * Add the count, sum and extremes of the same field over other stations, not their distinct values
+         * @param other (FieldStats)
+         */
+        void merge(FieldStats other) {
+            if (other.count == 0) return;
+            min = count == 0 ? other.min : Math.min(min, other.min);
+            max = count == 0 ? other.max : Math.max(max, other.max);
+            count += other.count;
+            sum += other.sum;
+        }
+    }
+
+    /**
+     * The aggregates of the stations hashed to one stripe, guarded by its own monitor
+     */
+    private static final class Stripe {
+        final Map<String, Contribution> stations = new HashMap<>();
+        final FieldStats[] all = newGroup();
+        final Map<String, FieldStats[]> byState = new TreeMap<>();
+        final Map<String, FieldStats[]> byTimeZone = new TreeMap<>();
+
+        synchronized void update(String stationId, Contribution next) {
+            Contribution previous = stations.put(stationId, next);
+            if (previous != null && Objects.equals(previous.state(), next.state())
+                    && Objects.equals(previous.timeZone(), next.timeZone()) && Arrays.equals(previous.values(), next.values())) {
+                return; // a refreshed version, same figures
+            }
+            if (previous != null) {
+                subtract(previous);
+            }
+            add(next);
+        }
+
+        synchronized void remove(String stationId, long lamport) {
+            Contribution current = stations.get(stationId);
+            if (current == null || current.lamport() > lamport) return;
+            stations.remove(stationId);
+            subtract(current);
+        }
+
+        synchronized void retain(Set<String> stationIds) {
+            stations.entrySet().removeIf(entry -> {
+                if (stationIds.contains(entry.getKey())) return false;
+                subtract(entry.getValue());
+                return true;
+            });
+        }
+
+        synchronized int stationCount() {
+            return stations.size();
+        }
+
+        /**
+         * Add the groups of a grouping to totals over the stripes
+         * @param groupBy (String) {@link #STATE}, {@link #TIME_ZONE} or {@link #ALL}
+         * @param group (String) only this group, null for every group
+         * @param totals (Map) group, one per {@link #FIELDS}
+         */
+        synchronized void mergeInto(String groupBy, String group, Map<String, FieldStats[]> totals) {
+            Map<String, FieldStats[]> groups = groupBy.equals(ALL) ? Map.of(ALL, all) : groupBy.equals(STATE) ? byState : byTimeZone;
+            for (Map.Entry<String, FieldStats[]> entry : groups.entrySet()) {
+                if (group != null && !group.equals(entry.getKey())) continue;
+                FieldStats[] total = totals.computeIfAbsent(entry.getKey(), k -> newGroup());
+                for (int f = 0; f < FIELDS.length; f++) {
+                    total[f].merge(entry.getValue()[f]);
+                }
+            }
+        }
+
+        private void add(Contribution contribution) {
+            apply(all, contribution.values(), true);
+            if (contribution.state() != null) {
+                apply(byState.computeIfAbsent(contribution.state(), k -> newGroup()), contribution.values(), true);
+            }
+            if (contribution.timeZone() != null) {
+                apply(byTimeZone.computeIfAbsent(contribution.timeZone(), k -> newGroup()), contribution.values(), true);
+            }
+        }
+
+        private void subtract(Contribution contribution) {
+            apply(all, contribution.values(), false);
+            if (contribution.state() != null) {
+                subtractFrom(byState, contribution.state(), contribution.values());
+            }
+            if (contribution.timeZone() != null) {
+                subtractFrom(byTimeZone, contribution.timeZone(), contribution.values());
+            }
+        }
+    }
+
+    private final Stripe[] stripes;
+
+    /**
+     * @param stripes (int) number of independently locked stripes, stations are spread by the hash of
+     *                their id like over the consumer lanes, so with as many stripes as lanes no two lanes share one
+     */
+    StationAggregates(int stripes) {
+        this.stripes = new Stripe[Math.max(1, stripes)];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    StationAggregates() {
+        this(16);
+    }
+
+    private Stripe stripeOf(String stationId) {
+        return stripes[Math.floorMod(stationId.hashCode(), stripes.length)];
+    }
+
+    private static FieldStats[] newGroup() {
+        FieldStats[] group = new FieldStats[FIELDS.length];
+        for (int f = 0; f < group.length; f++) {
+            group[f] = new FieldStats();
+        }
+        return group;
+    }
+
+    /**
+     * Replace the contribution of a station with the one of its new version
+     * @param stationId (String)
+     * @param lamport (long) version applied
+     * @param data (WeatherData) its fields
+     */
+    void update(String stationId, long lamport, WeatherData data) {
+        double[] values = new double[FIELDS.length];
+        for (int f = 0; f < FIELDS.length; f++) {
+            values[f] = numberOf(data, FIELDS[f]);
+        }
+        stripeOf(stationId).update(stationId, new Contribution(lamport, data.text(STATE), data.text(TIME_ZONE), values));
+    }
+
+    /**
+     * Numeric value of a field, also when it is kept as received because it does not round-trip ("10.0")
+     * @return NaN when absent or not a number
+     */
+    static double numberOf(WeatherData data, String field) {
+        double value = data.number(field);
+        if (!Double.isNaN(value)) return value;
+        String text = data.text(field);
+        if (text == null) return Double.NaN;
+        try {
+            value = Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+        return Double.isInfinite(value) ? Double.NaN : value;
+    }
+
+    /**
+     * Drop the contribution of a removed station, unless a newer version was applied meanwhile
+     * @param stationId (String)
+     * @param lamport (long) version removed, or the Lamport value of the removal
+     */
+    void remove(String stationId, long lamport) {
+        stripeOf(stationId).remove(stationId, lamport);
+    }
+
+    /**
+     * Drop every station not in a set
+     * @param stationIds (Set)
+     */
+    void retain(Set<String> stationIds) {
+        for (Stripe stripe : stripes) {
+            stripe.retain(stationIds);
+        }
+    }
+
+    int stationCount() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            count += stripe.stationCount();
+        }
+        return count;
+    }
+
+    private static void subtractFrom(Map<String, FieldStats[]> groups, String key, double[] values) {
+        FieldStats[] group = groups.get(key);
+        if (group == null) return; // dropped with its last value, the station had none
+        apply(group, values, false);
+        boolean empty = true;
+        for (FieldStats stats : group) {
+            empty &= stats.count == 0;
+        }
+        if (empty) {
+            groups.remove(key); // no station left with any field in it
+        }
+    }
+
+    private static void apply(FieldStats[] group, double[] values, boolean add) {
+        for (int f = 0; f < values.length; f++) {
+            if (Double.isNaN(values[f])) continue;
+            if (add) {
+                group[f].add(values[f]);
+            } else {
+                group[f].remove(values[f]);
+            }
+        }
+    }
+
+    /**
+     * The aggregates of a grouping, as the aggregate GET answers them:
+     * {"groupBy":"state","groups":{"SA":{"air_temp":{"count":..,"sum":..,"min":..,"max":..,"avg":..},..},..}}.
+     * Fields no station of a group has are left out. Count and sum are there so the answers of
+     * several cluster nodes can be merged.
+     * @param groupBy (String) {@link #STATE}, {@link #TIME_ZONE} or {@link #ALL}
+     * @param group (String) only this group, null for every group of the grouping
+     * @return UTF-8 JSON, null for an unknown grouping
+     */
+    byte[] toJson(String groupBy, String group) {
+        if (!groupBy.equals(ALL) && !groupBy.equals(STATE) && !groupBy.equals(TIME_ZONE)) {
+            return null;
+        }
+        // Each stripe is read under its own lock: stripes locked one after the other may reflect a
+        // moment apart, an update applied in between shows up in one of them only
+        Map<String, FieldStats[]> groups = new TreeMap<>();
+        for (Stripe stripe : stripes) {
+            stripe.mergeInto(groupBy, group, groups);
+        }
+        StringWriter json = new StringWriter(256);
+        try (JsonWriter writer = new JsonWriter(json)) {
+            writer.beginObject();
+            writer.name("groupBy").value(groupBy);
+            writer.name("groups").beginObject();
+            for (Map.Entry<String, FieldStats[]> entry : groups.entrySet()) {
+                writer.name(entry.getKey()).beginObject();
+                for (int f = 0; f < FIELDS.length; f++) {
+                    FieldStats stats = entry.getValue()[f];
+                    if (stats.count == 0) continue;
+                    writer.name(FIELDS[f]).beginObject();
+                    writer.name("count").value(stats.count);
+                    writer.name("sum").value(stats.sum);
+                    writer.name("min").value(stats.min);
+                    writer.name("max").value(stats.max);
+                    writer.name("avg").value(stats.sum / stats.count);
+                    writer.endObject();
+                }
+                writer.endObject();
+            }
+            writer.endObject();
+            writer.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // a StringWriter does not fail
+        }
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
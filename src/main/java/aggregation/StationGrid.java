@@ -0,0 +1,357 @@
+package aggregation;
+
+import utilize.Geo;
+import utilize.WeatherData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Spatial index of the stations by lat/lon: a uniform grid of cells a few degrees wide, each holding
+ * the stations located in it. Kept up to date as versions are applied and stations removed, so box
+ * and nearest queries only look at the cells around the point or inside the box, whatever the
+ * number of stations. Stations without valid coordinates are not indexed.
+ * <p>
+ * Nearest queries visit rings of cells around the point, closest ring first, and stop once no cell
+ * beyond the visited square can hold a station closer than the k-th found. Distances are
+ * great-circle distances, longitudes wrap at the antimeridian.
+ * <p>
+ * Cells are guarded by striped locks and the stations by a concurrent map, so consumer lanes moving
+ * different stations rarely wait for one another. A query locks one cell at a time: a station moving
+ * while it runs is answered at most once, at its new position, or missed.
+ */
+final class StationGrid {
+    /**
+     * Indexed position of a station
+     */
+    private static final class Point {
+        final String stationId;
+        long lamport;
+        final double lat;
+        final double lon;
+        final int cell;
+        int slot; // index in its cell
+
+        Point(String stationId, long lamport, double lat, double lon, int cell) {
+            this.stationId = stationId;
+            this.lamport = lamport;
+            this.lat = lat;
+            this.lon = lon;
+            this.cell = cell;
+        }
+    }
+
+    /**
+     * Stations of one cell, unordered: removal moves the last one into the freed slot
+     */
+    private static final class Cell {
+        Point[] points = new Point[4];
+        int size;
+
+        void add(Point point) {
+            if (size == points.length) {
+                points = Arrays.copyOf(points, size * 2);
+            }
+            point.slot = size;
+            points[size++] = point;
+        }
+
+        void remove(Point point) {
+            Point last = points[--size];
+            points[point.slot] = last;
+            last.slot = point.slot;
+            points[size] = null;
+        }
+    }
+
+    private record Candidate(Point point, double angle) {}
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final double cellDegrees;
+    private final int rows;
+    private final int cols;
+    private final Cell[] cells; // row * cols + col, null until a station lands in it
+    private final Map<String, Point> stations = new ConcurrentHashMap<>(); // changes of one station are serialized by compute()
+    private final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[LOCK_STRIPES]; // cell index modulo the stripes
+
+    /**
+     * @param cellDegrees (double) width and height of a cell, rounded down to divide 180, the grid
+     *                    has 180/c * 360/c cells
+     */
+    StationGrid(double cellDegrees) {
+        this.rows = (int) Math.ceil(180 / cellDegrees);
+        this.cols = 2 * rows;
+        this.cellDegrees = 180.0 / rows; // whole cells around the globe, the ring bounds rely on it
+        this.cells = new Cell[rows * cols];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    private ReentrantReadWriteLock lockOf(int cell) {
+        return locks[cell % locks.length];
+    }
+
+    private void addTo(int cell, Point point) {
+        ReentrantReadWriteLock lock = lockOf(cell);
+        lock.writeLock().lock();
+        try {
+            if (cells[cell] == null) {
+                cells[cell] = new Cell();
+            }
+            cells[cell].add(point);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeFrom(Point point) {
+        ReentrantReadWriteLock lock = lockOf(point.cell);
+        lock.writeLock().lock();
+        try {
+            cells[point.cell].remove(point);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Whether a point found in a cell is still where its station is, not left behind by a move
+     */
+    private boolean isCurrent(Point point) {
+        return stations.get(point.stationId) == point;
+    }
+
+    private int row(double lat) {
+        return Math.min(rows - 1, (int) Math.floor((lat + 90) / cellDegrees));
+    }
+
+    private int col(double lon) {
+        return Math.floorMod((int) Math.floor((lon + 180) / cellDegrees), cols);
+    }
+
+    /**
+     * Move a station to the position of its new version
+     * @param stationId (String)
+     * @param lamport (long) version applied
+     * @param data (WeatherData) its fields
+     */
+    void update(String stationId, long lamport, WeatherData data) {
+        double lat = StationAggregates.numberOf(data, "lat");
+        double lon = StationAggregates.numberOf(data, "lon");
+        boolean valid = lat >= -90 && lat <= 90 && lon >= -180 && lon <= 180; // false for NaN
+        stations.compute(stationId, (id, previous) -> {
+            if (previous != null && valid && previous.lat == lat && previous.lon == lon) {
+                previous.lamport = lamport; // the station did not move
+                return previous;
+            }
+            Point point = null;
+            if (valid) {
+                // In its new cell first: a query never misses a station that only refreshed its position
+                point = new Point(stationId, lamport, lat, lon, row(lat) * cols + col(lon));
+                addTo(point.cell, point);
+            }
+            if (previous != null) {
+                removeFrom(previous);
+            }
+            return point;
+        });
+    }
+
+    /**
+     * Drop a removed station, unless a newer version was applied meanwhile
+     * @param stationId (String)
+     * @param lamport (long) version removed, or the Lamport value of the removal
+     */
+    void remove(String stationId, long lamport) {
+        stations.computeIfPresent(stationId, (id, current) -> {
+            if (current.lamport > lamport) return current;
+            removeFrom(current);
+            return null;
+        });
+    }
+
+    /**
+     * Drop every station not in a set
+     * @param stationIds (Set)
+     */
+    void retain(Set<String> stationIds) {
+        for (String stationId : stations.keySet()) {
+            if (stationIds.contains(stationId)) continue;
+            stations.computeIfPresent(stationId, (id, point) -> {
+                removeFrom(point);
+                return null;
+            });
+        }
+    }
+
+    int size() {
+        return stations.size();
+    }
+
+    /**
+     * Stations inside a box, edges included. A box whose west edge is east of its east edge crosses
+     * the antimeridian.
+     * @return station ids, unordered
+     */
+    List<String> inBox(double minLat, double minLon, double maxLat, double maxLon) {
+        List<String> found = new ArrayList<>();
+        if (minLat > maxLat) return found;
+        int fromRow = row(Math.max(-90, minLat));
+        int toRow = row(Math.min(90, maxLat));
+        int fromCol = (int) Math.floor((Math.max(-180, minLon) + 180) / cellDegrees);
+        int lastCol = (int) Math.floor((Math.min(180, maxLon) + 180) / cellDegrees);
+        int toCol = Math.min(cols - 1, lastCol);
+        List<Point> points = new ArrayList<>();
+        for (int row = fromRow; row <= toRow; row++) {
+            if (minLon <= maxLon) {
+                collect(row, fromCol, toCol, minLat, minLon, maxLat, maxLon, points);
+                if (lastCol >= cols && fromCol > 0) {
+                    collect(row, 0, 0, minLat, minLon, maxLat, maxLon, points); // lon 180 is indexed with -180
+                }
+            } else {
+                collect(row, fromCol, cols - 1, minLat, minLon, maxLat, maxLon, points);
+                collect(row, 0, toCol, minLat, minLon, maxLat, maxLon, points);
+            }
+        }
+        for (Point point : points) {
+            if (isCurrent(point)) found.add(point.stationId);
+        }
+        return found;
+    }
+
+    private void collect(int row, int fromCol, int toCol, double minLat, double minLon, double maxLat, double maxLon, List<Point> found) {
+        for (int col = fromCol; col <= toCol; col++) {
+            int index = row * cols + col;
+            ReentrantReadWriteLock lock = lockOf(index);
+            lock.readLock().lock();
+            try {
+                Cell cell = cells[index];
+                if (cell == null) continue;
+                for (int i = 0; i < cell.size; i++) {
+                    Point point = cell.points[i];
+                    if (Geo.inBox(point.lat, point.lon, minLat, minLon, maxLat, maxLon)) {
+                        found.add(point);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * The k stations closest to a point
+     * @return station ids, closest first
+     */
+    List<String> nearest(double lat, double lon, int k) {
+        if (lon == 180) lon = -180; // same meridian, the first column
+        PriorityQueue<Candidate> best = new PriorityQueue<>(k + 1, (a, b) -> Double.compare(b.angle(), a.angle())); // farthest on top
+        int centerRow = row(lat);
+        int centerCol = col(lon);
+        for (int r = 0; ; r++) {
+            visitRing(centerRow, centerCol, r, lat, lon, k, best);
+            boolean allRows = centerRow - r <= 0 && centerRow + r >= rows - 1;
+            boolean allCols = 2 * r + 1 >= cols;
+            if (allRows && allCols) break;
+            if (best.size() == k && beyondSquare(centerRow, centerCol, r, lat, lon) > best.peek().angle()) break;
+        }
+        String[] ordered = new String[best.size()];
+        int size = 0;
+        for (int i = ordered.length - 1; i >= 0; i--) {
+            Point point = best.poll().point();
+            if (isCurrent(point)) ordered[size++] = point.stationId;
+        }
+        List<String> closest = Arrays.asList(ordered).subList(0, size);
+        Collections.reverse(closest);
+        return closest;
+    }
+
+    /**
+     * Visit the cells at Chebyshev distance r of the center cell, columns counted around the antimeridian
+     */
+    private void visitRing(int centerRow, int centerCol, int r, double lat, double lon, int k, PriorityQueue<Candidate> best) {
+        int half = cols / 2;
+        for (int row = centerRow - r; row <= centerRow + r; row++) {
+            if (row < 0 || row >= rows) continue;
+            if (Math.abs(row - centerRow) == r) {
+                for (int d = 0; d <= Math.min(r, half); d++) {
+                    visitColumns(row, centerCol, d, lat, lon, k, best);
+                }
+            } else if (r <= half) {
+                visitColumns(row, centerCol, r, lat, lon, k, best);
+            }
+        }
+    }
+
+    private void visitColumns(int row, int centerCol, int d, double lat, double lon, int k, PriorityQueue<Candidate> best) {
+        int east = Math.floorMod(centerCol + d, cols);
+        int west = Math.floorMod(centerCol - d, cols);
+        visitCell(row * cols + east, lat, lon, k, best);
+        if (west != east) {
+            visitCell(row * cols + west, lat, lon, k, best);
+        }
+    }
+
+    private void visitCell(int index, double lat, double lon, int k, PriorityQueue<Candidate> best) {
+        ReentrantReadWriteLock lock = lockOf(index);
+        lock.readLock().lock();
+        try {
+            Cell cell = cells[index];
+            if (cell == null) return;
+            for (int i = 0; i < cell.size; i++) {
+                Point point = cell.points[i];
+                double angle = Geo.angle(lat, lon, point.lat, point.lon);
+                if (best.size() < k) {
+                    best.add(new Candidate(point, angle));
+                } else if (angle < best.peek().angle()) {
+                    best.poll();
+                    best.add(new Candidate(point, angle));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lower bound of the distance from the point to anything outside the square of cells within
+     * Chebyshev distance r: to leave it a great circle crosses one of its edges, a parallel (at least
+     * the latitude difference away) or a meridian (at least the cross-track distance away).
+     * @return radians
+     */
+    private double beyondSquare(int centerRow, int centerCol, int r, double lat, double lon) {
+        double bound = Double.MAX_VALUE;
+        if (centerRow - r > 0) {
+            bound = Math.min(bound, Math.toRadians(lat - ((centerRow - r) * cellDegrees - 90)));
+        }
+        if (centerRow + r < rows - 1) {
+            bound = Math.min(bound, Math.toRadians((centerRow + r + 1) * cellDegrees - 90 - lat));
+        }
+        if (2 * r + 1 < cols) {
+            double west = lon - ((centerCol - r) * cellDegrees - 180);
+            double east = (centerCol + r + 1) * cellDegrees - 180 - lon;
+            bound = Math.min(bound, toMeridian(lat, Math.min(west, east)));
+        }
+        return bound;
+    }
+
+    /**
+     * Distance from a point to a half meridian dLon degrees away
+     * @return radians
+     */
+    private static double toMeridian(double lat, double dLon) {
+        if (dLon >= 90) {
+            return Math.toRadians(90 - Math.abs(lat)); // closest at a pole
+        }
+        return Math.asin(Math.cos(Math.toRadians(lat)) * Math.sin(Math.toRadians(dLon)));
+    }
+}
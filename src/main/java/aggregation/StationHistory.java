@@ -0,0 +1,246 @@
+package aggregation;
+
+import com.google.gson.stream.JsonWriter;
+import utilize.WeatherData;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bounded observation history of one station, kept in columns of primitives: the Lamport value and
+ * local_date_time_full of every observation, and one float column per charted field. 40 bytes per
+ * observation, whatever the JSON looked like. The columns are rings that grow by doubling up to the
+ * capacity, after which the oldest observation is overwritten: a full ring appends without allocating.
+ * Observations are appended by the lane that owns the station, in Lamport order.
+ */
+final class StationHistory {
+    static final String[] COLUMNS = {"air_temp", "apparent_t", "dewpt", "press", "rel_hum", "wind_spd_kmh"};
+    static final long NO_TIME = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Observations of a range, copied out of the rings
+     * @param lamports Lamport value of each observation
+     * @param times local_date_time_full as yyyyMMddHHmmss, {@link #NO_TIME} when absent
+     * @param columns values per column of {@link #COLUMNS}, NaN when absent
+     */
+    record Range(long[] lamports, long[] times, float[][] columns) {
+        int size() {
+            return lamports.length;
+        }
+    }
+
+    final String stationId;
+    final byte[] idBytes; // encoded once, for the history log
+    private final int capacity;
+    private long[] lamports;
+    private long[] times;
+    private final float[][] columns = new float[COLUMNS.length][];
+    private int head; // slot of the oldest observation
+    private int size;
+
+    /**
+     * @param stationId (String)
+     * @param capacity (int) observations kept, the oldest ones are dropped beyond it
+     */
+    StationHistory(String stationId, int capacity) {
+        this.stationId = stationId;
+        this.idBytes = stationId.getBytes(StandardCharsets.UTF_8);
+        this.capacity = capacity;
+        int initial = Math.min(INITIAL_CAPACITY, capacity);
+        this.lamports = new long[initial];
+        this.times = new long[initial];
+        for (int c = 0; c < columns.length; c++) {
+            columns[c] = new float[initial];
+        }
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return Lamport value of the newest observation, -1 when there is none
+     */
+    synchronized long lastLamport() {
+        return size == 0 ? -1 : lamports[(head + size - 1) % lamports.length];
+    }
+
+    /**
+     * Append an observation of a stored version
+     * @param lamport (long) version of the record
+     * @param data (WeatherData) its fields
+     * @return false when it is not newer than the newest observation (replayed or re-shipped)
+     */
+    synchronized boolean append(long lamport, WeatherData data) {
+        if (!admit(lamport)) return false;
+        int slot = nextSlot();
+        lamports[slot] = lamport;
+        times[slot] = parseTime(data.text("local_date_time_full"));
+        for (int c = 0; c < columns.length; c++) {
+            columns[c][slot] = (float) StationAggregates.numberOf(data, COLUMNS[c]);
+        }
+        return true;
+    }
+
+    /**
+     * Append an observation read back from the history log
+     * @param lamport (long)
+     * @param time (long) yyyyMMddHHmmss or {@link #NO_TIME}
+     * @param values (ByteBuffer) positioned at the {@link #COLUMNS} floats, consumed
+     * @return false when it is not newer than the newest observation
+     */
+    synchronized boolean append(long lamport, long time, ByteBuffer values) {
+        if (!admit(lamport)) {
+            values.position(values.position() + 4 * columns.length);
+            return false;
+        }
+        int slot = nextSlot();
+        lamports[slot] = lamport;
+        times[slot] = time;
+        for (int c = 0; c < columns.length; c++) {
+            columns[c][slot] = values.getFloat();
+        }
+        return true;
+    }
+
+    private boolean admit(long lamport) {
+        return size == 0 || lamport > lamports[(head + size - 1) % lamports.length];
+    }
+
+    private int nextSlot() {
+        if (size == lamports.length && size < capacity) {
+            grow();
+        }
+        if (size == lamports.length) {
+            int slot = head; // full: overwrite the oldest
+            head = (head + 1) % lamports.length;
+            return slot;
+        }
+        return (head + size++) % lamports.length;
+    }
+
+    private void grow() {
+        int length = Math.min(capacity, lamports.length * 2);
+        lamports = unroll(lamports, length);
+        times = unroll(times, length);
+        for (int c = 0; c < columns.length; c++) {
+            float[] grown = new float[length];
+            float[] column = columns[c];
+            int first = Math.min(size, column.length - head);
+            System.arraycopy(column, head, grown, 0, first);
+            System.arraycopy(column, 0, grown, first, size - first);
+            columns[c] = grown;
+        }
+        head = 0;
+    }
+
+    private long[] unroll(long[] ring, int length) {
+        long[] grown = new long[length];
+        int first = Math.min(size, ring.length - head);
+        System.arraycopy(ring, head, grown, 0, first);
+        System.arraycopy(ring, 0, grown, first, size - first);
+        return grown;
+    }
+
+    /**
+     * Observations between two bounds, both inclusive, oldest first
+     * @param from (long) lower bound
+     * @param to (long) upper bound
+     * @param byTime (boolean) bounds are local_date_time_full values (yyyyMMddHHmmss), Lamport values otherwise
+     * @return Range
+     */
+    synchronized Range range(long from, long to, boolean byTime) {
+        int[] slots = new int[size];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            int slot = (head + i) % lamports.length;
+            long key = byTime ? times[slot] : lamports[slot];
+            if (key >= from && key <= to && (!byTime || key != NO_TIME)) {
+                slots[n++] = slot;
+            }
+        }
+        long[] rangeLamports = new long[n];
+        long[] rangeTimes = new long[n];
+        float[][] rangeColumns = new float[columns.length][n];
+        for (int i = 0; i < n; i++) {
+            rangeLamports[i] = lamports[slots[i]];
+            rangeTimes[i] = times[slots[i]];
+            for (int c = 0; c < columns.length; c++) {
+                rangeColumns[c][i] = columns[c][slots[i]];
+            }
+        }
+        return new Range(rangeLamports, rangeTimes, rangeColumns);
+    }
+
+    /**
+     * Every observation, oldest first
+     * @return Range
+     */
+    Range all() {
+        return range(Long.MIN_VALUE, Long.MAX_VALUE, false);
+    }
+
+    /**
+     * A range as the history GET answers it, one array per column:
+     * {"id":..,"lamport":[..],"local_date_time_full":[..],"air_temp":[..],..}, null for absent values
+     * @param stationId (String)
+     * @param range (Range)
+     * @return UTF-8 JSON
+     */
+    static byte[] toJson(String stationId, Range range) {
+        StringWriter json = new StringWriter(64 + range.size() * 64);
+        try (JsonWriter writer = new JsonWriter(json)) {
+            writer.beginObject();
+            writer.name("id").value(stationId);
+            writer.name("lamport").beginArray();
+            for (long lamport : range.lamports()) {
+                writer.value(lamport);
+            }
+            writer.endArray();
+            writer.name("local_date_time_full").beginArray();
+            for (long time : range.times()) {
+                if (time == NO_TIME) {
+                    writer.nullValue();
+                } else {
+                    writer.value(Long.toString(time));
+                }
+            }
+            writer.endArray();
+            for (int c = 0; c < COLUMNS.length; c++) {
+                writer.name(COLUMNS[c]).beginArray();
+                for (float value : range.columns()[c]) {
+                    if (Float.isNaN(value)) {
+                        writer.nullValue();
+                    } else {
+                        writer.jsonValue(Float.toString(value)); // "13.3", not the double widening of the float
+                    }
+                }
+                writer.endArray();
+            }
+            writer.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // a StringWriter does not fail
+        }
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * local_date_time_full ("20230715160000") as a number, so ranges compare without parsing dates
+     * @param text (String) may be null
+     * @return yyyyMMddHHmmss, {@link #NO_TIME} when absent or not 8 to 14 digits
+     */
+    static long parseTime(String text) {
+        if (text == null || text.length() < 8 || text.length() > 14) return NO_TIME;
+        long time = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') return NO_TIME;
+            time = time * 10 + (c - '0');
+        }
+        return time;
+    }
+}
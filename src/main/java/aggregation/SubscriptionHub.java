@@ -0,0 +1,156 @@
+package aggregation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Long-poll subscriptions. A subscriber is a parked connection waiting for the next update of some
+ * stations, it holds no thread: the consumer that applies an update hands the new body to every
+ * subscriber of the station, and one timer thread answers the subscribers nothing happened to.
+ * Each subscriber is completed exactly once, by whichever of the update, the timeout or the initial
+ * check claims it first.
+ * @param <C> parked connection
+ */
+final class SubscriptionHub<C> {
+    static final String EVERY_STATION = "*";
+
+    /**
+     * Answers a completed subscriber, must not block the caller (a consumer or the timer)
+     */
+    interface Delivery<C> {
+        /**
+         * @param connection parked connection
+         * @param stations JSON bodies of the updated stations, empty on timeout
+         * @param version newest Lamport value delivered, the next subscription's lower bound
+         */
+        void deliver(C connection, List<byte[]> stations, long version);
+    }
+
+    static final class Subscriber<C> {
+        final List<String> stationIds;
+        final long since;
+        final C connection;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile ScheduledFuture<?> timeout;
+
+        private Subscriber(List<String> stationIds, long since, C connection) {
+            this.stationIds = stationIds;
+            this.since = since;
+            this.connection = connection;
+        }
+    }
+
+    private final Map<String, Set<Subscriber<C>>> byStation = new ConcurrentHashMap<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final LongAdder pushes = new LongAdder();
+    private final long timeoutMillis;
+    private final Delivery<C> delivery;
+    private final ScheduledThreadPoolExecutor timer;
+
+    SubscriptionHub(long timeoutMillis, Delivery<C> delivery) {
+        this.timeoutMillis = timeoutMillis;
+        this.delivery = delivery;
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "Subscription-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.timer.setRemoveOnCancelPolicy(true); // answered subscribers do not pile up in the timer queue
+    }
+
+    /**
+     * Park a connection until one of the stations gets a version newer than since, or the timeout
+     * @param stationIds (List) station ids, or {@link #EVERY_STATION}
+     * @param since (long) Lamport value the subscriber has already seen
+     * @param connection (C)
+     * @return Subscriber
+     */
+    Subscriber<C> subscribe(List<String> stationIds, long since, C connection) {
+        Subscriber<C> subscriber = new Subscriber<>(stationIds, since, connection);
+        waiting.incrementAndGet();
+        for (String id : stationIds) {
+            byStation.computeIfAbsent(id, k -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        }
+        subscriber.timeout = timer.schedule(() -> complete(subscriber, List.of(), since), timeoutMillis, TimeUnit.MILLISECONDS);
+        return subscriber;
+    }
+
+    /**
+     * Hand an applied update to the subscribers of its station
+     * @param stationId (String)
+     * @param lamport (long) version of the update
+     * @param json (byte[]) body of the station
+     */
+    void publish(String stationId, long lamport, byte[] json) {
+        if (waiting.get() == 0) return;
+        publishTo(byStation.get(stationId), lamport, json);
+        publishTo(byStation.get(EVERY_STATION), lamport, json);
+    }
+
+    private void publishTo(Set<Subscriber<C>> subscribers, long lamport, byte[] json) {
+        if (subscribers == null) return;
+        for (Subscriber<C> subscriber : subscribers) {
+            if (lamport > subscriber.since && complete(subscriber, List.of(json), lamport)) {
+                pushes.increment();
+            }
+        }
+    }
+
+    /**
+     * Answer a subscriber unless it was answered already
+     * @return true when this call answered it
+     */
+    boolean complete(Subscriber<C> subscriber, List<byte[]> stations, long version) {
+        if (!subscriber.done.compareAndSet(false, true)) return false;
+        ScheduledFuture<?> timeout = subscriber.timeout;
+        if (timeout != null) timeout.cancel(false);
+        unregister(subscriber);
+        delivery.deliver(subscriber.connection, stations, version);
+        return true;
+    }
+
+    private void unregister(Subscriber<C> subscriber) {
+        waiting.decrementAndGet();
+        for (String id : subscriber.stationIds) {
+            byStation.computeIfPresent(id, (k, subscribers) -> {
+                subscribers.remove(subscriber);
+                return subscribers.isEmpty() ? null : subscribers;
+            });
+        }
+    }
+
+    /**
+     * Forget every subscriber without answering it
+     * @return the connections that were parked
+     */
+    List<C> close() {
+        timer.shutdownNow();
+        List<C> connections = new ArrayList<>();
+        for (Set<Subscriber<C>> subscribers : byStation.values()) {
+            for (Subscriber<C> subscriber : subscribers) {
+                if (subscriber.done.compareAndSet(false, true)) {
+                    unregister(subscriber);
+                    connections.add(subscriber.connection);
+                }
+            }
+        }
+        return connections;
+    }
+
+    int getWaiting() {
+        return waiting.get();
+    }
+
+    long getPushes() {
+        return pushes.sum();
+    }
+}
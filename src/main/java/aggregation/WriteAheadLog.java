@@ -0,0 +1,210 @@
+package aggregation;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import utilize.WeatherCodec;
+import utilize.WeatherData;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only log of applied updates. One JSON line per entry, batches
+ * appended concurrently are covered by a single fsync (group commit).
+ */
+public class WriteAheadLog implements Closeable {
+    public static final String PUT = "PUT";
+    public static final String DEL = "DEL";
+
+    /**
+     * One logged update. The body is kept as the UTF-8 JSON the server already encoded, so appending
+     * copies bytes instead of serializing a tree.
+     */
+    public record Entry(String op, String stationId, long lamport, String serverId, byte[] json) {
+        public Entry(String op, String stationId, long lamport, JsonObject body) {
+            this(op, stationId, lamport, null, body == null ? null : body.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        public JsonObject body() {
+            return json == null ? null : JsonParser.parseString(new String(json, StandardCharsets.UTF_8)).getAsJsonObject();
+        }
+
+        public WeatherData data() {
+            return json == null ? null : WeatherCodec.decode(json, 0, json.length);
+        }
+    }
+
+    /**
+     * Writes the snapshot a compaction folds the log into
+     */
+    @FunctionalInterface
+    public interface SnapshotWriter {
+        void write() throws IOException;
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Object syncLock = new Object();
+    private long entryCount;
+    private volatile long written;
+    private long synced;
+
+    public WriteAheadLog(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.entryCount = 0;
+        this.written = 0;
+        this.synced = 0;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Number of entries appended since the last compaction
+     * @return entry count
+     */
+    public synchronized long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Append a batch of entries and force them to disk with one fsync
+     * @param entries (List)
+     * @throws IOException
+     */
+    public void appendAll(List<Entry> entries) throws IOException {
+        sync(append(entries));
+    }
+
+    /**
+     * Write a batch of entries without forcing them to disk
+     * @param entries (List)
+     * @return log position to pass to {@link #sync(long)}
+     * @throws IOException
+     */
+    public synchronized long append(List<Entry> entries) throws IOException {
+        if (entries.isEmpty()) return written;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Entry entry : entries) {
+            encode(entry, out);
+            out.write('\n');
+        }
+        ByteBuffer buf = ByteBuffer.wrap(out.toByteArray());
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        entryCount += entries.size();
+        written += buf.capacity();
+        return written;
+    }
+
+    /**
+     * Make sure everything up to a log position is on disk. Writers that append while an fsync is
+     * running wait for it and are then covered together by the next one (group commit).
+     * @param position (long)
+     * @throws IOException
+     */
+    public void sync(long position) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= position) return; // covered by an fsync issued for another batch
+            long target = written;
+            channel.force(false);
+            synced = target;
+        }
+    }
+
+    /**
+     * Fold the log into a snapshot. The snapshot writer runs while the log is locked,
+     * so no entry can be appended between writing the snapshot and truncating the log.
+     * The log is only truncated once the snapshot is written: when the writer fails, every
+     * entry is kept and its exception is thrown.
+     * @param snapshotWriter (SnapshotWriter)
+     * @throws IOException
+     */
+    public synchronized void compact(SnapshotWriter snapshotWriter) throws IOException {
+        snapshotWriter.write();
+        synchronized (syncLock) {
+            channel.truncate(0);
+            channel.force(true);
+            entryCount = 0;
+            written = 0;
+            synced = 0;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Read every complete entry of a log file. A torn last line (crash in the middle of a write) is ignored.
+     * @param path (Path)
+     * @return entries in append order
+     * @throws IOException
+     */
+    public static List<Entry> replay(Path path) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        if (!Files.exists(path)) return entries;
+
+        try (BufferedReader br = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.isBlank()) continue;
+                try {
+                    entries.add(decode(line));
+                } catch (Exception e) {
+                    break;
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Write one entry as a JSON line, without the line break. The same lines are shipped to replicas.
+     * @param entry (Entry)
+     * @param out (ByteArrayOutputStream)
+     * @throws IOException
+     */
+    static void encode(Entry entry, ByteArrayOutputStream out) throws IOException {
+        StringWriter header = new StringWriter(64);
+        JsonWriter writer = new JsonWriter(header);
+        writer.beginObject();
+        writer.name("op").value(entry.op());
+        writer.name("stationId").value(entry.stationId());
+        writer.name("lamport").value(entry.lamport());
+        if (entry.serverId() != null) {
+            writer.name("serverId").value(entry.serverId());
+        }
+        writer.flush();
+        out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+        if (entry.json() != null) {
+            out.write(",\"body\":".getBytes(StandardCharsets.UTF_8));
+            out.write(entry.json());
+        }
+        out.write('}');
+    }
+
+    static Entry decode(String line) {
+        JsonObject obj = JsonParser.parseString(line).getAsJsonObject();
+        byte[] json = obj.has("body") ? obj.getAsJsonObject("body").toString().getBytes(StandardCharsets.UTF_8) : null;
+        String serverId = obj.has("serverId") ? obj.get("serverId").getAsString() : null;
+        return new Entry(obj.get("op").getAsString(), obj.get("stationId").getAsString(), obj.get("lamport").getAsLong(), serverId, json);
+    }
+}
@@ -1,17 +1,28 @@
 package client;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import utilize.ConnectionPool;
+import utilize.Geo;
+import utilize.HashRing;
 import utilize.LamportClock;
 import utilize.ReqResParser;
 
 import java.io.*;
-import java.net.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
 public class GETClient {
     private final LamportClock clock;
     private final String clientId; // You can make this configurable
+    private final ConnectionPool pool = new ConnectionPool();
+    private volatile HashRing cluster; // null when every GET goes to the address it is given
 
     public GETClient() {
         Random rand = new Random();
@@ -24,50 +35,128 @@ public class GETClient {
         return clock.get();
     }
 
+    /**
+     * Send every GET straight to the node that owns the station in a sharded cluster. The address
+     * given to sendGET is then ignored, and redirects from a node that knows a newer ring are followed.
+     * @param nodes (String) comma separated host:port of every node
+     */
+    public void setCluster(String nodes) {
+        this.cluster = HashRing.parse(nodes);
+    }
+
+    private record Response(String[] raw, ReqResParser.Header header, boolean keepAlive) {}
+
+    /**
+     * Answer of a subscription
+     * @param version StationVersion to subscribe from next time
+     * @param stations stations updated since the previous version, empty when the long-poll timed out
+     */
+    public record Update(long version, JsonArray stations) {}
+
+    private String buildGetRequest(String stationId, long lamportValue) {
+        return "GET /weather.json HTTP/1.1\r\n" +
+                "User-Agent: ATOMClient/1/0\r\n" +
+                "ClientId: " + this.clientId + "\r\n" +
+                "LamportClock: " + lamportValue + "\r\n" +
+                "StationId: " + stationId + "\r\n" +
+                "Connection: keep-alive\r\n" +
+                "\r\n";
+    }
+
+    /**
+     * Read one response from a connection and merge its Lamport value into the local clock
+     * @param conn (Connection)
+     * @return Response
+     * @throws Exception
+     */
+    private Response readResponse(ConnectionPool.Connection conn) throws Exception {
+        String[] response = ReqResParser.splitHeaderAndBodyFromRequest(conn.in());
+        if (response[0].isEmpty()) {
+            throw new EOFException("Connection closed by server");
+        }
+        ReqResParser.Header header = ReqResParser.readHeader(response[0]);
+        long lamport = Long.parseLong(header.metadata().get("LamportClock"));
+        clock.onReceive(lamport);
+        return new Response(response, header, "keep-alive".equalsIgnoreCase(header.metadata().get("Connection")));
+    }
+
+    /**
+     * GET one station. The address may list several servers, "primary:4567,replica:4568": when one
+     * cannot be reached the next is tried at once, the retry delay only applies once all of them failed.
+     * In cluster mode the station's owner is asked instead, and a redirect to another owner is followed once.
+     * @param serverAddress (String) host:port, or a comma-separated list of them
+     * @param stationId (String)
+     * @return response body, null when the server has no data for the station
+     */
     public String sendGET(String serverAddress, String stationId) throws IOException, InterruptedException {
-        String[] parts = serverAddress.split(":");
-        String host = parts[0];
-        int port;
+        HashRing ring = this.cluster;
+        String[] servers = ring == null ? serverAddress.split(",") : new String[] {ring.owner(stationId)};
+        String[] hosts = new String[servers.length];
+        int[] ports = new int[servers.length];
         int maxRetries = 3;
         int retries = 0;
+        int server = 0;
+        boolean redirected = false;
 
-        try {
-            port = Integer.parseInt(parts[1]);
-        } catch (NumberFormatException e) {
-            return "Invalid port";
+        for (int i = 0; i < servers.length; i++) {
+            String[] parts = servers[i].trim().split(":");
+            hosts[i] = parts[0];
+            try {
+                ports[i] = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                return "Invalid port";
+            }
         }
 
         while (retries < maxRetries) {
-            try (Socket socket = new Socket(host, port);
-                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            ConnectionPool.Connection conn = null;
+            String host = hosts[server];
+            int port = ports[server];
+            try {
+                conn = pool.acquire(host, port);
                 long lamportValue = clock.onSend();
 
-                String getRequest = "GET /weather.json HTTP/1.1\r\n" +
-                        "User-Agent: ATOMClient/1/0\r\n" +
-                        "ClientId: " + this.clientId + "\r\n" +
-                        "LamportClock: " + lamportValue + "\r\n" +
-                        "StationId: " + stationId + "\r\n" +
-                        "\r\n";
-                out.println(getRequest);
+                conn.out().print(buildGetRequest(stationId, lamportValue));
+                conn.out().flush();
 
-                String[] response = ReqResParser.splitHeaderAndBodyFromRequest(in);
-                ReqResParser.Header header = ReqResParser.readHeader(response[0]);
-                long lamport = Long.parseLong(header.metadata().get("LamportClock"));
-                clock.onReceive(lamport);
+                Response response = readResponse(conn);
+                pool.release(conn, response.keepAlive());
 
-                String[] sHeader = response[0].split("\r\n");
+                String[] sHeader = response.raw()[0].split("\r\n");
                 for (String info : sHeader) {
                     System.out.println(info);
                 }
                 System.out.println();
 
+                String location = response.header().metadata().get("Location");
+                if (sHeader[0].startsWith("HTTP/1.1 307") && ring != null && location != null && !redirected) {
+                    // The ring changed: ask the owner the node named, and route by its ring from now on
+                    String nodes = response.header().metadata().get("ClusterNodes");
+                    if (nodes != null) this.cluster = HashRing.parse(nodes);
+                    String[] owner = ReqResParser.addressOf(location).split(":");
+                    hosts[server] = owner[0];
+                    ports[server] = Integer.parseInt(owner[1]);
+                    redirected = true;
+                    continue;
+                }
                 if (sHeader[0].equals("HTTP/1.1 500 Internal Server Error")) {
                     return null;
                 }
-                return response[1];
+                return response.raw()[1];
             } catch (Exception e) {
+                if (conn != null) {
+                    pool.discard(conn);
+                    if (conn.isReused()) {
+                        // The server closed the idle pooled connection, retry at once on a fresh one
+                        continue;
+                    }
+                }
                 System.out.println("[Error] " + e.getMessage());
+                server = (server + 1) % servers.length;
+                if (server != 0) {
+                    System.out.println("[Retry] Fail over to " + servers[server].trim());
+                    continue;
+                }
                 retries++;
                 if (retries < maxRetries) {
                     System.out.println("[Retry] Retry on sending request");
@@ -82,16 +171,296 @@ public class GETClient {
         return "[Error] Could not connect to the Aggregation Server.";
     }
 
+    /**
+     * Pipeline GET requests for several stations down one persistent connection.
+     * Responses come back in request order, each carrying a larger Lamport value than the previous one.
+     * If the server closes the connection part way, the unanswered requests are sent again on a new one.
+     * @param serverAddress (String)
+     * @param stationIds (List)
+     * @return stationId to response body, null for stations without data
+     * @throws IOException
+     */
+    public Map<String, String> sendGETs(String serverAddress, List<String> stationIds) throws IOException {
+        String[] parts = serverAddress.split(":");
+        String host = parts[0];
+        int port = Integer.parseInt(parts[1]);
+        int maxRetries = 3;
+        int retries = 0;
+
+        Map<String, String> results = new LinkedHashMap<>();
+        List<String> remaining = new ArrayList<>(stationIds);
+        while (!remaining.isEmpty()) {
+            ConnectionPool.Connection conn = pool.acquire(host, port);
+            int answered = 0;
+            try {
+                for (String stationId : remaining) {
+                    conn.out().print(buildGetRequest(stationId, clock.onSend()));
+                }
+                conn.out().flush();
+
+                boolean keepAlive = true;
+                while (keepAlive && answered < remaining.size()) {
+                    Response response = readResponse(conn);
+                    boolean found = !response.raw()[0].startsWith("HTTP/1.1 500");
+                    results.put(remaining.get(answered), found ? response.raw()[1] : null);
+                    answered++;
+                    keepAlive = response.keepAlive();
+                }
+                pool.release(conn, keepAlive);
+            } catch (Exception e) {
+                pool.discard(conn);
+                if (answered == 0 && !conn.isReused() && ++retries >= maxRetries) {
+                    throw new IOException("Could not connect to the Aggregation Server.", e);
+                }
+            }
+            remaining = new ArrayList<>(remaining.subList(answered, remaining.size()));
+        }
+        return results;
+    }
+
+    /**
+     * Fetch several stations with one batch request
+     * @param serverAddress (String)
+     * @param stationIds (List) stations to fetch, an empty list fetches every station
+     * @return JSON array of the stations found
+     * @throws IOException
+     */
+    public JsonArray sendBatchGET(String serverAddress, List<String> stationIds) throws IOException {
+        String selector = stationIds.isEmpty() ? "*" : String.join(",", stationIds);
+        return sendSelectorGET(serverAddress, "StationIds: " + selector);
+    }
+
+    /**
+     * Fetch every station whose id starts with a prefix with one batch request
+     * @param serverAddress (String)
+     * @param prefix (String)
+     * @return JSON array of the stations found
+     * @throws IOException
+     */
+    public JsonArray sendPrefixGET(String serverAddress, String prefix) throws IOException {
+        return sendSelectorGET(serverAddress, "StationPrefix: " + prefix);
+    }
+
+    private JsonArray sendSelectorGET(String serverAddress, String selectorHeader) throws IOException {
+        Response response = exchange(serverAddress, "/weather/batch.json", selectorHeader + "\r\n");
+        if (!response.raw()[0].startsWith("HTTP/1.1 200")) {
+            throw new IOException("Batch GET failed: " + response.raw()[0].split("\r\n")[0]);
+        }
+        return JsonParser.parseString(response.raw()[1]).getAsJsonArray();
+    }
+
+    /**
+     * Fetch the observation history of a station, one JSON array per column, oldest first
+     * @param serverAddress (String)
+     * @param stationId (String)
+     * @param from (long) inclusive lower bound, -1 for none
+     * @param to (long) inclusive upper bound, -1 for none
+     * @param byTime (boolean) bounds are local_date_time_full values (yyyyMMddHHmmss), Lamport values otherwise
+     * @return {"id":..,"lamport":[..],"local_date_time_full":[..],"air_temp":[..],..}
+     * @throws IOException
+     */
+    public JsonObject sendHistoryGET(String serverAddress, String stationId, long from, long to, boolean byTime) throws IOException {
+        HashRing ring = this.cluster;
+        String address = ring == null ? serverAddress : ring.owner(stationId);
+        String headers = "StationId: " + stationId + "\r\n" +
+                         (from >= 0 ? "HistoryFrom: " + from + "\r\n" : "") +
+                         (to >= 0 ? "HistoryTo: " + to + "\r\n" : "") +
+                         (byTime ? "HistoryBy: time\r\n" : "");
+        Response response = exchange(address, "/weather/history.json", headers);
+        if (!response.raw()[0].startsWith("HTTP/1.1 200")) {
+            throw new IOException("History GET failed: " + response.raw()[0].split("\r\n")[0]);
+        }
+        return JsonParser.parseString(response.raw()[1]).getAsJsonObject();
+    }
+
+    /**
+     * Min, max and average of the numeric fields over the stations of each group. In a cluster every
+     * node answers for its own stations, and the answers are merged here.
+     * @param serverAddress (String)
+     * @param groupBy (String) state, time_zone or all
+     * @param group (String) only this group, e.g. "SA", null for every group
+     * @return {"groupBy":..,"groups":{"SA":{"air_temp":{"count":..,"sum":..,"min":..,"max":..,"avg":..},..},..}}
+     * @throws IOException
+     */
+    public JsonObject sendAggregateGET(String serverAddress, String groupBy, String group) throws IOException {
+        HashRing ring = this.cluster;
+        List<String> nodes = ring == null ? List.of(serverAddress) : ring.nodes();
+        String headers = "GroupBy: " + groupBy + "\r\n" + (group != null ? "Group: " + group + "\r\n" : "");
+        JsonObject merged = null;
+        for (String node : nodes) {
+            Response response = exchange(node, "/weather/aggregate.json", headers);
+            if (!response.raw()[0].startsWith("HTTP/1.1 200")) {
+                throw new IOException("Aggregate GET failed: " + response.raw()[0].split("\r\n")[0]);
+            }
+            JsonObject answer = JsonParser.parseString(response.raw()[1]).getAsJsonObject();
+            if (merged == null) {
+                merged = answer;
+            } else {
+                mergeAggregates(merged.getAsJsonObject("groups"), answer.getAsJsonObject("groups"));
+            }
+        }
+        return merged;
+    }
+
+    private static void mergeAggregates(JsonObject into, JsonObject groups) {
+        for (Map.Entry<String, JsonElement> group : groups.entrySet()) {
+            if (!into.has(group.getKey())) {
+                into.add(group.getKey(), group.getValue());
+                continue;
+            }
+            JsonObject fields = into.getAsJsonObject(group.getKey());
+            for (Map.Entry<String, JsonElement> field : group.getValue().getAsJsonObject().entrySet()) {
+                JsonObject other = field.getValue().getAsJsonObject();
+                if (!fields.has(field.getKey())) {
+                    fields.add(field.getKey(), other);
+                    continue;
+                }
+                JsonObject stats = fields.getAsJsonObject(field.getKey());
+                long count = stats.get("count").getAsLong() + other.get("count").getAsLong();
+                double sum = stats.get("sum").getAsDouble() + other.get("sum").getAsDouble();
+                stats.addProperty("count", count);
+                stats.addProperty("sum", sum);
+                stats.addProperty("min", Math.min(stats.get("min").getAsDouble(), other.get("min").getAsDouble()));
+                stats.addProperty("max", Math.max(stats.get("max").getAsDouble(), other.get("max").getAsDouble()));
+                stats.addProperty("avg", sum / count);
+            }
+        }
+    }
+
+    /**
+     * The stations closest to a point, by great-circle distance. In a cluster every node answers with
+     * its closest stations and the k closest of all are kept.
+     * @param serverAddress (String)
+     * @param lat (double)
+     * @param lon (double)
+     * @param count (int) stations wanted
+     * @return station records, closest first
+     * @throws IOException
+     */
+    public JsonArray sendNearestGET(String serverAddress, double lat, double lon, int count) throws IOException {
+        List<JsonObject> stations = new ArrayList<>();
+        for (JsonElement station : spatialGET(serverAddress, "/weather/nearest.json", "Near: " + lat + "," + lon + "\r\nCount: " + count + "\r\n")) {
+            stations.add(station.getAsJsonObject());
+        }
+        if (this.cluster != null) {
+            stations.sort(Comparator.comparingDouble(station -> Geo.distanceKm(lat, lon,
+                    station.get("lat").getAsDouble(), station.get("lon").getAsDouble())));
+        }
+        JsonArray nearest = new JsonArray();
+        for (int i = 0; i < Math.min(count, stations.size()); i++) {
+            nearest.add(stations.get(i));
+        }
+        return nearest;
+    }
+
+    /**
+     * The stations inside a box, edges included. In a cluster the stations of every node.
+     * @param serverAddress (String)
+     * @param minLat (double)
+     * @param minLon (double) west edge, greater than maxLon for a box across the antimeridian
+     * @param maxLat (double)
+     * @param maxLon (double)
+     * @return station records, unordered
+     * @throws IOException
+     */
+    public JsonArray sendBoxGET(String serverAddress, double minLat, double minLon, double maxLat, double maxLon) throws IOException {
+        return spatialGET(serverAddress, "/weather/box.json", "Box: " + minLat + "," + minLon + "," + maxLat + "," + maxLon + "\r\n");
+    }
+
+    private JsonArray spatialGET(String serverAddress, String path, String headers) throws IOException {
+        HashRing ring = this.cluster;
+        JsonArray stations = new JsonArray();
+        for (String node : ring == null ? List.of(serverAddress) : ring.nodes()) {
+            Response response = exchange(node, path, headers);
+            if (!response.raw()[0].startsWith("HTTP/1.1 200")) {
+                throw new IOException("Spatial GET failed: " + response.raw()[0].split("\r\n")[0]);
+            }
+            stations.addAll(JsonParser.parseString(response.raw()[1]).getAsJsonArray());
+        }
+        return stations;
+    }
+
+    /**
+     * Wait for the next update of some stations instead of polling them. The server answers as soon
+     * as one of them has a version newer than since, or with no station after its long-poll timeout.
+     * Call again with the returned version to follow the stations.
+     * @param serverAddress (String)
+     * @param stationIds (List) stations to follow, an empty list follows every station
+     * @param since (long) version already seen, -1 to get the current records first
+     * @return Update
+     * @throws IOException
+     */
+    public Update subscribe(String serverAddress, List<String> stationIds, long since) throws IOException {
+        String selector = stationIds.isEmpty() ? "*" : String.join(",", stationIds);
+        Response response = exchange(serverAddress, "/weather/subscribe",
+                "StationIds: " + selector + "\r\n" + (since >= 0 ? "Since: " + since + "\r\n" : ""));
+        String status = response.raw()[0].split("\r\n")[0];
+        if (!status.startsWith("HTTP/1.1 200") && !status.startsWith("HTTP/1.1 204")) {
+            throw new IOException("Subscription failed: " + status);
+        }
+        long version = Long.parseLong(response.header().metadata().get("StationVersion").trim());
+        JsonArray stations = response.raw()[1].isEmpty() ? new JsonArray() : JsonParser.parseString(response.raw()[1]).getAsJsonArray();
+        return new Update(version, stations);
+    }
+
+    private Response exchange(String serverAddress, String path, String headers) throws IOException {
+        String[] parts = serverAddress.split(":");
+        String host = parts[0];
+        int port = Integer.parseInt(parts[1]);
+
+        Response response = null;
+        for (int attempt = 0; response == null; attempt++) {
+            ConnectionPool.Connection conn = pool.acquire(host, port);
+            try {
+                conn.out().print("GET " + path + " HTTP/1.1\r\n" +
+                        "User-Agent: ATOMClient/1/0\r\n" +
+                        "ClientId: " + this.clientId + "\r\n" +
+                        "LamportClock: " + clock.onSend() + "\r\n" +
+                        headers +
+                        "Connection: keep-alive\r\n" +
+                        "\r\n");
+                conn.out().flush();
+
+                response = readResponse(conn);
+                pool.release(conn, response.keepAlive());
+            } catch (IOException e) {
+                pool.discard(conn);
+                // A pooled connection may have been closed while idle, retry once on a fresh one
+                if (!conn.isReused() || attempt > 0) throw e;
+            } catch (Exception e) {
+                pool.discard(conn);
+                throw new IOException("Could not read the response", e);
+            }
+        }
+        return response;
+    }
+
     public static void main(String[] args) throws Exception {
         if (args.length < 2) {
-            System.err.println("Usage: java GETClient <serverHost:port> <stationId>");
+            System.err.println("Usage: java GETClient <serverHost:port>[,<serverHost:port>...] <stationId> [--follow]");
             return;
         }
 
         GETClient client = new GETClient();
+        String cluster = System.getProperty("client.cluster");
+        if (cluster != null) {
+            client.setCluster(cluster); // sharded: ask the node owning the station
+        }
         String serverAddress = args[0];
         String stationId = args[1];
 
+        if (args.length > 2 && args[2].equals("--follow")) {
+            // Print every new version of the station as the server applies it
+            long version = -1;
+            while (true) {
+                Update update = client.subscribe(serverAddress.split(",")[0], List.of(stationId), version);
+                version = update.version();
+                for (int i = 0; i < update.stations().size(); i++) {
+                    System.out.println(update.stations().get(i));
+                }
+            }
+        }
+
         String response = client.sendGET(serverAddress, stationId);
         if (response != null) {
             JsonObject jsonResponse = ReqResParser.readBody(response);
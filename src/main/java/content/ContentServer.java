@@ -1,35 +1,233 @@
 package content;
 
 import java.io.*;
-import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import utilize.ConnectionPool;
+import utilize.HashRing;
 import utilize.JsonUtil;
 import utilize.LamportClock;
+import utilize.ReqResParser;
 
 public class ContentServer {
 
     private final LamportClock clock;
     private final JsonObject jsonWeatherData;
+    private final List<JsonObject> stations;
     private final String serverId;
+    private final ConnectionPool pool = new ConnectionPool();
+    private final Random random = new Random();
+    private JsonObject acknowledged; // last record the server stored for the first station, base of the next delta
+    private long acknowledgedVersion = -1;
+    private volatile HashRing cluster; // null when every PUT goes to the address it is given
+
+    private record Reply(int statusCode, ReqResParser.Header header) {}
+
+    private static final String FULL_RECORD = "BaseVersion: -1\r\n"; // full PUT answered with its StationVersion
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long BASE_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
 
     public ContentServer(String filePath) throws Exception {
-        Random rand = new Random();
-        int num = rand.nextInt(100);
-        this.serverId = "cs" + num;
+        this(List.of(filePath));
+    }
+
+    /**
+     * Content server feeding several stations, one weather file per station
+     * @param filePaths (List)
+     * @throws Exception
+     */
+    public ContentServer(List<String> filePaths) throws Exception {
+        // Unique per feeder: the ServerId breaks version ties and tells the updates of one sender apart
+        this.serverId = System.getProperty("content.serverId", "cs-" + UUID.randomUUID());
         this.clock = new LamportClock();
-        this.jsonWeatherData = JsonUtil.fromText(filePath);
+        this.stations = new ArrayList<>();
+        for (String filePath : filePaths) {
+            this.stations.add(JsonUtil.fromText(filePath));
+        }
+        this.jsonWeatherData = this.stations.get(0);
     }
 
     public JsonObject getWeatherData() {
         return this.jsonWeatherData;
     }
 
-    public void sendPUT(String serverAddress) throws IOException {
+    public List<JsonObject> getStations() {
+        return this.stations;
+    }
+
+    /**
+     * Send every station straight to the node that owns it in a sharded cluster. The address given
+     * to a PUT is then ignored, and redirects from a node that knows a newer ring are followed.
+     * @param nodes (String) comma separated host:port of every node
+     */
+    public void setCluster(String nodes) {
+        this.cluster = HashRing.parse(nodes);
+    }
+
+    /**
+     * @param serverAddress (String) address the PUT was given
+     * @param stationId (String)
+     * @return owner of the station in cluster mode, the given address otherwise
+     */
+    private String route(String serverAddress, String stationId) {
+        HashRing ring = this.cluster;
+        return ring == null ? serverAddress : ring.owner(stationId);
+    }
+
+    /**
+     * Send the weather data to the aggregation server. A 503 answer is retried after the
+     * server's Retry-After delay, doubled on every attempt and jittered so that rejected
+     * content servers do not come back all at once.
+     * @param serverAddress (String) host:port
+     * @return status code of the final response
+     * @throws IOException
+     */
+    public int sendPUT(String serverAddress) throws IOException {
+        return sendFullPUT(serverAddress, "");
+    }
+
+    /**
+     * @param extraHeaders header lines, each terminated by CRLF
+     */
+    private int sendFullPUT(String serverAddress, String extraHeaders) throws IOException {
+        String address = route(serverAddress, this.jsonWeatherData.get("id").getAsString());
+        Reply reply = send(address, "/weather.json", this.jsonWeatherData.toString(), extraHeaders);
+        acknowledge(reply, this.jsonWeatherData);
+        return reply.statusCode();
+    }
+
+    /**
+     * Send only the fields that changed since the last record the server acknowledged, along with
+     * the StationVersion it answered. The first update, an update removing a field and an update
+     * refused with 409 (the server holds another version) are sent in full, with "BaseVersion: -1"
+     * so that the server answers once it knows the version the record is stored under.
+     * @param serverAddress (String) host:port
+     * @return status code of the final response
+     * @throws IOException
+     */
+    public int sendDeltaPUT(String serverAddress) throws IOException {
+        JsonObject current = this.jsonWeatherData;
+        if (acknowledged == null || !current.keySet().containsAll(acknowledged.keySet())) {
+            return sendFullPUT(serverAddress, FULL_RECORD);
+        }
+
+        JsonObject delta = new JsonObject();
+        delta.add("id", current.get("id"));
+        for (Map.Entry<String, JsonElement> field : current.entrySet()) {
+            if (!field.getValue().equals(acknowledged.get(field.getKey()))) {
+                delta.add(field.getKey(), field.getValue());
+            }
+        }
+        String address = route(serverAddress, current.get("id").getAsString());
+        Reply reply = send(address, "/weather.json", delta.toString(), "BaseVersion: " + acknowledgedVersion + "\r\n");
+        if (reply.statusCode() == 409) {
+            System.out.println("[ContentServer] Base version " + acknowledgedVersion + " is stale, send the full record");
+            acknowledged = null;
+            return sendFullPUT(serverAddress, FULL_RECORD);
+        }
+        acknowledge(reply, current);
+        return reply.statusCode();
+    }
+
+    /**
+     * Remember what the server stored after a successful PUT of the first station. Only a PUT the
+     * server stored answers a StationVersion: one it dropped for a newer version, or answered before
+     * knowing, leaves no base to build a delta on.
+     * @param reply (Reply)
+     * @param sent (JsonObject) full record the server now holds
+     */
+    private void acknowledge(Reply reply, JsonObject sent) {
+        if (reply.statusCode() != 200 && reply.statusCode() != 201) return;
+        String version = reply.header().metadata().get("StationVersion");
+        if (version != null) {
+            acknowledged = sent.deepCopy();
+            acknowledgedVersion = Long.parseLong(version.trim());
+        } else {
+            acknowledged = null;
+        }
+    }
+
+    /**
+     * Send every station of this content server in one batch PUT. The server stamps the whole
+     * batch with one Lamport value and answers once for all of them. In cluster mode there is one
+     * batch per node, and a node that answers 421 (the ring changed) gets its share split again.
+     * @param serverAddress (String) host:port
+     * @return status code of the final response, the first failure when a node's batch failed
+     * @throws IOException
+     */
+    public int sendBatchPUT(String serverAddress) throws IOException {
+        if (this.cluster == null) {
+            JsonArray batch = new JsonArray();
+            for (JsonObject station : this.stations) {
+                batch.add(station);
+            }
+            return send(serverAddress, "/weather/batch.json", batch.toString(), "").statusCode();
+        }
+        return sendBatchPUT(serverAddress, this.stations, true);
+    }
+
+    private int sendBatchPUT(String serverAddress, List<JsonObject> stations, boolean retryMisdirected) throws IOException {
+        Map<String, JsonArray> batches = new LinkedHashMap<>();
+        for (JsonObject station : stations) {
+            String owner = route(serverAddress, station.get("id").getAsString());
+            batches.computeIfAbsent(owner, k -> new JsonArray()).add(station);
+        }
+        int status = 200;
+        for (Map.Entry<String, JsonArray> batch : batches.entrySet()) {
+            Reply reply = send(batch.getKey(), "/weather/batch.json", batch.getValue().toString(), "");
+            int code = reply.statusCode();
+            if (code == 421 && retryMisdirected && learnCluster(reply.header())) {
+                List<JsonObject> again = new ArrayList<>();
+                batch.getValue().forEach(station -> again.add(station.getAsJsonObject()));
+                code = sendBatchPUT(serverAddress, again, false);
+            }
+            if (code >= 300 && status < 300 || code == 201 && status == 200) {
+                status = code;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Take the ring a cluster node answered with
+     * @param header (Header)
+     * @return true when the header carried a ring
+     */
+    private boolean learnCluster(ReqResParser.Header header) {
+        String nodes = header.metadata().get("ClusterNodes");
+        if (nodes == null) return false;
+        this.cluster = HashRing.parse(nodes);
+        return true;
+    }
+
+    /**
+     * Send one request. In cluster mode a 307 from a node that does not own the station is followed
+     * once, to the owner it names.
+     */
+    private Reply send(String serverAddress, String path, String content, String extraHeaders) throws IOException {
+        Reply reply = exchange(serverAddress, path, content, extraHeaders);
+        String location = reply.header().metadata().get("Location");
+        if (reply.statusCode() == 307 && this.cluster != null && location != null) {
+            learnCluster(reply.header());
+            reply = exchange(ReqResParser.addressOf(location), path, content, extraHeaders);
+        }
+        return reply;
+    }
+
+    private Reply exchange(String serverAddress, String path, String content, String extraHeaders) throws IOException {
         String[] parts = serverAddress.split(":");
         String host = parts[0];
         int port;
@@ -38,62 +236,116 @@ public class ContentServer {
             port = Integer.parseInt(parts[1]);
         } catch (NumberFormatException e) {
             System.out.println("Invalid port");
-            return;
+            return new Reply(400, new ReqResParser.Header("", Map.of()));
         }
 
-        try (Socket socket = new Socket(host, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
-            String content = this.jsonWeatherData.toString();
-            long lamportValue = clock.onSend();
-
-
-            // Format of request
-            String putRequest = "PUT /weather.json HTTP/1.1\r\n" +
-                                "User-Agent: ATOMClient/1/0\r\n" +
-                                "ServerId: " + this.serverId + "\r\n" +
-                                "LamportClock: " + lamportValue + "\r\n" +
-                                "Content-Type: application/json\r\n" +
-                                "Content-Length: " + content.length() + "\r\n" +
-                                "\r\n" +
-                                content;
-
-            // Send request
-            out.println(putRequest);
-            System.out.println("[ContentServer] Request sent (Lamport = " + clock.get() + ")");
-
-            // Read the response
-            String line;
-            long lamport = 0;
-            while ((line = in.readLine()) != null) {
-                if (line.startsWith("LamportClock: ")) {
-                    lamport = Integer.parseInt(line.split(":")[1].trim());
-                    clock.onReceive(lamport);
+        boolean retried = false;
+        int attempts = 0;
+        while (true) {
+            ConnectionPool.Connection conn = pool.acquire(host, port);
+            try {
+                long lamportValue = clock.onSend();
+
+                // Format of request
+                String putRequest = "PUT " + path + " HTTP/1.1\r\n" +
+                                    "User-Agent: ATOMClient/1/0\r\n" +
+                                    "ServerId: " + this.serverId + "\r\n" +
+                                    "LamportClock: " + lamportValue + "\r\n" +
+                                    extraHeaders +
+                                    "Connection: keep-alive\r\n" +
+                                    "Content-Type: application/json\r\n" +
+                                    "Content-Length: " + content.getBytes(StandardCharsets.UTF_8).length + "\r\n" +
+                                    "\r\n" +
+                                    content;
+
+                // Send request
+                conn.out().print(putRequest);
+                conn.out().flush();
+                System.out.println("[ContentServer] Request sent (Lamport = " + clock.get() + ")");
+
+                // Read the response, framed by its Content-Length so the connection can be reused
+                String[] response = ReqResParser.splitHeaderAndBodyFromRequest(conn.in());
+                if (response[0].isEmpty()) {
+                    throw new EOFException("Connection closed by server");
+                }
+                ReqResParser.Header header = ReqResParser.readHeader(response[0]);
+                long lamport = Long.parseLong(header.metadata().get("LamportClock"));
+                clock.onReceive(lamport);
+                for (String line : response[0].split("\r\n")) {
+                    System.out.println(line);
+                }
+
+                pool.release(conn, "keep-alive".equalsIgnoreCase(header.metadata().get("Connection")));
+
+                int statusCode = Integer.parseInt(response[0].split(" ", 3)[1]);
+                if (statusCode == 503 && ++attempts < MAX_ATTEMPTS) {
+                    backoff(header.metadata().get("Retry-After"), attempts);
+                    continue;
+                }
+                return new Reply(statusCode, header);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while backing off");
+            } catch (Exception e) {
+                pool.discard(conn);
+                if (!conn.isReused() || retried) {
+                    throw e instanceof IOException io ? io : new IOException(e);
                 }
-                System.out.println(line);
+                // The server closed the idle pooled connection, retry once on a fresh one
+                retried = true;
             }
+        }
+    }
 
+    /**
+     * Sleep before retrying a rejected PUT
+     * @param retryAfter (String) Retry-After header in seconds, may be null
+     * @param attempts (int) number of rejected attempts so far
+     * @throws InterruptedException
+     */
+    private void backoff(String retryAfter, int attempts) throws InterruptedException {
+        long base = BASE_BACKOFF_MILLIS;
+        if (retryAfter != null) {
+            try {
+                base = Math.max(base, Long.parseLong(retryAfter.trim()) * 1000);
+            } catch (NumberFormatException ignored) {
+            }
         }
+        long delay = Math.min(MAX_BACKOFF_MILLIS, base << (attempts - 1));
+        delay = (long) (delay * (0.5 + random.nextDouble())); // +/- 50% jitter
+        System.out.println("[ContentServer] Server busy, retry in " + delay + " ms");
+        Thread.sleep(delay);
     }
 
     public static void main(String[] args) throws Exception {
         if (args.length < 2) {
-            System.err.println("Usage: java ContentServer <serverHost:port> <filePath>");
+            System.err.println("Usage: java ContentServer <serverHost:port> <filePath> [<filePath> ...]");
+            System.err.println("       -Dcontent.cluster=<host:port>,<host:port>... routes every station to its node");
             return;
         }
 
-        String filePath = args[1];
-        ContentServer contentServer = new ContentServer(filePath);
+        List<String> filePaths = List.of(args).subList(1, args.length);
+        ContentServer contentServer = new ContentServer(filePaths);
         String serverAddress = args[0];
+        boolean delta = Boolean.getBoolean("content.delta");
+        String cluster = System.getProperty("content.cluster");
+        if (cluster != null) {
+            contentServer.setCluster(cluster); // sharded: each station goes to the node owning it
+        }
 
 
         // Set up scheduler to send PUT request every 10 seconds
         ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
         scheduler.scheduleAtFixedRate(() -> {
             try {
-                // Send PUT request
-                contentServer.sendPUT(serverAddress);
+                // Send PUT request, several stations go in one batch
+                if (filePaths.size() > 1) {
+                    contentServer.sendBatchPUT(serverAddress);
+                } else if (delta) {
+                    contentServer.sendDeltaPUT(serverAddress);
+                } else {
+                    contentServer.sendPUT(serverAddress);
+                }
             } catch (Exception e) {
                 System.out.println("[Error] " + e.getMessage());
             }
@@ -0,0 +1,393 @@
+package loadgen;
+
+import utilize.ConnectionPool;
+import utilize.HashRing;
+import utilize.LamportClock;
+import utilize.LatencyHistogram;
+import utilize.ReqResParser;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator: synthetic stations fed by simulated content servers at a fixed PUT rate,
+ * and simulated GET clients reading them at a fixed GET rate. Requests are those of ContentServer and
+ * GETClient, each simulated process with its own Lamport clock, ServerId or ClientId and connections.
+ * <p>
+ * Every request has an intended start time on a fixed schedule and is sent from its own virtual
+ * thread, whether or not the previous ones were answered. Latency runs from the intended start, so a
+ * stalled server shows up as latency instead of silently lowering the rate (coordinated omission).
+ * <p>
+ * Settings (system properties): load.stations, load.feeders, load.putRate, load.readers, load.getRate
+ * (per second), load.skew (Zipf exponent of the stations read, 0 for uniform), load.seconds,
+ * load.maxInFlight, load.cluster (route every station to its node).
+ */
+public class LoadGenerator {
+    private static final int SEED_BATCH = 500;
+    private static final long DRAIN_MILLIS = 10_000;
+    private static final String[] STATES = {"SA", "NSW", "VIC", "QLD", "WA", "TAS", "NT", "ACT"};
+
+    private record Reply(int statusCode, String body) {}
+
+    /**
+     * A simulated content server or GET client: its own clock, identity and connections
+     */
+    private static final class Process {
+        final String name;
+        final LamportClock clock = new LamportClock();
+        final ConnectionPool pool = new ConnectionPool();
+
+        Process(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Outcome of one kind of request
+     */
+    public static final class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder sent = new LongAdder();
+        final LongAdder failed = new LongAdder(); // no answer: connection refused or reset, timeout
+        final LongAdder dropped = new LongAdder(); // not sent, load.maxInFlight requests were waiting
+        final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+        public long sent() { return sent.sum(); }
+
+        public long failed() { return failed.sum(); }
+
+        public long dropped() { return dropped.sum(); }
+
+        public LatencyHistogram latency() { return latency; }
+
+        /**
+         * @return number of answers with a status code
+         */
+        public long answered(int statusCode) {
+            LongAdder count = statuses.get(statusCode);
+            return count == null ? 0 : count.sum();
+        }
+
+        /**
+         * @return answers with a 2xx status
+         */
+        public long succeeded() {
+            long count = 0;
+            for (Map.Entry<Integer, LongAdder> status : statuses.entrySet()) {
+                if (status.getKey() / 100 == 2) count += status.getValue().sum();
+            }
+            return count;
+        }
+
+        /**
+         * @return requests not answered with a 2xx status, dropped ones included
+         */
+        public long errors() {
+            return sent() - succeeded() + dropped();
+        }
+    }
+
+    private final String serverAddress;
+    private final HashRing cluster; // null when every request goes to serverAddress
+    private final int stations;
+    private final Process[] feeders;
+    private final Process[] readers;
+    private final double putRate;
+    private final double getRate;
+    private final double[] readDistribution; // cumulative probability of reading each station
+    private final long durationNanos;
+    private final Semaphore inFlight;
+    private final AtomicLong[] observations; // per station, makes every PUT a new version with new content
+    private final Stats puts = new Stats();
+    private final Stats gets = new Stats();
+    private long elapsedNanos;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java LoadGenerator <serverHost:port>");
+            System.err.println("       -Dload.stations=1000 -Dload.feeders=100 -Dload.putRate=1000");
+            System.err.println("       -Dload.readers=100 -Dload.getRate=1000 -Dload.skew=0 -Dload.seconds=30");
+            System.err.println("       -Dload.maxInFlight=10000 -Dload.cluster=<host:port>,<host:port>...");
+            return;
+        }
+        LoadGenerator generator = new LoadGenerator(args[0]);
+        generator.run();
+        generator.report(System.out);
+    }
+
+    public LoadGenerator(String serverAddress) {
+        this.serverAddress = serverAddress;
+        String nodes = System.getProperty("load.cluster");
+        this.cluster = nodes == null ? null : HashRing.parse(nodes);
+        this.stations = Integer.getInteger("load.stations", 1000);
+        this.feeders = processes("load-cs", Math.min(stations, Integer.getInteger("load.feeders", 100)));
+        this.readers = processes("load-client", Integer.getInteger("load.readers", 100));
+        this.putRate = Double.parseDouble(System.getProperty("load.putRate", "1000"));
+        this.getRate = Double.parseDouble(System.getProperty("load.getRate", "1000"));
+        this.readDistribution = zipf(stations, Double.parseDouble(System.getProperty("load.skew", "0")));
+        this.durationNanos = TimeUnit.SECONDS.toNanos(Long.getLong("load.seconds", 30));
+        this.inFlight = new Semaphore(Integer.getInteger("load.maxInFlight", 10_000));
+        this.observations = new AtomicLong[stations];
+        for (int i = 0; i < stations; i++) {
+            observations[i] = new AtomicLong();
+        }
+    }
+
+    private static Process[] processes(String prefix, int count) {
+        Process[] processes = new Process[count];
+        for (int i = 0; i < count; i++) {
+            processes[i] = new Process(prefix + i);
+        }
+        return processes;
+    }
+
+    /**
+     * Cumulative Zipf distribution over the stations: station i is read in proportion to 1/(i+1)^skew
+     */
+    private static double[] zipf(int n, double skew) {
+        double[] cumulative = new double[n];
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += 1 / Math.pow(i + 1, skew);
+            cumulative[i] = total;
+        }
+        for (int i = 0; i < n; i++) {
+            cumulative[i] /= total;
+        }
+        return cumulative;
+    }
+
+    private int pickStation(SplittableRandom random) {
+        int index = Arrays.binarySearch(readDistribution, random.nextDouble());
+        return Math.min(stations - 1, index >= 0 ? index : -index - 1);
+    }
+
+    private static String stationId(int station) {
+        return "LOAD" + station;
+    }
+
+    private String route(String stationId) {
+        return cluster == null ? serverAddress : cluster.owner(stationId);
+    }
+
+    /**
+     * Record of a station, new figures at every observation
+     */
+    private String stationJson(int station) {
+        long n = observations[station].incrementAndGet();
+        double temp = 10 + (station * 7 + n) % 200 / 10.0;
+        return "{\"id\":\"" + stationId(station) + "\",\"name\":\"Load station " + station + "\",\"state\":\"" + STATES[station % STATES.length]
+                + "\",\"time_zone\":\"CST\",\"lat\":\"" + (-10 - station % 30) + "\",\"lon\":\"" + (115 + station % 40)
+                + "\",\"local_date_time_full\":\"" + (20230715000000L + n % 24 * 10000) + "\",\"air_temp\":\"" + temp
+                + "\",\"press\":\"1013.5\",\"rel_hum\":\"" + (40 + n % 50) + "\",\"wind_spd_kmh\":\"" + n % 40 + "\"}";
+    }
+
+    /**
+     * Create every station with batch PUTs, so that readers find them from the first second
+     * @throws IOException when the server refuses them
+     */
+    private void seed() throws IOException {
+        Process seeder = new Process("load-seed");
+        for (int from = 0; from < stations; from += SEED_BATCH) {
+            Map<String, StringBuilder> bodies = new LinkedHashMap<>(); // one batch per node in a cluster
+            for (int station = from; station < Math.min(stations, from + SEED_BATCH); station++) {
+                StringBuilder body = bodies.computeIfAbsent(route(stationId(station)), k -> new StringBuilder("["));
+                body.append(body.length() > 1 ? "," : "").append(stationJson(station));
+            }
+            for (Map.Entry<String, StringBuilder> batch : bodies.entrySet()) {
+                int status = exchange(seeder, batch.getKey(), "PUT", "/weather/batch.json", "ServerId: " + seeder.name + "\r\n",
+                                      batch.getValue().append("]").toString()).statusCode();
+                if (status / 100 != 2) {
+                    throw new IOException("Seeding stations failed with status " + status);
+                }
+            }
+        }
+        awaitApplied(seeder);
+        seeder.pool.close();
+    }
+
+    /**
+     * PUTs are acknowledged once queued: wait until no update is pending on any node, read from its metrics
+     */
+    private void awaitApplied(Process process) throws IOException {
+        long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+        for (String node : cluster == null ? List.of(serverAddress) : cluster.nodes()) {
+            while (true) {
+                String metrics = exchange(process, node, "GET", "/metrics", "", null).body();
+                boolean idle = metrics.lines().anyMatch(line -> line.equals("aggregation_pending_updates 0"));
+                if (idle || System.currentTimeMillis() > deadline) break;
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while seeding");
+                }
+            }
+        }
+    }
+
+    /**
+     * Seed the stations, then run both schedules for load.seconds and wait for the answers
+     * @throws Exception
+     */
+    public void run() throws Exception {
+        seed();
+        try (ExecutorService requests = Executors.newVirtualThreadPerTaskExecutor()) {
+            long start = System.nanoTime();
+            Thread writer = Thread.ofPlatform().name("load-put").start(() -> schedule(start, putRate, puts, requests, true));
+            Thread reader = Thread.ofPlatform().name("load-get").start(() -> schedule(start, getRate, gets, requests, false));
+            writer.join();
+            reader.join();
+            requests.shutdown();
+            if (!requests.awaitTermination(DRAIN_MILLIS, TimeUnit.MILLISECONDS)) {
+                requests.shutdownNow(); // still unanswered: counted as failed
+            }
+            elapsedNanos = System.nanoTime() - start;
+        }
+        for (Process process : feeders) {
+            process.pool.close();
+        }
+        for (Process process : readers) {
+            process.pool.close();
+        }
+    }
+
+    /**
+     * Issue requests at their intended times until the end of the run. A request whose time has
+     * passed is issued at once: the schedule never slows down because answers are late.
+     */
+    private void schedule(long start, double rate, Stats stats, ExecutorService requests, boolean put) {
+        if (rate <= 0) return;
+        SplittableRandom random = new SplittableRandom(put ? 1 : 2);
+        double interval = 1e9 / rate;
+        for (long i = 0; ; i++) {
+            long intended = start + (long) (i * interval);
+            if (intended - start >= durationNanos) return;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (!inFlight.tryAcquire()) {
+                stats.dropped.increment();
+                continue;
+            }
+            int station = put ? (int) (i % stations) : pickStation(random);
+            Process process = put ? feeders[station % feeders.length] : readers[(int) (i % readers.length)];
+            requests.execute(() -> {
+                try {
+                    send(process, station, put, stats, intended);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+    }
+
+    private void send(Process process, int station, boolean put, Stats stats, long intended) {
+        stats.sent.increment();
+        String stationId = stationId(station);
+        try {
+            Reply reply = put
+                    ? exchange(process, route(stationId), "PUT", "/weather.json", "ServerId: " + process.name + "\r\n", stationJson(station))
+                    : exchange(process, route(stationId), "GET", "/weather.json",
+                               "ClientId: " + process.name + "\r\nStationId: " + stationId + "\r\n", null);
+            stats.statuses.computeIfAbsent(reply.statusCode(), k -> new LongAdder()).increment();
+        } catch (Exception e) {
+            stats.failed.increment();
+        }
+        stats.latency.record(System.nanoTime() - intended);
+    }
+
+    /**
+     * One request on a pooled connection of the process, as ContentServer and GETClient send them:
+     * stamped by the process clock, which merges the LamportClock of the answer
+     * @return Reply
+     */
+    private static Reply exchange(Process process, String address, String method, String path, String headers, String body) throws IOException {
+        String[] parts = address.split(":");
+        boolean retried = false;
+        while (true) {
+            ConnectionPool.Connection conn = process.pool.acquire(parts[0], Integer.parseInt(parts[1]));
+            try {
+                byte[] content = body == null ? null : body.getBytes(StandardCharsets.UTF_8);
+                conn.out().print(method + " " + path + " HTTP/1.1\r\n" +
+                                 "User-Agent: ATOMClient/1/0\r\n" +
+                                 headers +
+                                 "LamportClock: " + process.clock.onSend() + "\r\n" +
+                                 "Connection: keep-alive\r\n" +
+                                 (content == null ? "" : "Content-Type: application/json\r\nContent-Length: " + content.length + "\r\n") +
+                                 "\r\n" +
+                                 (body == null ? "" : body));
+                conn.out().flush();
+
+                String[] response = ReqResParser.splitHeaderAndBodyFromRequest(conn.in());
+                if (response[0].isEmpty()) {
+                    throw new EOFException("Connection closed by server");
+                }
+                ReqResParser.Header header = ReqResParser.readHeader(response[0]);
+                String lamport = header.metadata().get("LamportClock");
+                if (lamport != null) {
+                    process.clock.onReceive(Long.parseLong(lamport.trim()));
+                }
+                process.pool.release(conn, "keep-alive".equalsIgnoreCase(header.metadata().get("Connection")));
+                return new Reply(Integer.parseInt(response[0].split(" ", 3)[1]), response[1]);
+            } catch (Exception e) {
+                process.pool.discard(conn);
+                if (!conn.isReused() || retried) {
+                    throw e instanceof IOException io ? io : new IOException(e);
+                }
+                retried = true; // the server closed the idle pooled connection, retry once on a fresh one
+            }
+        }
+    }
+
+    public Stats getPuts() {
+        return puts;
+    }
+
+    public Stats getGets() {
+        return gets;
+    }
+
+    /**
+     * Throughput, errors and latency percentiles of the run
+     * @param out (PrintStream)
+     */
+    public void report(PrintStream out) {
+        double seconds = elapsedNanos / 1e9;
+        out.printf(Locale.ROOT, "Load against %s: %d stations, %d feeders, %d readers, %.1f s%n",
+                   cluster == null ? serverAddress : cluster.toHeader(), stations, feeders.length, readers.length, seconds);
+        report(out, "PUT", puts, putRate, seconds);
+        report(out, "GET", gets, getRate, seconds);
+    }
+
+    private static void report(PrintStream out, String kind, Stats stats, double rate, double seconds) {
+        if (rate <= 0) return;
+        out.printf(Locale.ROOT, "%s  target %.0f/s  achieved %.1f/s  sent %d  ok %d  errors %d (no answer %d, dropped %d)%n",
+                   kind, rate, stats.succeeded() / seconds, stats.sent(), stats.succeeded(), stats.errors(), stats.failed(), stats.dropped());
+        StringBuilder statuses = new StringBuilder();
+        stats.statuses.entrySet().stream().sorted(Map.Entry.comparingByKey())
+                .forEach(status -> statuses.append(" ").append(status.getKey()).append(": ").append(status.getValue().sum()));
+        out.println(kind + "  status" + statuses);
+        LatencyHistogram latency = stats.latency();
+        out.printf(Locale.ROOT, "%s  latency ms  p50 %.3f  p99 %.3f  p999 %.3f  max %.3f%n", kind,
+                   latency.percentile(0.5) / 1e6, latency.percentile(0.99) / 1e6, latency.percentile(0.999) / 1e6, latency.percentile(1) / 1e6);
+    }
+}
@@ -0,0 +1,119 @@
+package utilize;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pool of persistent (keep-alive) connections, keyed by "host:port"
+ */
+public class ConnectionPool implements Closeable {
+    public static final class Connection implements Closeable {
+        private final String address;
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+        private boolean reused;
+
+        private Connection(String address, Socket socket) throws IOException {
+            this.address = address;
+            this.socket = socket;
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), false);
+            this.reused = false;
+        }
+
+        public BufferedReader in() { return in; }
+
+        public PrintWriter out() { return out; }
+
+        /**
+         * Whether the connection came out of the pool. A reused connection may have been closed by
+         * the server while it was idle, so a failure on it is worth one immediate retry.
+         * @return boolean
+         */
+        public boolean isReused() { return reused; }
+
+        public boolean isOpen() {
+            return !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static final int MAX_IDLE_PER_ADDRESS = 8;
+
+    private final Map<String, Deque<Connection>> idle = new ConcurrentHashMap<>();
+
+    /**
+     * Take an idle connection to the address, or open a new one
+     * @param host (String)
+     * @param port (int)
+     * @return Connection
+     * @throws IOException
+     */
+    public Connection acquire(String host, int port) throws IOException {
+        String address = host + ":" + port;
+        Deque<Connection> deque = idle.get(address);
+        if (deque != null) {
+            synchronized (deque) {
+                Connection conn;
+                while ((conn = deque.pollFirst()) != null) {
+                    if (conn.isOpen()) {
+                        conn.reused = true;
+                        return conn;
+                    }
+                }
+            }
+        }
+        return new Connection(address, new Socket(host, port));
+    }
+
+    /**
+     * Return a connection to the pool. If the server asked to close it, or the pool is full, close it instead.
+     * @param conn (Connection)
+     * @param keepAlive (boolean) whether the last response allowed the connection to stay open
+     */
+    public void release(Connection conn, boolean keepAlive) {
+        if (keepAlive && conn.isOpen()) {
+            Deque<Connection> deque = idle.computeIfAbsent(conn.address, k -> new ArrayDeque<>());
+            synchronized (deque) {
+                if (deque.size() < MAX_IDLE_PER_ADDRESS) {
+                    deque.addFirst(conn);
+                    return;
+                }
+            }
+        }
+        discard(conn);
+    }
+
+    /**
+     * Close a connection without returning it to the pool
+     * @param conn (Connection)
+     */
+    public void discard(Connection conn) {
+        try {
+            conn.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Deque<Connection> deque : idle.values()) {
+            synchronized (deque) {
+                Connection conn;
+                while ((conn = deque.pollFirst()) != null) {
+                    discard(conn);
+                }
+            }
+        }
+    }
+}
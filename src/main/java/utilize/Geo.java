@@ -0,0 +1,41 @@
+package utilize;
+
+/**
+ * Great-circle geometry on station coordinates (lat/lon in degrees), shared by the server's spatial
+ * index and the clients merging the answers of several cluster nodes
+ */
+public final class Geo {
+    public static final double EARTH_RADIUS_KM = 6371.0088;
+
+    private Geo() {
+    }
+
+    /**
+     * Haversine distance between two points
+     * @return kilometres
+     */
+    public static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        return EARTH_RADIUS_KM * angle(lat1, lon1, lat2, lon2);
+    }
+
+    /**
+     * Central angle between two points
+     * @return radians
+     */
+    public static double angle(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Whether a point lies in a box. A box whose west edge is east of its east edge crosses the
+     * antimeridian.
+     */
+    public static boolean inBox(double lat, double lon, double minLat, double minLon, double maxLat, double maxLon) {
+        if (lat < minLat || lat > maxLat) return false;
+        return minLon <= maxLon ? lon >= minLon && lon <= maxLon : lon >= minLon || lon <= maxLon;
+    }
+}
@@ -0,0 +1,142 @@
+package utilize;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Consistent-hash ring partitioning station ids across the aggregation servers of a cluster.
+ * Every node sits on the ring at {@link #VIRTUAL_NODES} points and a station belongs to the first
+ * point at or after the hash of its id, wrapping around. Adding a node only moves the stations that
+ * now fall just before one of its points, about 1/N of them, all to the new node.
+ * Servers and clients build the ring from the same node list ("host:port" names), so they agree on
+ * every owner without asking each other. Immutable.
+ */
+public final class HashRing {
+    public static final int VIRTUAL_NODES = 128;
+
+    private final List<String> nodes; // sorted, distinct
+    private final int virtualNodes;
+    private final long[] points; // sorted
+    private final String[] owners; // node of each point
+
+    /**
+     * @param nodes (Collection) host:port of every node
+     */
+    public HashRing(Collection<String> nodes) {
+        this(nodes, VIRTUAL_NODES);
+    }
+
+    /**
+     * @param nodes (Collection) host:port of every node
+     * @param virtualNodes (int) points per node, more points spread the stations more evenly
+     */
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        TreeSet<String> distinct = new TreeSet<>();
+        for (String node : nodes) {
+            if (!node.isBlank()) distinct.add(node.trim());
+        }
+        if (distinct.isEmpty() || virtualNodes <= 0) {
+            throw new IllegalArgumentException("A ring needs at least one node and one point per node");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(distinct));
+        this.virtualNodes = virtualNodes;
+
+        int size = distinct.size() * virtualNodes;
+        long[] keyed = new long[size];
+        String[] byIndex = new String[size];
+        int i = 0;
+        for (String node : this.nodes) {
+            for (int v = 0; v < virtualNodes; v++) {
+                keyed[i] = hash(node + "#" + v);
+                byIndex[i] = node;
+                i++;
+            }
+        }
+        // Sort the points, equal points (a hash collision) ordered by node name so every ring agrees
+        Integer[] order = new Integer[size];
+        for (int k = 0; k < size; k++) order[k] = k;
+        Arrays.sort(order, (a, b) -> keyed[a] != keyed[b] ? Long.compare(keyed[a], keyed[b]) : byIndex[a].compareTo(byIndex[b]));
+        this.points = new long[size];
+        this.owners = new String[size];
+        for (int k = 0; k < size; k++) {
+            points[k] = keyed[order[k]];
+            owners[k] = byIndex[order[k]];
+        }
+    }
+
+    /**
+     * @param nodes (String) comma separated host:port list, as in the ClusterNodes header
+     * @return HashRing
+     */
+    public static HashRing parse(String nodes) {
+        return new HashRing(Arrays.asList(nodes.split(",")));
+    }
+
+    /**
+     * @return host:port of every node, sorted
+     */
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    public boolean contains(String node) {
+        return Collections.binarySearch(nodes, node) >= 0;
+    }
+
+    /**
+     * Node responsible for a station
+     * @param stationId (String)
+     * @return host:port
+     */
+    public String owner(String stationId) {
+        int i = Arrays.binarySearch(points, hash(stationId));
+        if (i < 0) i = -i - 1; // first point after the hash
+        return owners[i == points.length ? 0 : i];
+    }
+
+    /**
+     * @return comma separated node list, the value of a ClusterNodes header
+     */
+    public String toHeader() {
+        return String.join(",", nodes);
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-16 code units, then the MurmurHash3 finalizer: FNV alone leaves
+     * ids that only differ in their last characters close together on the ring
+     * @param key (String)
+     * @return long
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof HashRing other && virtualNodes == other.virtualNodes && nodes.equals(other.nodes);
+    }
+
+    @Override
+    public int hashCode() {
+        return nodes.hashCode() * 31 + virtualNodes;
+    }
+
+    @Override
+    public String toString() {
+        return toHeader();
+    }
+}
@@ -0,0 +1,394 @@
+package utilize;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incremental, byte-level parser for the requests of this system.
+ * It is fed whatever bytes have arrived so far and keeps its state between calls, so it works
+ * with partial reads. The fixed headers (LamportClock, BaseVersion, Since, ReplicationEpoch, StationId, StationIds,
+ * StationPrefix, ClusterNodes, HistoryFrom, HistoryTo, HistoryBy, GroupBy, Group, Near, Box, Count, ServerId, ClientId, Content-Length, Connection) are matched on the raw bytes, unknown headers are skipped.
+ * One parser is reused for every request of a connection: call {@link #reset()} after each message.
+ */
+public final class HttpRequestParser {
+    private static final int MAX_LINE = 8 * 1024;
+    private static final int MAX_BODY = 64 * 1024 * 1024;
+
+    private static final byte[] LAMPORT_CLOCK = ascii("LamportClock");
+    private static final byte[] BASE_VERSION = ascii("BaseVersion");
+    private static final byte[] SINCE = ascii("Since");
+    private static final byte[] REPLICATION_EPOCH = ascii("ReplicationEpoch");
+    private static final byte[] STATION_ID = ascii("StationId");
+    private static final byte[] STATION_IDS = ascii("StationIds");
+    private static final byte[] STATION_PREFIX = ascii("StationPrefix");
+    private static final byte[] CLUSTER_NODES = ascii("ClusterNodes");
+    private static final byte[] HISTORY_FROM = ascii("HistoryFrom");
+    private static final byte[] HISTORY_TO = ascii("HistoryTo");
+    private static final byte[] HISTORY_BY = ascii("HistoryBy");
+    private static final byte[] TIME = ascii("time");
+    private static final byte[] GROUP_BY = ascii("GroupBy");
+    private static final byte[] GROUP = ascii("Group");
+    private static final byte[] NEAR = ascii("Near");
+    private static final byte[] BOX = ascii("Box");
+    private static final byte[] COUNT = ascii("Count");
+    private static final byte[] SERVER_ID = ascii("ServerId");
+    private static final byte[] CLIENT_ID = ascii("ClientId");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length");
+    private static final byte[] CONNECTION = ascii("Connection");
+    private static final byte[] KEEP_ALIVE = ascii("keep-alive");
+
+    private enum State { START, HEADER, BODY, DONE }
+
+    private State state = State.START;
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private byte[] body = new byte[1024];
+    private int bodyRead;
+
+    private String method;
+    private String path;
+    private long lamportClock;
+    private long baseVersion;
+    private boolean hasBaseVersion;
+    private long since;
+    private long replicationEpoch;
+    private String stationId;
+    private String stationIds;
+    private String stationPrefix;
+    private String clusterNodes;
+    private long historyFrom;
+    private long historyTo;
+    private boolean historyByTime;
+    private String groupBy;
+    private String group;
+    private String near;
+    private String box;
+    private long count;
+    private String serverId;
+    private String clientId;
+    private int contentLength;
+    private boolean keepAlive;
+
+    public HttpRequestParser() {
+        reset();
+    }
+
+    /**
+     * Forget the current message and get ready for the next one. Internal buffers are kept.
+     */
+    public void reset() {
+        state = State.START;
+        lineLength = 0;
+        bodyRead = 0;
+        method = null;
+        path = null;
+        lamportClock = -1;
+        baseVersion = -1;
+        hasBaseVersion = false;
+        since = -1;
+        replicationEpoch = -1;
+        stationId = null;
+        stationIds = null;
+        stationPrefix = null;
+        clusterNodes = null;
+        historyFrom = -1;
+        historyTo = -1;
+        historyByTime = false;
+        groupBy = null;
+        group = null;
+        near = null;
+        box = null;
+        count = -1;
+        serverId = null;
+        clientId = null;
+        contentLength = 0;
+        keepAlive = false;
+    }
+
+    /**
+     * Consume bytes from the buffer (in read mode) until a whole message has been parsed or the buffer is empty.
+     * Bytes after the end of the message are left in the buffer for the next message.
+     * @param buf (ByteBuffer)
+     * @return true when a complete message is available
+     * @throws IllegalArgumentException when the message is malformed
+     */
+    public boolean parse(ByteBuffer buf) {
+        while (state != State.DONE && buf.hasRemaining()) {
+            if (state == State.BODY) {
+                int n = Math.min(buf.remaining(), contentLength - bodyRead);
+                buf.get(body, bodyRead, n);
+                bodyRead += n;
+                if (bodyRead == contentLength) {
+                    state = State.DONE;
+                }
+                continue;
+            }
+
+            byte b = buf.get();
+            if (b != '\n') {
+                if (lineLength == MAX_LINE) {
+                    throw new IllegalArgumentException("Header line too long");
+                }
+                if (lineLength == line.length) {
+                    line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE));
+                }
+                line[lineLength++] = b;
+                continue;
+            }
+
+            int end = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+            lineLength = 0;
+            if (state == State.START) {
+                if (end > 0) { // blank lines between two messages are skipped
+                    readRequestLine(end);
+                    state = State.HEADER;
+                }
+            } else if (end > 0) {
+                readHeaderLine(end);
+            } else {
+                startBody();
+            }
+        }
+        return state == State.DONE;
+    }
+
+    public boolean isComplete() { return state == State.DONE; }
+
+    /**
+     * Whether part of a message has been consumed. Used to tell a clean end of the connection from a truncated request.
+     * @return boolean
+     */
+    public boolean isStarted() { return state != State.START || lineLength > 0; }
+
+    public String method() { return method; }
+
+    public String path() { return path; }
+
+    /**
+     * @return value of the LamportClock header, -1 when absent
+     */
+    public long lamportClock() { return lamportClock; }
+
+    /**
+     * @return value of the BaseVersion header of a delta PUT, -1 for a full PUT
+     */
+    public long baseVersion() { return baseVersion; }
+
+    /**
+     * @return whether the PUT carried a BaseVersion header, -1 included: its sender builds deltas on the version it is stored under
+     */
+    public boolean hasBaseVersion() { return hasBaseVersion; }
+
+    /**
+     * @return value of the Since header of a subscription, -1 when absent
+     */
+    public long since() { return since; }
+
+    /**
+     * @return ReplicationEpoch header, the primary run a replica's Since refers to, -1 when absent
+     */
+    public long replicationEpoch() { return replicationEpoch; }
+
+    public String stationId() { return stationId; }
+
+    /**
+     * @return raw value of the StationIds header of a batch GET, a comma separated list or "*"
+     */
+    public String stationIds() { return stationIds; }
+
+    public String stationPrefix() { return stationPrefix; }
+
+    /**
+     * @return raw value of the ClusterNodes header, the comma separated members of a cluster
+     */
+    public String clusterNodes() { return clusterNodes; }
+
+    /**
+     * @return HistoryFrom header, lower bound of a history range, -1 when absent
+     */
+    public long historyFrom() { return historyFrom; }
+
+    /**
+     * @return HistoryTo header, upper bound of a history range, -1 when absent
+     */
+    public long historyTo() { return historyTo; }
+
+    /**
+     * @return whether "HistoryBy: time" asks for bounds on local_date_time_full instead of Lamport values
+     */
+    public boolean historyByTime() { return historyByTime; }
+
+    /**
+     * @return GroupBy header, the grouping of an aggregate query (state, time_zone or all), null when absent
+     */
+    public String groupBy() { return groupBy; }
+
+    /**
+     * @return Group header, the single group an aggregate query asks for, null for every group
+     */
+    public String group() { return group; }
+
+    /**
+     * @return raw value of the Near header, "lat,lon" of a nearest-stations query
+     */
+    public String near() { return near; }
+
+    /**
+     * @return raw value of the Box header, "minLat,minLon,maxLat,maxLon" of a bounding-box query
+     */
+    public String box() { return box; }
+
+    /**
+     * @return Count header, the number of stations a nearest query asks for, -1 when absent
+     */
+    public long count() { return count; }
+
+    public String serverId() { return serverId; }
+
+    public String clientId() { return clientId; }
+
+    public int contentLength() { return contentLength; }
+
+    public boolean keepAlive() { return keepAlive; }
+
+    /**
+     * Body decoded as UTF-8. Content-Length counts bytes, so non-ASCII content is framed correctly.
+     * @return String
+     */
+    public String bodyAsString() {
+        return new String(body, 0, contentLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Raw body bytes, valid up to {@link #contentLength()} until the next request is parsed
+     * @return byte[] internal buffer, not a copy
+     */
+    public byte[] body() {
+        return body;
+    }
+
+    private void startBody() {
+        if (contentLength == 0) {
+            state = State.DONE;
+            return;
+        }
+        if (contentLength > body.length) {
+            body = new byte[Math.max(contentLength, body.length * 2)];
+        }
+        state = State.BODY;
+    }
+
+    private void readRequestLine(int end) {
+        int sp1 = indexOf(line, 0, end, (byte) ' ');
+        if (sp1 <= 0) {
+            throw new IllegalArgumentException("Malformed request line");
+        }
+        int sp2 = indexOf(line, sp1 + 1, end, (byte) ' ');
+        method = knownMethod(sp1);
+        path = new String(line, sp1 + 1, (sp2 < 0 ? end : sp2) - sp1 - 1, StandardCharsets.US_ASCII);
+    }
+
+    private String knownMethod(int length) {
+        if (length == 3 && line[0] == 'G' && line[1] == 'E' && line[2] == 'T') return "GET";
+        if (length == 3 && line[0] == 'P' && line[1] == 'U' && line[2] == 'T') return "PUT";
+        return new String(line, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    private void readHeaderLine(int end) {
+        int colon = indexOf(line, 0, end, (byte) ':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Malformed header line");
+        }
+        int from = colon + 1;
+        while (from < end && (line[from] == ' ' || line[from] == '\t')) from++;
+        int to = end;
+        while (to > from && (line[to - 1] == ' ' || line[to - 1] == '\t')) to--;
+
+        if (nameEquals(colon, LAMPORT_CLOCK)) {
+            lamportClock = parseLong(from, to);
+        } else if (nameEquals(colon, BASE_VERSION)) {
+            // -1: a full record, whose sender wants to know the version it is stored under
+            baseVersion = to - from == 2 && line[from] == '-' && line[from + 1] == '1' ? -1 : parseLong(from, to);
+            hasBaseVersion = true;
+        } else if (nameEquals(colon, SINCE)) {
+            since = parseLong(from, to);
+        } else if (nameEquals(colon, REPLICATION_EPOCH)) {
+            replicationEpoch = parseLong(from, to);
+        } else if (nameEquals(colon, CONTENT_LENGTH)) {
+            long length = parseLong(from, to);
+            if (length > MAX_BODY) {
+                throw new IllegalArgumentException("Body too large");
+            }
+            contentLength = (int) length;
+        } else if (nameEquals(colon, STATION_ID)) {
+            stationId = new String(line, from, to - from, StandardCharsets.UTF_8);
+        } else if (nameEquals(colon, STATION_IDS)) {
+            stationIds = new String(line, from, to - from, StandardCharsets.UTF_8);
+        } else if (nameEquals(colon, STATION_PREFIX)) {
+            stationPrefix = new String(line, from, to - from, StandardCharsets.UTF_8);
+        } else if (nameEquals(colon, HISTORY_FROM)) {
+            historyFrom = parseLong(from, to);
+        } else if (nameEquals(colon, HISTORY_TO)) {
+            historyTo = parseLong(from, to);
+        } else if (nameEquals(colon, HISTORY_BY)) {
+            historyByTime = equalsIgnoreCase(line, from, to, TIME);
+        } else if (nameEquals(colon, GROUP_BY)) {
+            groupBy = new String(line, from, to - from, StandardCharsets.US_ASCII);
+        } else if (nameEquals(colon, GROUP)) {
+            group = new String(line, from, to - from, StandardCharsets.UTF_8);
+        } else if (nameEquals(colon, NEAR)) {
+            near = new String(line, from, to - from, StandardCharsets.US_ASCII);
+        } else if (nameEquals(colon, BOX)) {
+            box = new String(line, from, to - from, StandardCharsets.US_ASCII);
+        } else if (nameEquals(colon, COUNT)) {
+            count = parseLong(from, to);
+        } else if (nameEquals(colon, CLUSTER_NODES)) {
+            clusterNodes = new String(line, from, to - from, StandardCharsets.US_ASCII);
+        } else if (nameEquals(colon, SERVER_ID)) {
+            serverId = new String(line, from, to - from, StandardCharsets.UTF_8);
+        } else if (nameEquals(colon, CLIENT_ID)) {
+            clientId = new String(line, from, to - from, StandardCharsets.UTF_8);
+        } else if (nameEquals(colon, CONNECTION)) {
+            keepAlive = equalsIgnoreCase(line, from, to, KEEP_ALIVE);
+        }
+    }
+
+    private boolean nameEquals(int length, byte[] name) {
+        return length == name.length && equalsIgnoreCase(line, 0, length, name);
+    }
+
+    private long parseLong(int from, int to) {
+        if (from == to) {
+            throw new IllegalArgumentException("Empty numeric header");
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                throw new IllegalArgumentException("Invalid numeric header");
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] src, int from, int to, byte[] expected) {
+        if (to - from != expected.length) return false;
+        for (int i = 0; i < expected.length; i++) {
+            if ((src[from + i] | 0x20) != (expected[i] | 0x20)) return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] src, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (src[i] == b) return i;
+        }
+        return -1;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
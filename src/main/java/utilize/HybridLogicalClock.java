@@ -0,0 +1,82 @@
+package utilize;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Hybrid logical clock: wall-clock milliseconds in the high bits, a logical counter in the low 16 bits.
+ * It orders events exactly like a Lamport clock (every timestamp is larger than everything seen before)
+ * while staying close to physical time, so a timestamp also tells when an update happened.
+ * The value is a plain long: peers that only know LamportClock keep working with it unchanged.
+ */
+public final class HybridLogicalClock implements LogicalClock {
+    public static final int LOGICAL_BITS = 16;
+
+    private final AtomicLong state = new AtomicLong();
+    private final long maxDriftMillis;
+    private final LongSupplier wallClock;
+
+    /**
+     * @param maxDriftMillis (long) how far ahead of the local wall clock a received timestamp may be
+     */
+    public HybridLogicalClock(long maxDriftMillis) {
+        this(maxDriftMillis, System::currentTimeMillis);
+    }
+
+    /**
+     * @param maxDriftMillis (long)
+     * @param wallClock (LongSupplier) source of physical time in milliseconds
+     */
+    public HybridLogicalClock(long maxDriftMillis, LongSupplier wallClock) {
+        this.maxDriftMillis = maxDriftMillis;
+        this.wallClock = wallClock;
+    }
+
+    /**
+     * Timestamp made of a physical time and a logical counter
+     * @param millis (long)
+     * @param logical (int)
+     * @return timestamp
+     */
+    public static long pack(long millis, int logical) {
+        return (millis << LOGICAL_BITS) | (logical & ((1 << LOGICAL_BITS) - 1));
+    }
+
+    @Override
+    public long onSend() {
+        long physical = wallClock.getAsLong() << LOGICAL_BITS;
+        return state.updateAndGet(local -> Math.max(local + 1, physical));
+    }
+
+    @Override
+    public long onReceive(long timestamp) {
+        long physical = wallClock.getAsLong() << LOGICAL_BITS;
+        return state.updateAndGet(local -> Math.max(Math.max(local, timestamp) + 1, physical));
+    }
+
+    @Override
+    public long get() {
+        return state.get();
+    }
+
+    @Override
+    public void set(long timestamp) {
+        state.set(timestamp);
+    }
+
+    @Override
+    public long physicalMillis(long timestamp) {
+        return timestamp >>> LOGICAL_BITS;
+    }
+
+    /**
+     * A timestamp more than the drift bound ahead of the local wall clock comes from a broken clock;
+     * accepting it would drag this clock, and every peer, into the future
+     * @param timestamp (long)
+     * @return boolean
+     */
+    @Override
+    public boolean isPlausible(long timestamp) {
+        return physicalMillis(timestamp) - wallClock.getAsLong() <= maxDriftMillis;
+    }
+}
@@ -7,7 +7,6 @@ import com.google.gson.JsonParser;
 import java.lang.reflect.Type;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -25,7 +24,7 @@ public class JsonUtil {
             throw new Exception("Invalid path.");
         }
 
-        Map<String, Object> map = new HashMap<>();
+        JsonObject obj = new JsonObject();
 
         List<String> lines = Files.readAllLines(Paths.get(path));
         for (String line : lines) {
@@ -33,10 +32,10 @@ public class JsonUtil {
             String key = item[0].trim();
             String value = item[1].trim();
 
-            map.put(key, value);
+            obj.addProperty(key, value);
         }
 
-        return gson.toJsonTree(map).getAsJsonObject();
+        return obj;
     }
     /**
      * Convert Map object to JsonObject
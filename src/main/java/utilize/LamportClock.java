@@ -3,7 +3,7 @@ package utilize;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
-public final class LamportClock {
+public final class LamportClock implements LogicalClock {
     private final AtomicLong counter;
 
     public LamportClock() {
@@ -14,6 +14,7 @@ public final class LamportClock {
      * Increment the counter
      * @return counter value
      */
+    @Override
     public long onSend() {
         return counter.incrementAndGet();
     }
@@ -23,6 +24,7 @@ public final class LamportClock {
      * @param timestamp (long)
      * @return counter value
      */
+    @Override
     public long onReceive(long timestamp) {
         return counter.updateAndGet(local -> Math.max(local, timestamp) + 1);
     }
@@ -31,8 +33,10 @@ public final class LamportClock {
      * Getter of counter
      * @return counter value
      */
+    @Override
     public long get() { return counter.get(); }
 
+    @Override
     public void set(long timestamp) {
         counter.updateAndGet(local -> timestamp);
     }
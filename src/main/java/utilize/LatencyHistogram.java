@@ -0,0 +1,108 @@
+package utilize;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear latency histogram in the style of HdrHistogram: every power of two is split into
+ * 8 linear sub-buckets, so any recorded value is known to within 12.5%. Recording is a couple of
+ * atomic increments on preallocated counters, lock-free and allocation-free, so it can stay on in
+ * the hot path. Values are in nanoseconds.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    // Upper bounds (seconds) of the buckets exposed to Prometheus
+    private static final double[] EXPORT_BOUNDS = {
+            1e-6, 5e-6, 1e-5, 5e-5, 1e-4, 5e-4, 1e-3, 5e-3, 0.01, 0.05, 0.1, 0.5, 1, 5, 10
+    };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Record one latency
+     * @param nanos (long) negative values count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(value));
+        sum.add(value);
+    }
+
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    public long sumNanos() {
+        return sum.sum();
+    }
+
+    /**
+     * Value below which a fraction of the recorded latencies fall
+     * @param quantile (double) between 0 and 1
+     * @return upper bound in nanoseconds of the bucket holding the quantile, 0 when empty
+     */
+    public long percentile(double quantile) {
+        long total = count();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * Append this histogram in the Prometheus text format, in seconds. A fine bucket is counted under
+     * the first exported bound that its whole range fits below, so a value just below a bound may be
+     * counted under the next one: the cumulative "le" counts can be understated, never overstated.
+     * @param sb (StringBuilder)
+     * @param name (String) metric name, ending in "_seconds"
+     * @param help (String)
+     */
+    public void writePrometheus(StringBuilder sb, String name, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" histogram\n");
+
+        long cumulative = 0;
+        int i = 0;
+        for (double bound : EXPORT_BOUNDS) {
+            long boundNanos = (long) (bound * 1e9);
+            while (i < BUCKETS && upperBound(i) <= boundNanos) {
+                cumulative += counts.get(i++);
+            }
+            sb.append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+        while (i < BUCKETS) {
+            cumulative += counts.get(i++);
+        }
+        sb.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        sb.append(name).append("_sum ").append(String.format(Locale.ROOT, "%.9f", sum.sum() / 1e9)).append('\n');
+        sb.append(name).append("_count ").append(cumulative).append('\n');
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        int shift = exponent - SUB_BITS;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,126 @@
+package utilize;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Leveled, asynchronous logging. Callers only push the line into a bounded lock-free ring, a daemon
+ * thread writes the lines to the sink in batches. When the ring is full the line is dropped and counted
+ * instead of making the caller wait, so a slow console can never stall the request path.
+ * The level comes from the "log.level" property (INFO by default, per-request lines are DEBUG).
+ */
+public final class Log {
+    public enum Level { ERROR, WARN, INFO, DEBUG }
+
+    /**
+     * Destination of the formatted lines, only called from the writer thread
+     */
+    public interface Sink {
+        void write(String lines);
+    }
+
+    private static final int CAPACITY = Integer.getInteger("log.capacity", 8192);
+    private static final int MAX_DRAIN = 256;
+
+    private static final RingBuffer<String> ring = new RingBuffer<>(CAPACITY);
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile Level level = Level.valueOf(System.getProperty("log.level", "INFO").toUpperCase());
+    private static volatile Sink sink = System.out::print;
+    private static volatile long written; // lines taken from the ring and handed to the sink
+
+    static {
+        Thread writer = new Thread(Log::drain, "Log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Log() {}
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static void setSink(Sink newSink) {
+        sink = newSink;
+    }
+
+    public static boolean isEnabled(Level l) {
+        return l.ordinal() <= level.ordinal();
+    }
+
+    /**
+     * Number of lines lost because the ring was full
+     * @return count
+     */
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    public static void error(String message) { log(Level.ERROR, message); }
+
+    public static void warn(String message) { log(Level.WARN, message); }
+
+    public static void info(String message) { log(Level.INFO, message); }
+
+    public static void debug(String message) { log(Level.DEBUG, message); }
+
+    /**
+     * Per-request line, only built when DEBUG is enabled
+     * @param message (Supplier)
+     */
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, message.get());
+        }
+    }
+
+    public static void log(Level l, String message) {
+        if (!isEnabled(l)) return;
+        if (!ring.offer(message)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Wait until every line logged so far has been handed to the sink
+     * @param timeoutMillis (long)
+     */
+    public static void flush(long timeoutMillis) {
+        long target = ring.offered();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (written < target && System.currentTimeMillis() < deadline) {
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    private static void drain() {
+        StringBuilder batch = new StringBuilder();
+        long reportedDrops = 0;
+        while (true) {
+            String line;
+            int n = 0;
+            while (n < MAX_DRAIN && (line = ring.poll()) != null) {
+                batch.append(line).append('\n');
+                n++;
+            }
+            long drops = dropped.sum();
+            if (drops != reportedDrops) {
+                batch.append("[Log] Dropped ").append(drops - reportedDrops).append(" lines, the log ring was full\n");
+                reportedDrops = drops;
+            }
+
+            if (batch.length() > 0) {
+                try {
+                    sink.write(batch.toString());
+                } catch (RuntimeException ignored) {
+                    // a failing sink must not kill the writer
+                }
+                written += n;
+                batch.setLength(0);
+            } else {
+                LockSupport.parkNanos(1_000_000);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package utilize;
+
+/**
+ * Clock stamped on every message of the system, carried by the "LamportClock" header
+ */
+public interface LogicalClock {
+    /**
+     * Advance the clock for a message about to be sent
+     * @return timestamp of the message
+     */
+    long onSend();
+
+    /**
+     * Merge the timestamp of a received message into the clock
+     * @param timestamp (long)
+     * @return new local timestamp
+     */
+    long onReceive(long timestamp);
+
+    long get();
+
+    void set(long timestamp);
+
+    /**
+     * Wall-clock time at which a timestamp of this clock was taken
+     * @param timestamp (long)
+     * @return milliseconds since the epoch, -1 when the clock carries no physical time
+     */
+    default long physicalMillis(long timestamp) {
+        return -1;
+    }
+
+    /**
+     * Whether a received timestamp is believable, e.g. not too far ahead of the local wall clock
+     * @param timestamp (long)
+     * @return boolean
+     */
+    default boolean isPlausible(long timestamp) {
+        return true;
+    }
+}
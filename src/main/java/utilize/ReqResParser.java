@@ -16,27 +16,35 @@ public class ReqResParser {
         StringBuilder body = new StringBuilder();
         int contentLength = 0;
 
+        // Skip blank lines left between two messages on a persistent connection
+        while ((line = in.readLine()) != null && line.isEmpty()) {
+        }
+        if (line == null) {
+            // Connection closed before a new message started
+            result[0] = "";
+            result[1] = "";
+            return result;
+        }
+
         // Read Header
-        while ((line = in.readLine()) != null && !line.isEmpty()) {
+        do {
             if (line.startsWith("Content-Length: ")) {
                 contentLength = Integer.parseInt(line.split(":")[1].trim());
             }
 
             header.append(line).append("\r\n");
-        }
+        } while ((line = in.readLine()) != null && !line.isEmpty());
 
-        // Read Body
-        int off = 0;
-        char[] buf = new char[contentLength];
-        while (off < contentLength) {
-            int r = in.read(buf, off, contentLength - off);
-            if (r == -1) {
+        // Read Body. Content-Length counts UTF-8 bytes, so count the encoded size of every char read
+        int bytes = 0;
+        while (bytes < contentLength) {
+            int c = in.read();
+            if (c == -1) {
                 break;
             }
-            off += r;
+            body.append((char) c);
+            bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate((char) c) ? 2 : 3;
         }
-        String content = new String(buf);
-        body.append(content);
 
         // Add Header and Body to result
         result[0] = header.toString();
@@ -60,6 +68,17 @@ public class ReqResParser {
         return new Header(requestType, metadata);
     }
 
+    /**
+     * Server address of a redirect
+     * @param location (String) Location header, "http://host:port/path"
+     * @return host:port
+     */
+    public static String addressOf(String location) {
+        String address = location.startsWith("http://") ? location.substring(7) : location;
+        int slash = address.indexOf('/');
+        return slash < 0 ? address : address.substring(0, slash);
+    }
+
     public static JsonObject readBody(String body) throws Exception {
         return JsonUtil.toJsonObj(body);
     }
@@ -0,0 +1,70 @@
+package utilize;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for many producers and one consumer. Producers claim a slot with one CAS
+ * and never block: when the ring is full {@link #offer(Object)} fails at once.
+ * @param <T> element type
+ */
+public final class RingBuffer<T> {
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // next slot to claim, shared by producers
+    private volatile long head; // next slot to read, only written by the consumer
+
+    /**
+     * @param capacity (int) rounded up to a power of two
+     */
+    public RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Add an element if there is room
+     * @param item (T) not null
+     * @return false when the ring is full
+     */
+    public boolean offer(T item) {
+        while (true) {
+            long t = tail.get();
+            if (t - head > mask) return false;
+            if (tail.compareAndSet(t, t + 1)) {
+                slots.set((int) (t & mask), item);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Take the oldest element. Only one thread may call this.
+     * @return element, null when the ring is empty or the next producer has not finished writing
+     */
+    public T poll() {
+        int index = (int) (head & mask);
+        T item = slots.get(index);
+        if (item == null) return null;
+        slots.lazySet(index, null);
+        head = head + 1;
+        return item;
+    }
+
+    /**
+     * Number of elements ever added
+     * @return count
+     */
+    public long offered() {
+        return tail.get();
+    }
+
+    public boolean isEmpty() {
+        return head == tail.get();
+    }
+}
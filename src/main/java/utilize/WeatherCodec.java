@@ -0,0 +1,509 @@
+package utilize;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming JSON codec of {@link WeatherData}: the decoder walks the UTF-8 bytes and fills the record
+ * directly, known field names are matched without allocating and numbers are parsed in place; the
+ * encoder writes the record straight into a byte array. No JsonObject tree is built.
+ * Input the byte decoder does not handle (escape sequences, nested values, lenient syntax) is
+ * decoded by a Gson JsonReader instead, which gives the same record.
+ */
+public final class WeatherCodec {
+    private WeatherCodec() {}
+
+    /**
+     * Decode one JSON object
+     * @param bytes (byte[]) UTF-8 JSON
+     * @param offset (int)
+     * @param length (int)
+     * @return WeatherData
+     * @throws JsonParseException when the bytes are not a JSON object
+     */
+    public static WeatherData decode(byte[] bytes, int offset, int length) {
+        Decoder decoder = new Decoder(bytes, offset, offset + length);
+        WeatherData data = decoder.readObject();
+        if (data != null && decoder.atEnd()) return data;
+        return readLenient(new String(bytes, offset, length, StandardCharsets.UTF_8), false).get(0);
+    }
+
+    public static WeatherData decode(String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        return decode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decode a JSON array of objects, the body of a batch PUT
+     * @param bytes (byte[]) UTF-8 JSON
+     * @param offset (int)
+     * @param length (int)
+     * @return records in array order
+     * @throws JsonParseException when the bytes are not an array of objects
+     */
+    public static List<WeatherData> decodeArray(byte[] bytes, int offset, int length) {
+        Decoder decoder = new Decoder(bytes, offset, offset + length);
+        List<WeatherData> list = decoder.readArray();
+        if (list != null && decoder.atEnd()) return list;
+        return readLenient(new String(bytes, offset, length, StandardCharsets.UTF_8), true);
+    }
+
+    /**
+     * Read the next JSON object of a stream, e.g. one element of an array
+     * @param reader (JsonReader) positioned on the object
+     * @return WeatherData
+     * @throws IOException
+     */
+    public static WeatherData read(JsonReader reader) throws IOException {
+        WeatherData.Builder builder = new WeatherData.Builder();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (reader.peek()) {
+                case STRING -> builder.putString(name, reader.nextString());
+                case NUMBER -> builder.putNumber(name, reader.nextString()); // the literal, as written
+                default -> builder.putRaw(name, JsonParser.parseReader(reader).toString());
+            }
+        }
+        reader.endObject();
+        return builder.build();
+    }
+
+    private static List<WeatherData> readLenient(String json, boolean array) {
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.setLenient(true); // as lenient as JsonParser, which this replaces
+            List<WeatherData> list = new ArrayList<>();
+            if (array) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        throw new JsonSyntaxException("Array element is not a JSON object");
+                    }
+                    list.add(read(reader));
+                }
+                reader.endArray();
+            } else {
+                list.add(read(reader));
+            }
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("Trailing data after the JSON value");
+            }
+            return list;
+        } catch (IOException | IllegalStateException e) {
+            throw new JsonSyntaxException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Encode a record as UTF-8 JSON, the body served to GET requests
+     * @param data (WeatherData)
+     * @return byte[]
+     */
+    public static byte[] encode(WeatherData data) {
+        Output out = new Output(512);
+        out.write('{');
+        data.forEach(new WeatherData.FieldVisitor() {
+            @Override
+            public void text(String name, String value) {
+                out.name(name);
+                out.string(value);
+            }
+
+            @Override
+            public void number(String name, double value, boolean quoted) {
+                out.name(name);
+                if (quoted) out.write('"');
+                out.number(value);
+                if (quoted) out.write('"');
+            }
+
+            @Override
+            public void raw(String name, String json) {
+                out.name(name);
+                out.ascii(json, true);
+            }
+        });
+        out.write('}');
+        return out.toByteArray();
+    }
+
+    public static String encodeToString(WeatherData data) {
+        return new String(encode(data), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Convert a Gson tree, for callers that still hold one
+     * @param object (JsonObject)
+     * @return WeatherData
+     */
+    public static WeatherData fromJson(JsonObject object) {
+        WeatherData.Builder builder = new WeatherData.Builder();
+        for (Map.Entry<String, JsonElement> field : object.entrySet()) {
+            JsonElement value = field.getValue();
+            if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isString()) {
+                builder.putString(field.getKey(), value.getAsString());
+            } else if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber()) {
+                builder.putNumber(field.getKey(), value.toString());
+            } else {
+                builder.putRaw(field.getKey(), value.toString());
+            }
+        }
+        return builder.build();
+    }
+
+    public static JsonObject toJson(WeatherData data) {
+        return JsonParser.parseString(encodeToString(data)).getAsJsonObject();
+    }
+
+    static String quote(String value) {
+        Output out = new Output(value.length() + 2);
+        out.string(value);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    static String unquote(String json) {
+        return JsonParser.parseString(json).getAsString();
+    }
+
+    /**
+     * Strict single-pass decoder over UTF-8 bytes. Every method returns null (or false) as soon as
+     * the input leaves the subset it handles, the caller then falls back to the lenient reader.
+     */
+    private static final class Decoder {
+        private final byte[] bytes;
+        private final int end;
+        private final AsciiSlice slice;
+        private int pos;
+
+        Decoder(byte[] bytes, int offset, int end) {
+            this.bytes = bytes;
+            this.end = end;
+            this.slice = new AsciiSlice(bytes);
+            this.pos = offset;
+        }
+
+        List<WeatherData> readArray() {
+            skipWhitespace();
+            if (!consume('[')) return null;
+            List<WeatherData> list = new ArrayList<>();
+            skipWhitespace();
+            if (consume(']')) return list;
+            while (true) {
+                WeatherData data = readObject();
+                if (data == null) return null;
+                list.add(data);
+                skipWhitespace();
+                if (consume(']')) return list;
+                if (!consume(',')) return null;
+            }
+        }
+
+        WeatherData readObject() {
+            skipWhitespace();
+            if (!consume('{')) return null;
+            WeatherData.Builder builder = new WeatherData.Builder();
+            skipWhitespace();
+            if (consume('}')) return builder.build();
+            while (true) {
+                skipWhitespace();
+                if (!consume('"')) return null;
+                int nameStart = pos;
+                int nameEnd = scanString();
+                if (nameEnd < 0) return null;
+                int field = fieldIndex(nameStart, nameEnd);
+                skipWhitespace();
+                if (!consume(':')) return null;
+                skipWhitespace();
+                if (pos >= end) return null;
+
+                byte c = bytes[pos];
+                if (c == '"') {
+                    pos++;
+                    int valueStart = pos;
+                    int valueEnd = scanString();
+                    if (valueEnd < 0) return null;
+                    if (field < 0 || !builder.putNumber(field, slice.of(valueStart, valueEnd), true)) {
+                        String value = new String(bytes, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+                        builder.putString(field >= 0 ? WeatherData.FIELDS[field] : name(nameStart, nameEnd), value);
+                    }
+                } else if (c == '-' || c >= '0' && c <= '9') {
+                    int valueStart = pos;
+                    if (!scanNumber()) return null;
+                    if (field < 0 || !builder.putNumber(field, slice.of(valueStart, pos), false)) {
+                        String literal = new String(bytes, valueStart, pos - valueStart, StandardCharsets.ISO_8859_1);
+                        builder.putNumber(field >= 0 ? WeatherData.FIELDS[field] : name(nameStart, nameEnd), literal);
+                    }
+                } else {
+                    return null; // nested value, literal or lenient syntax
+                }
+
+                skipWhitespace();
+                if (consume('}')) return builder.build();
+                if (!consume(',')) return null;
+            }
+        }
+
+        boolean atEnd() {
+            skipWhitespace();
+            return pos == end;
+        }
+
+        /**
+         * Move past a string whose opening quote was consumed
+         * @return index of the closing quote, -1 on an escape, a control character or the end of input
+         */
+        private int scanString() {
+            for (int i = pos; i < end; i++) {
+                byte c = bytes[i];
+                if (c == '"') {
+                    pos = i + 1;
+                    return i;
+                }
+                if (c == '\\' || c >= 0 && c < 0x20) return -1;
+            }
+            return -1;
+        }
+
+        /**
+         * Move past a number of the strict JSON grammar: -?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?
+         */
+        private boolean scanNumber() {
+            consume('-');
+            if (consume('0')) {
+                // no leading zeros
+            } else if (digits() == 0) {
+                return false;
+            }
+            if (consume('.') && digits() == 0) return false;
+            if (consume('e') || consume('E')) {
+                if (!consume('+')) consume('-');
+                if (digits() == 0) return false;
+            }
+            return true;
+        }
+
+        private int digits() {
+            int start = pos;
+            while (pos < end && bytes[pos] >= '0' && bytes[pos] <= '9') pos++;
+            return pos - start;
+        }
+
+        private int fieldIndex(int start, int end) {
+            String[] fields = WeatherData.FIELDS;
+            outer:
+            for (int i = 0; i < fields.length; i++) {
+                String field = fields[i];
+                if (field.length() != end - start) continue;
+                for (int j = 0; j < field.length(); j++) {
+                    if (bytes[start + j] != field.charAt(j)) continue outer;
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        private String name(int start, int end) {
+            return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        private boolean consume(char c) {
+            if (pos < end && bytes[pos] == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void skipWhitespace() {
+            while (pos < end) {
+                byte c = bytes[pos];
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') return;
+                pos++;
+            }
+        }
+    }
+
+    /**
+     * Reusable view of an ASCII range of the input, so a number is parsed without copying it first
+     */
+    private static final class AsciiSlice implements CharSequence {
+        private final byte[] bytes;
+        private int start;
+        private int length;
+
+        AsciiSlice(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        AsciiSlice of(int start, int end) {
+            this.start = start;
+            this.length = end - start;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[start + index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return toString().substring(from, to);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, start, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Growable byte buffer the encoder writes into, escapes strings like Gson's JsonWriter
+     */
+    private static final class Output {
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+        private byte[] buf;
+        private int size;
+
+        Output(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void write(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        void name(String name) {
+            if (size > 1) write(',');
+            string(name);
+            write(':');
+        }
+
+        void number(double value) {
+            if (value == Math.rint(value) && Math.abs(value) < 1e15 && !(value == 0 && 1 / value < 0)) {
+                long n = (long) value; // same text as formatNumber, without the String
+                if (n < 0) {
+                    write('-');
+                    n = -n;
+                }
+                ensure(16);
+                int digits = 1;
+                for (long rest = n / 10; rest > 0; rest /= 10) digits++;
+                for (int i = size + digits - 1; i >= size; i--, n /= 10) {
+                    buf[i] = (byte) ('0' + n % 10);
+                }
+                size += digits;
+            } else {
+                ascii(WeatherData.formatNumber(value), false);
+            }
+        }
+
+        void string(String value) {
+            write('"');
+            int length = value.length();
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                    ensure(1);
+                    buf[size++] = (byte) c;
+                } else {
+                    escape(value, i);
+                    if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) i++;
+                }
+            }
+            write('"');
+        }
+
+        private void escape(String value, int i) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> ascii("\\\"", false);
+                case '\\' -> ascii("\\\\", false);
+                case '\t' -> ascii("\\t", false);
+                case '\b' -> ascii("\\b", false);
+                case '\n' -> ascii("\\n", false);
+                case '\r' -> ascii("\\r", false);
+                case '\f' -> ascii("\\f", false);
+                case '\u2028' -> ascii("\\u2028", false);
+                case '\u2029' -> ascii("\\u2029", false);
+                default -> {
+                    if (c < 0x20) {
+                        ascii("\\u00", false);
+                        write(HEX[c >> 4]);
+                        write(HEX[c & 0xf]);
+                    } else {
+                        utf8(value, i);
+                    }
+                }
+            }
+        }
+
+        private void utf8(String value, int i) {
+            char c = value.charAt(i);
+            ensure(4);
+            if (c < 0x800) {
+                buf[size++] = (byte) (0xc0 | c >> 6);
+                buf[size++] = (byte) (0x80 | c & 0x3f);
+            } else if (!Character.isSurrogate(c)) {
+                buf[size++] = (byte) (0xe0 | c >> 12);
+                buf[size++] = (byte) (0x80 | c >> 6 & 0x3f);
+                buf[size++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(i + 1));
+                buf[size++] = (byte) (0xf0 | cp >> 18);
+                buf[size++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                buf[size++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                buf[size++] = (byte) (0x80 | cp & 0x3f);
+            } else {
+                buf[size++] = '?'; // lone surrogate, as String.getBytes does
+            }
+        }
+
+        /**
+         * @param utf8 (boolean) the text may hold non-ASCII characters
+         */
+        void ascii(String text, boolean utf8) {
+            if (utf8) {
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, buf, size, bytes.length);
+                size += bytes.length;
+                return;
+            }
+            int length = text.length();
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                buf[size++] = (byte) text.charAt(i);
+            }
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package utilize;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact, immutable weather record. The observations of the assignment format live in primitive
+ * fields, the station metadata (name, state, time zone...) is interned so every record of a station
+ * shares one copy. A field is only typed when its value prints back to the exact same text, so the
+ * JSON sent out is the JSON that came in; anything else (unknown fields, "1023.90", nested values)
+ * is kept as raw JSON in a small extras array.
+ * Build instances with {@link Builder} or {@link WeatherCodec}.
+ */
+public final class WeatherData {
+    // Known fields, in the order they are written out
+    static final String[] FIELDS = {
+            "id", "name", "state", "time_zone", "lat", "lon", "local_date_time", "local_date_time_full",
+            "air_temp", "apparent_t", "cloud", "dewpt", "press", "rel_hum", "wind_dir", "wind_spd_kmh", "wind_spd_kt"
+    };
+    private static final int ID = 0;
+    // Slot of every field in text or numbers, numeric fields are flagged in NUMERIC
+    private static final int[] SLOT = {0, 1, 2, 3, 0, 1, 4, 5, 2, 3, 6, 4, 5, 6, 7, 7, 8};
+    private static final int NUMERIC = 0b1_1011_1011_0011_0000; // lat, lon, air_temp, apparent_t, dewpt, press, rel_hum, wind_spd_kmh, wind_spd_kt
+    private static final int INTERNED = 0b100_0100_0000_1111; // id, name, state, time_zone, cloud, wind_dir
+    private static final int TEXT_SLOTS = 8;
+    private static final int NUMBER_SLOTS = 9;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+    // Station metadata repeats on every update, one shared copy per distinct value (bounded, unlike String.intern)
+    private static final int INTERNED_LIMIT = 1 << 16;
+    private static final ConcurrentHashMap<String, String> INTERNED_VALUES = new ConcurrentHashMap<>();
+
+    private final String[] text;
+    private final double[] numbers;
+    private final int present; // bit i: FIELDS[i] is set in text or numbers
+    private final int quoted;  // bit i: the numeric FIELDS[i] came as a JSON string
+    private final String[] extras; // name, raw JSON value, ... or null
+
+    private WeatherData(String[] text, double[] numbers, int present, int quoted, String[] extras) {
+        this.text = text;
+        this.numbers = numbers;
+        this.present = present;
+        this.quoted = quoted;
+        this.extras = extras;
+    }
+
+    public String id() {
+        return text[SLOT[ID]];
+    }
+
+    /**
+     * Whether a field is set, typed or not
+     * @param name (String)
+     * @return boolean
+     */
+    public boolean has(String name) {
+        int field = fieldIndex(name);
+        return field >= 0 && (present & (1 << field)) != 0 || extraIndex(name) >= 0;
+    }
+
+    /**
+     * Numeric value of a typed observation
+     * @param name (String)
+     * @return the value, NaN when the field is absent, not numeric or kept as raw JSON
+     */
+    public double number(String name) {
+        int field = fieldIndex(name);
+        if (field < 0 || (NUMERIC & (1 << field)) == 0 || (present & (1 << field)) == 0) return Double.NaN;
+        return numbers[SLOT[field]];
+    }
+
+    /**
+     * Text of a field: the string itself, or the number as it was received
+     * @param name (String)
+     * @return String, null when absent or kept as non-string raw JSON
+     */
+    public String text(String name) {
+        int field = fieldIndex(name);
+        if (field >= 0 && (present & (1 << field)) != 0) {
+            return (NUMERIC & (1 << field)) != 0 ? formatNumber(numbers[SLOT[field]]) : text[SLOT[field]];
+        }
+        int extra = extraIndex(name);
+        if (extra < 0) return null;
+        String raw = extras[extra + 1];
+        return raw.startsWith("\"") ? WeatherCodec.unquote(raw) : null;
+    }
+
+    /**
+     * Apply the fields of a delta on top of this record
+     * @param delta (WeatherData) changed fields
+     * @return new record, this one is left untouched
+     */
+    public WeatherData merge(WeatherData delta) {
+        Builder builder = toBuilder();
+        for (int i = 0; i < FIELDS.length; i++) {
+            if ((delta.present & (1 << i)) == 0) continue;
+            builder.removeExtra(FIELDS[i]);
+            builder.present |= 1 << i;
+            if ((NUMERIC & (1 << i)) != 0) {
+                builder.numbers[SLOT[i]] = delta.numbers[SLOT[i]];
+                builder.quoted = (builder.quoted & ~(1 << i)) | (delta.quoted & (1 << i));
+            } else {
+                builder.text[SLOT[i]] = delta.text[SLOT[i]];
+            }
+        }
+        if (delta.extras != null) {
+            for (int i = 0; i < delta.extras.length; i += 2) {
+                builder.putRaw(delta.extras[i], delta.extras[i + 1]);
+            }
+        }
+        return builder.build();
+    }
+
+    public Builder toBuilder() {
+        Builder builder = new Builder();
+        System.arraycopy(text, 0, builder.text, 0, TEXT_SLOTS);
+        System.arraycopy(numbers, 0, builder.numbers, 0, NUMBER_SLOTS);
+        builder.present = present;
+        builder.quoted = quoted;
+        if (extras != null) {
+            builder.extras = Arrays.copyOf(extras, extras.length);
+            builder.extraLength = extras.length;
+        }
+        return builder;
+    }
+
+    /**
+     * Visit every field in output order
+     */
+    void forEach(FieldVisitor visitor) {
+        for (int i = 0; i < FIELDS.length; i++) {
+            if ((present & (1 << i)) == 0) continue;
+            if ((NUMERIC & (1 << i)) != 0) {
+                visitor.number(FIELDS[i], numbers[SLOT[i]], (quoted & (1 << i)) != 0);
+            } else {
+                visitor.text(FIELDS[i], text[SLOT[i]]);
+            }
+        }
+        if (extras != null) {
+            for (int i = 0; i < extras.length; i += 2) {
+                visitor.raw(extras[i], extras[i + 1]);
+            }
+        }
+    }
+
+    interface FieldVisitor {
+        void text(String name, String value);
+
+        void number(String name, double value, boolean quoted);
+
+        void raw(String name, String json);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof WeatherData other)) return false;
+        if (present != other.present || quoted != other.quoted) return false;
+        for (int i = 0; i < FIELDS.length; i++) {
+            if ((present & (1 << i)) == 0) continue;
+            boolean same = (NUMERIC & (1 << i)) != 0
+                    ? Double.compare(numbers[SLOT[i]], other.numbers[SLOT[i]]) == 0
+                    : Objects.equals(text[SLOT[i]], other.text[SLOT[i]]);
+            if (!same) return false;
+        }
+        return sameExtras(extras, other.extras);
+    }
+
+    private static boolean sameExtras(String[] a, String[] b) {
+        int length = a == null ? 0 : a.length;
+        if (length != (b == null ? 0 : b.length)) return false;
+        for (int i = 0; i < length; i += 2) {
+            int j = indexOf(b, b.length, a[i]);
+            if (j < 0 || !a[i + 1].equals(b[j + 1])) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = present * 31 + quoted;
+        for (int i = 0; i < FIELDS.length; i++) {
+            if ((present & (1 << i)) == 0) continue;
+            h = h * 31 + ((NUMERIC & (1 << i)) != 0 ? Double.hashCode(numbers[SLOT[i]]) : Objects.hashCode(text[SLOT[i]]));
+        }
+        if (extras != null) {
+            for (int i = 0; i < extras.length; i += 2) {
+                h += extras[i].hashCode() ^ extras[i + 1].hashCode(); // order of extras does not matter
+            }
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return WeatherCodec.encodeToString(this);
+    }
+
+    private static int fieldIndex(String name) {
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (FIELDS[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    private int extraIndex(String name) {
+        return extras == null ? -1 : indexOf(extras, extras.length, name);
+    }
+
+    private static int indexOf(String[] extras, int length, String name) {
+        for (int i = 0; i < length; i += 2) {
+            if (extras[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    private static String intern(String value) {
+        String shared = INTERNED_VALUES.get(value);
+        if (shared != null) return shared;
+        if (INTERNED_VALUES.size() >= INTERNED_LIMIT) return value;
+        shared = INTERNED_VALUES.putIfAbsent(value, value);
+        return shared == null ? value : shared;
+    }
+
+    /**
+     * Shortest text that parses back to the value: integers without a fraction, others as Double.toString
+     * @param value (double)
+     * @return String
+     */
+    static String formatNumber(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15 && !(value == 0 && 1 / value < 0)) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * Collects the fields of a record. A later value of a field replaces the earlier one.
+     */
+    public static final class Builder {
+        private String[] text = new String[TEXT_SLOTS];
+        private double[] numbers = new double[NUMBER_SLOTS];
+        private boolean built; // text and numbers belong to a built record, copy them before writing
+        private int present;
+        private int quoted;
+        private String[] extras;
+        private int extraLength;
+
+        /**
+         * Set a field from a JSON string value
+         * @param name (String)
+         * @param value (String) unescaped string
+         * @return this
+         */
+        public Builder putString(String name, String value) {
+            int field = fieldIndex(name);
+            if (field < 0) {
+                return putRaw(name, WeatherCodec.quote(value));
+            }
+            if ((NUMERIC & (1 << field)) != 0) {
+                double number = parseExact(value);
+                if (Double.isNaN(number)) {
+                    clear(field);
+                    return putRaw(name, WeatherCodec.quote(value));
+                }
+                setNumber(field, number, true);
+                return this;
+            }
+            removeExtra(name);
+            beforeWrite();
+            text[SLOT[field]] = (INTERNED & (1 << field)) != 0 ? intern(value) : value;
+            present |= 1 << field;
+            return this;
+        }
+
+        /**
+         * Set a field from a JSON number literal
+         * @param name (String)
+         * @param literal (String) number as written in the JSON
+         * @return this
+         */
+        public Builder putNumber(String name, String literal) {
+            int field = fieldIndex(name);
+            double number = field >= 0 && (NUMERIC & (1 << field)) != 0 ? parseExact(literal) : Double.NaN;
+            if (Double.isNaN(number)) {
+                if (field >= 0) clear(field);
+                return putRaw(name, literal);
+            }
+            setNumber(field, number, false);
+            return this;
+        }
+
+        /**
+         * Typed fast path of the codec: set a numeric field when the literal is a plain round-tripping number
+         * @param field (int) index in FIELDS
+         * @param literal (CharSequence) number text, without quotes
+         * @param isQuoted (boolean) the number came as a JSON string
+         * @return false when nothing was set and the caller has to go through putString or putNumber
+         */
+        boolean putNumber(int field, CharSequence literal, boolean isQuoted) {
+            if ((NUMERIC & (1 << field)) == 0) return false;
+            double number = parseSimple(literal);
+            if (Double.isNaN(number)) return false;
+            setNumber(field, number, isQuoted);
+            return true;
+        }
+
+        /**
+         * Set a field to any JSON value, kept as it is
+         * @param name (String)
+         * @param json (String) raw JSON of the value
+         * @return this
+         */
+        public Builder putRaw(String name, String json) {
+            int field = fieldIndex(name);
+            if (field >= 0) clear(field);
+            int i = extras == null ? -1 : indexOf(extras, extraLength, name);
+            if (i >= 0) {
+                extras[i + 1] = json;
+                return this;
+            }
+            if (extras == null) {
+                extras = new String[4];
+            } else if (extraLength == extras.length) {
+                extras = Arrays.copyOf(extras, extraLength * 2);
+            }
+            extras[extraLength++] = name;
+            extras[extraLength++] = json;
+            return this;
+        }
+
+        public WeatherData build() {
+            String[] compactExtras = extras == null || extraLength == 0 ? null : Arrays.copyOf(extras, extraLength);
+            built = true;
+            return new WeatherData(text, numbers, present, quoted, compactExtras);
+        }
+
+        private void beforeWrite() {
+            if (built) {
+                text = text.clone();
+                numbers = numbers.clone();
+                built = false;
+            }
+        }
+
+        private void setNumber(int field, double number, boolean isQuoted) {
+            removeExtra(FIELDS[field]);
+            beforeWrite();
+            numbers[SLOT[field]] = number;
+            present |= 1 << field;
+            quoted = isQuoted ? quoted | (1 << field) : quoted & ~(1 << field);
+        }
+
+        private void clear(int field) {
+            present &= ~(1 << field);
+            quoted &= ~(1 << field);
+            beforeWrite();
+            if ((NUMERIC & (1 << field)) != 0) {
+                numbers[SLOT[field]] = 0;
+            } else {
+                text[SLOT[field]] = null;
+            }
+        }
+
+        private void removeExtra(String name) {
+            int i = extras == null ? -1 : indexOf(extras, extraLength, name);
+            if (i < 0) return;
+            System.arraycopy(extras, i + 2, extras, i, extraLength - i - 2);
+            extraLength -= 2;
+            extras[extraLength] = null;
+            extras[extraLength + 1] = null;
+        }
+
+        /**
+         * Parse a number that must print back to the same text
+         * @return the value, NaN when it would not round-trip
+         */
+        private static double parseExact(String literal) {
+            double fast = parseSimple(literal);
+            if (!Double.isNaN(fast)) return fast;
+            if (literal.isEmpty() || literal.length() > 24) return Double.NaN;
+            char first = literal.charAt(0);
+            if (first != '-' && (first < '0' || first > '9')) return Double.NaN; // no "NaN", "Infinity", "+1", " 1"
+            try {
+                double value = Double.parseDouble(literal);
+                return formatNumber(value).equals(literal) ? value : Double.NaN;
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+
+        /**
+         * Fast path of parseExact for the usual observation literals: "13.3", "-34.9", "60". Accepts
+         * only text formatNumber prints back unchanged (no leading zero, no trailing fractional zero,
+         * at most 15 digits, plain notation range), and then mantissa / 10^k is the correctly rounded
+         * value without going through Double.parseDouble and Double.toString.
+         * @return the value, NaN when the literal needs the slow path
+         */
+        private static double parseSimple(CharSequence literal) {
+            int length = literal.length();
+            int i = length > 0 && literal.charAt(0) == '-' ? 1 : 0;
+            int start = i;
+            long mantissa = 0;
+            int digits = 0;
+            int fraction = -1;
+            for (; i < length; i++) {
+                char c = literal.charAt(i);
+                if (c == '.' && fraction < 0) {
+                    fraction = 0;
+                    continue;
+                }
+                if (c < '0' || c > '9' || ++digits > 15) return Double.NaN;
+                mantissa = mantissa * 10 + (c - '0');
+                if (fraction >= 0) fraction++;
+            }
+            int integerDigits = digits - Math.max(fraction, 0);
+            if (integerDigits == 0 || integerDigits > 1 && literal.charAt(start) == '0') return Double.NaN;
+            if (fraction == 0 || fraction > 0 && literal.charAt(length - 1) == '0') return Double.NaN;
+            if (mantissa == 0 && start == 1) return Double.NaN; // -0
+            double value = fraction > 0 ? mantissa / POWERS_OF_TEN[fraction] : mantissa;
+            if (fraction > 0 && (value < 1e-3 || value >= 1e7)) return Double.NaN;
+            return start == 1 ? -value : value;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import aggregation.AggregationServer;
+import client.GETClient;
+import com.google.gson.JsonObject;
+import content.ContentServer;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AggregateTest {
+    @TempDir
+    Path dir;
+
+    private AggregationServer startServer(int port, long ttlMillis) throws Exception {
+        return TestServers.start(port, dir.resolve("data.json"), Map.of(
+                "aggregation.syncPut", "true",
+                "aggregation.ttlMillis", String.valueOf(ttlMillis),
+                "aggregation.expiryTickMillis", "100"));
+    }
+
+    private ContentServer stations(String... records) throws Exception {
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < records.length; i++) {
+            Path file = dir.resolve("station" + i + ".txt");
+            Files.writeString(file, records[i]);
+            files.add(file.toString());
+        }
+        return new ContentServer(files);
+    }
+
+    private static JsonObject stats(JsonObject answer, String group, String field) {
+        return answer.getAsJsonObject("groups").getAsJsonObject(group).getAsJsonObject(field);
+    }
+
+    @Test
+    void testAggregatesFollowUpdates() throws Exception {
+        AggregationServer server = startServer(4720, 30_000);
+        try {
+            ContentServer content = stations(
+                    "id:ST0\nstate:SA\ntime_zone:CST\nair_temp:10.0\nwind_spd_kmh:5\n",
+                    "id:ST1\nstate:SA\ntime_zone:CST\nair_temp:20.0\nwind_spd_kmh:15\n",
+                    "id:ST2\nstate:VIC\ntime_zone:EST\nair_temp:30.0\n");
+            assertEquals(201, content.sendBatchPUT("localhost:4720"));
+            GETClient client = new GETClient();
+
+            JsonObject all = client.sendAggregateGET("localhost:4720", "all", null);
+            assertEquals(3, stats(all, "all", "air_temp").get("count").getAsLong());
+            assertEquals(20.0, stats(all, "all", "air_temp").get("avg").getAsDouble(), 1e-9);
+            assertEquals(15.0, stats(all, "all", "wind_spd_kmh").get("max").getAsDouble());
+
+            JsonObject byState = client.sendAggregateGET("localhost:4720", "state", null);
+            assertEquals(15.0, stats(byState, "SA", "air_temp").get("avg").getAsDouble(), 1e-9);
+            assertEquals(30.0, stats(byState, "VIC", "air_temp").get("min").getAsDouble());
+            assertFalse(byState.getAsJsonObject("groups").getAsJsonObject("VIC").has("wind_spd_kmh"));
+
+            // A new version replaces the station's old values, the old max goes with it
+            ContentServer update = stations("id:ST1\nstate:SA\ntime_zone:CST\nair_temp:12.0\n");
+            assertEquals(200, update.sendBatchPUT("localhost:4720"));
+            JsonObject sa = client.sendAggregateGET("localhost:4720", "state", "SA");
+            assertEquals(1, sa.getAsJsonObject("groups").size());
+            assertEquals(12.0, stats(sa, "SA", "air_temp").get("max").getAsDouble());
+            assertEquals(11.0, stats(sa, "SA", "air_temp").get("avg").getAsDouble(), 1e-9);
+            assertEquals(1, stats(sa, "SA", "wind_spd_kmh").get("count").getAsLong());
+
+            JsonObject byZone = client.sendAggregateGET("localhost:4720", "time_zone", "EST");
+            assertEquals(30.0, stats(byZone, "EST", "air_temp").get("max").getAsDouble());
+            assertThrows(IOException.class, () -> client.sendAggregateGET("localhost:4720", "name", null));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testExpiredStationsLeaveTheAggregates() throws Exception {
+        AggregationServer server = startServer(4721, 500);
+        try {
+            assertEquals(201, stations("id:ST0\nstate:SA\nair_temp:10.0\n", "id:ST1\nstate:SA\nair_temp:20.0\n")
+                    .sendBatchPUT("localhost:4721"));
+            GETClient client = new GETClient();
+            assertEquals(2, stats(client.sendAggregateGET("localhost:4721", "state", "SA"), "SA", "air_temp").get("count").getAsLong());
+
+            for (int i = 0; i < 100 && server.getStationCount() > 0; i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(0, server.getStationCount());
+            assertEquals(0, client.sendAggregateGET("localhost:4721", "state", null).getAsJsonObject("groups").size());
+            assertEquals(0, client.sendAggregateGET("localhost:4721", "all", null).getAsJsonObject("groups")
+                    .getAsJsonObject("all").size());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import aggregation.AggregationServer;
+import client.GETClient;
+import content.ContentServer;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import utilize.ReqResParser;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BackpressureTest {
+    @TempDir
+    Path dir;
+
+    private AggregationServer server;
+
+    private void startServer(int port) throws Exception {
+        server = TestServers.start(port, dir.resolve("data.json"));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        System.clearProperty("aggregation.maxPending");
+        System.clearProperty("aggregation.retryAfterSeconds");
+        System.clearProperty("aggregation.syncPut");
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testRejectPutAboveHighWaterMark() throws Exception {
+        System.setProperty("aggregation.maxPending", "0");
+        System.setProperty("aggregation.retryAfterSeconds", "0");
+        startServer(4630);
+
+        String body = "{\"id\":\"IDS60901\"}";
+        try (Socket socket = new Socket("localhost", 4630)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("PUT /weather.json HTTP/1.1\r\n" +
+                    "ServerId: cs1\r\n" +
+                    "LamportClock: 1\r\n" +
+                    "Content-Length: " + body.length() + "\r\n" +
+                    "\r\n" + body).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String[] response = ReqResParser.splitHeaderAndBodyFromRequest(in);
+            assertTrue(response[0].startsWith("HTTP/1.1 503 Service Unavailable"));
+            assertEquals("0", ReqResParser.readHeader(response[0]).metadata().get("Retry-After"));
+        }
+
+        // The content server backs off and finally gives up with the last status
+        ContentServer content = new ContentServer("src/main/java/content/weather_1.txt");
+        assertEquals(503, content.sendPUT("localhost:4630"));
+        assertEquals(0, server.getPendingCount());
+    }
+
+    @Test
+    void testSynchronousPutIsReadableOnceAcknowledged() throws Exception {
+        System.setProperty("aggregation.syncPut", "true");
+        startServer(4631);
+
+        ContentServer content = new ContentServer("src/main/java/content/weather_1.txt");
+        assertEquals(201, content.sendPUT("localhost:4631"));
+
+        // No sleep: the acknowledgement means the update is already applied
+        String response = new GETClient().sendGET("localhost:4631", "IDS60901");
+        assertNotNull(response);
+        assertEquals(content.getWeatherData().get("air_temp"), ReqResParser.readBody(response).get("air_temp"));
+        assertEquals(1, server.getAppliedCount());
+    }
+
+    @Test
+    void testConcurrentPutsStayWithinBound() throws Exception {
+        System.setProperty("aggregation.maxPending", "4");
+        startServer(4632);
+
+        AtomicInteger peak = new AtomicInteger();
+        AtomicBoolean sending = new AtomicBoolean(true);
+        Thread sampler = new Thread(() -> {
+            while (sending.get()) {
+                peak.accumulateAndGet(server.getPendingCount(), Math::max);
+            }
+        });
+        sampler.start();
+
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        List<Thread> senders = new ArrayList<>();
+        for (int t = 0; t < 16; t++) {
+            int sender = t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 20; i++) {
+                    String body = "[{\"id\":\"ST" + sender + "A\",\"air_temp\":" + i + "},{\"id\":\"ST" + sender + "B\",\"air_temp\":" + i + "}]";
+                    try (Socket socket = new Socket("localhost", 4632)) {
+                        socket.getOutputStream().write(("PUT /weather/batch.json HTTP/1.1\r\nServerId: cs" + sender + "\r\n" +
+                                "LamportClock: " + (i + 1) + "\r\nContent-Length: " + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.UTF_8));
+                        String status = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+                        if (status.startsWith("HTTP/1.1 503")) {
+                            rejected.incrementAndGet();
+                        } else if (status.startsWith("HTTP/1.1 20")) {
+                            accepted.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                }
+            });
+            senders.add(thread);
+            thread.start();
+        }
+        for (Thread thread : senders) {
+            thread.join();
+        }
+        sending.set(false);
+        sampler.join();
+
+        assertEquals(16 * 20, accepted.get() + rejected.get());
+        assertTrue(peak.get() <= 4, "peak of " + peak.get() + " pending updates");
+        for (int i = 0; i < 100 && server.getPendingCount() > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, server.getPendingCount());
+    }
+}
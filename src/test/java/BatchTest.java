@@ -0,0 +1,59 @@
+import aggregation.AggregationServer;
+import client.GETClient;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import content.ContentServer;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchTest {
+    @TempDir
+    Path dir;
+
+    private AggregationServer startServer(int port) throws Exception {
+        return TestServers.start(port, dir.resolve("data.json"), Map.of("aggregation.syncPut", "true"));
+    }
+
+    private static Set<String> ids(JsonArray stations) {
+        Set<String> ids = new HashSet<>();
+        for (JsonElement station : stations) {
+            ids.add(station.getAsJsonObject().get("id").getAsString());
+        }
+        return ids;
+    }
+
+    @Test
+    void testBatchPutAndBatchGet() throws Exception {
+        AggregationServer server = startServer(4640);
+        String address = "localhost:4640";
+        try {
+            ContentServer content = new ContentServer(List.of(
+                    "src/main/java/content/weather_1.txt",
+                    "src/main/java/content/weather_2.txt"));
+            assertEquals(201, content.sendBatchPUT(address));
+            assertEquals(200, content.sendBatchPUT(address));
+            assertEquals(4, server.getAppliedCount());
+
+            GETClient client = new GETClient();
+            JsonArray selected = client.sendBatchGET(address, List.of("IDS60901", "IDS00000"));
+            assertEquals(1, selected.size());
+            assertEquals(content.getStations().get(0).get("air_temp"),
+                    selected.get(0).getAsJsonObject().get("air_temp"));
+
+            assertEquals(Set.of("IDS60901", "IDS96012"), ids(client.sendBatchGET(address, List.of())));
+            assertEquals(Set.of("IDS96012"), ids(client.sendPrefixGET(address, "IDS96")));
+            assertEquals(0, client.sendPrefixGET(address, "XYZ").size());
+            assertEquals(client.getLocalLamport(), server.getLocalLamport() + 1);
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+import aggregation.AggregationServer;
+import client.GETClient;
+import com.google.gson.JsonParser;
+import content.ContentServer;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import utilize.HashRing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClusterTest {
+    @TempDir
+    Path dir;
+
+    private AggregationServer startNode(int port, String nodes) throws Exception {
+        return TestServers.start(port, dir.resolve("data" + port + ".json"), Map.of(
+                "aggregation.syncPut", "true",
+                "aggregation.cluster", nodes));
+    }
+
+    private List<String> stationFiles(int count) throws IOException {
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Path file = dir.resolve("station" + i + ".txt");
+            Files.writeString(file, "id:ST" + i + "\nstate:SA\nair_temp:" + i + ".5\n");
+            files.add(file.toString());
+        }
+        return files;
+    }
+
+    @Test
+    void testJoinMovesOnlyStationsOfTheNewNode() {
+        HashRing before = new HashRing(List.of("a:1", "b:2", "c:3"));
+        HashRing after = new HashRing(List.of("a:1", "b:2", "c:3", "d:4"));
+        Map<String, Integer> shares = new HashMap<>();
+        int moved = 0;
+        int keys = 20_000;
+        for (int i = 0; i < keys; i++) {
+            String id = "IDS" + i;
+            shares.merge(before.owner(id), 1, Integer::sum);
+            if (!before.owner(id).equals(after.owner(id))) {
+                assertEquals("d:4", after.owner(id));
+                moved++;
+            }
+        }
+        assertTrue(moved > keys * 0.15 && moved < keys * 0.35, "moved " + moved);
+        for (int share : shares.values()) {
+            assertTrue(share > keys / 3 * 0.75 && share < keys / 3 * 1.25, "share " + share);
+        }
+        assertEquals(before, HashRing.parse("c:3, a:1,b:2"));
+    }
+
+    @Test
+    void testClientsRouteToTheOwner() throws Exception {
+        String nodes = "localhost:4700,localhost:4701,localhost:4702";
+        HashRing ring = HashRing.parse(nodes);
+        Map<String, AggregationServer> servers = new HashMap<>();
+        for (int port = 4700; port <= 4702; port++) {
+            servers.put("localhost:" + port, startNode(port, nodes));
+        }
+        try {
+            ContentServer content = new ContentServer("src/main/java/content/weather_1.txt");
+            content.setCluster(nodes);
+            assertEquals(201, content.sendPUT("localhost:4700"));
+            String owner = ring.owner("IDS60901");
+            for (Map.Entry<String, AggregationServer> server : servers.entrySet()) {
+                assertEquals(server.getKey().equals(owner) ? 1 : 0, server.getValue().getStationCount());
+            }
+
+            GETClient client = new GETClient();
+            client.setCluster(nodes);
+            String body = client.sendGET("localhost:4700", "IDS60901");
+            assertEquals("IDS60901", JsonParser.parseString(body).getAsJsonObject().get("id").getAsString());
+
+            // A content server that does not know the ring is sent to the owner
+            String other = ring.nodes().stream().filter(node -> !node.equals(owner)).findFirst().orElseThrow();
+            assertEquals(307, new ContentServer("src/main/java/content/weather_1.txt").sendPUT(other));
+        } finally {
+            for (AggregationServer server : servers.values()) {
+                server.stop();
+            }
+        }
+    }
+
+    @Test
+    void testJoiningNodeTakesOverItsStations() throws Exception {
+        String twoNodes = "localhost:4703,localhost:4704";
+        String threeNodes = twoNodes + ",localhost:4705";
+        AggregationServer first = startNode(4703, twoNodes);
+        AggregationServer second = startNode(4704, twoNodes);
+        AggregationServer joining = null;
+        try {
+            ContentServer content = new ContentServer(stationFiles(60));
+            content.setCluster(twoNodes);
+            assertEquals(201, content.sendBatchPUT("localhost:4703"));
+            assertEquals(60, first.getStationCount() + second.getStationCount());
+
+            HashRing ring = HashRing.parse(threeNodes);
+            int expected = 0;
+            for (int i = 0; i < 60; i++) {
+                if (ring.owner("ST" + i).equals("localhost:4705")) expected++;
+            }
+            assertTrue(expected > 0);
+
+            joining = startNode(4705, threeNodes);
+            for (int i = 0; i < 250 && joining.getStationCount() < expected; i++) {
+                Thread.sleep(20);
+            }
+            for (int i = 0; i < 250 && first.getStationCount() + second.getStationCount() > 60 - expected; i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(expected, joining.getStationCount());
+            assertEquals(60 - expected, first.getStationCount() + second.getStationCount());
+            assertEquals(expected, first.getHandedOffCount() + second.getHandedOffCount());
+
+            // Clients still routing by the old ring are redirected to the new owner
+            String moved = null;
+            for (int i = 0; i < 60 && moved == null; i++) {
+                if (ring.owner("ST" + i).equals("localhost:4705")) moved = "ST" + i;
+            }
+            GETClient client = new GETClient();
+            client.setCluster(twoNodes);
+            String body = client.sendGET("localhost:4703", moved);
+            assertEquals(moved, JsonParser.parseString(body).getAsJsonObject().get("id").getAsString());
+            assertEquals(200, content.sendBatchPUT("localhost:4703"));
+            assertEquals(expected, joining.getStationCount());
+        } finally {
+            if (joining != null) joining.stop();
+            second.stop();
+            first.stop();
+        }
+    }
+
+    @Test
+    void testHandoffNeverReplacesADirectUpdate() throws Exception {
+        AggregationServer node = startNode(4706, "localhost:4706");
+        try {
+            ContentServer content = new ContentServer(stationFiles(1));
+            assertEquals(201, content.sendPUT("localhost:4706"));
+
+            // A previous owner whose clock ran far ahead hands over an older reading of the station
+            String entry = "{\"op\":\"PUT\",\"stationId\":\"ST0\",\"lamport\":1000000,\"body\":{\"id\":\"ST0\",\"air_temp\":\"99.0\"}}\n";
+            try (Socket socket = new Socket("localhost", 4706)) {
+                OutputStream out = socket.getOutputStream();
+                out.write(("PUT /cluster/handoff HTTP/1.1\r\nServerId: localhost:4799\r\nLamportClock: 1000000\r\n" +
+                        "Content-Length: " + entry.length() + "\r\n\r\n" + entry).getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                assertEquals("HTTP/1.1 200 OK", in.readLine());
+            }
+
+            String body = new GETClient().sendGET("localhost:4706", "ST0");
+            assertEquals("0.5", JsonParser.parseString(body).getAsJsonObject().get("air_temp").getAsString());
+            assertEquals(1, node.getStaleCount());
+            assertTrue(node.getLocalLamport() > 1000000); // caught up with the previous owner's clock
+        } finally {
+            node.stop();
+        }
+    }
+}
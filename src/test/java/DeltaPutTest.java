@@ -0,0 +1,90 @@
+import aggregation.AggregationServer;
+import client.GETClient;
+import com.google.gson.JsonObject;
+import content.ContentServer;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeltaPutTest {
+    @TempDir
+    Path dir;
+
+    private AggregationServer startServer(int port) throws Exception {
+        return TestServers.start(port, dir.resolve("data.json"), Map.of("aggregation.syncPut", "true"));
+    }
+
+    private static JsonObject station(String address) throws IOException {
+        return new GETClient().sendBatchGET(address, List.of("IDS60901")).get(0).getAsJsonObject();
+    }
+
+    @Test
+    void testDeltaIsMergedIntoStoredRecord() throws Exception {
+        AggregationServer server = startServer(4682);
+        String address = "localhost:4682";
+        try {
+            ContentServer content = new ContentServer("src/main/java/content/weather_1.txt");
+            assertEquals(201, content.sendDeltaPUT(address)); // first update goes in full
+
+            content.getWeatherData().addProperty("air_temp", "21.5");
+            assertEquals(200, content.sendDeltaPUT(address));
+
+            JsonObject stored = station(address);
+            assertEquals("21.5", stored.get("air_temp").getAsString());
+            assertEquals(content.getWeatherData(), stored);
+            assertEquals(0, server.getDeltaRejectedCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testStaleBaseFallsBackToFullPut() throws Exception {
+        AggregationServer server = startServer(4683);
+        String address = "localhost:4683";
+        try {
+            ContentServer first = new ContentServer("src/main/java/content/weather_1.txt");
+            ContentServer second = new ContentServer("src/main/java/content/weather_1.txt");
+            assertEquals(201, first.sendDeltaPUT(address));
+
+            second.getWeatherData().addProperty("wind_spd_kmh", 40);
+            assertEquals(200, second.sendPUT(address));
+
+            // The base of the first content server is gone: 409, then the full record
+            first.getWeatherData().addProperty("air_temp", "9.0");
+            assertEquals(200, first.sendDeltaPUT(address));
+            assertEquals(1, server.getDeltaRejectedCount());
+            assertEquals(first.getWeatherData(), station(address));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testDeltasWithoutSynchronousPuts() throws Exception {
+        // PUTs carrying a BaseVersion are still answered once the server knows the version they were stored under
+        AggregationServer server = TestServers.start(4688, dir.resolve("data.json"));
+        String address = "localhost:4688";
+        try {
+            ContentServer content = new ContentServer("src/main/java/content/weather_1.txt");
+            assertEquals(201, content.sendDeltaPUT(address));
+
+            content.getWeatherData().addProperty("air_temp", "21.5");
+            assertEquals(200, content.sendDeltaPUT(address));
+            content.getWeatherData().addProperty("air_temp", "22.0");
+            assertEquals(200, content.sendDeltaPUT(address));
+
+            assertEquals(content.getWeatherData(), station(address));
+            assertEquals(0, server.getDeltaRejectedCount());
+            assertEquals(3, server.getAppliedCount());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import aggregation.ExpiryWheel;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ExpiryWheelTest {
+    @Test
+    void testExpireOnlyPassedDeadlines() {
+        ExpiryWheel wheel = new ExpiryWheel(30_000, 100, 0);
+        wheel.touch("ST01", 0);
+        wheel.touch("ST02", 5_000);
+        wheel.touch("ST01", 10_000); // refreshed, deadline moves to 40s
+
+        assertTrue(wheel.advance(29_999).isEmpty());
+        assertEquals(List.of(), wheel.advance(30_050));
+        assertEquals(List.of("ST02"), wheel.advance(35_000));
+        assertTrue(wheel.advance(39_999).isEmpty());
+        assertEquals(List.of("ST01"), wheel.advance(40_000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void testRemovedStationNeverExpires() {
+        ExpiryWheel wheel = new ExpiryWheel(1_000, 10, 0);
+        wheel.touch("ST01", 0);
+        wheel.remove("ST01");
+
+        assertTrue(wheel.advance(5_000).isEmpty());
+    }
+
+    @Test
+    void testMillionStationsExpiryPrecisionAndCost() {
+        int stations = 1_000_000;
+        long ttl = 30_000;
+        long tick = 10;
+        ExpiryWheel wheel = new ExpiryWheel(ttl, tick, 0);
+
+        // Updates spread over 20 seconds, so deadlines fall between 30s and 50s
+        for (int i = 0; i < stations; i++) {
+            wheel.touch("IDS" + i, i / 50);
+        }
+
+        long start = System.nanoTime();
+        int expired = 0;
+        long maxLate = 0;
+        for (long now = 0; now <= 50_000; now += tick) {
+            List<String> batch = wheel.advance(now);
+            for (String key : batch) {
+                long deadline = Integer.parseInt(key.substring(3)) / 50 + ttl;
+                assertTrue(deadline <= now, "expired before its deadline: " + key);
+                maxLate = Math.max(maxLate, now - deadline);
+            }
+            expired += batch.size();
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("[Expiry] " + expired + " stations expired in " + elapsedMillis + " ms, at most " + maxLate + " ms late");
+
+        assertEquals(stations, expired);
+        assertTrue(maxLate < tick);
+        assertTrue(elapsedMillis < 10_000);
+    }
+
+    @Test
+    void testExpireAfterLongPause() {
+        ExpiryWheel wheel = new ExpiryWheel(1_000, 100, 0);
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            wheel.touch("ST" + i, i * 5);
+            keys.add("ST" + i);
+        }
+
+        // The scheduler did not run for several revolutions of the wheel
+        assertEquals(keys, new HashSet<>(wheel.advance(60_000)));
+    }
+
+    @Test
+    void testPassedDeadlineExpiresOnNextTick() {
+        ExpiryWheel wheel = new ExpiryWheel(1_000, 100, 0);
+        assertTrue(wheel.advance(5_000).isEmpty());
+
+        // Restored with an update time long gone: its deadline slot was drained several ticks ago
+        wheel.touch("ST01", 0);
+        assertEquals(List.of("ST01"), wheel.advance(5_100));
+    }
+}
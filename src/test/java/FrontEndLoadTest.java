@@ -0,0 +1,96 @@
+import aggregation.AggregationServer;
+import content.ContentServer;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Hold many idle connections open against each front end and measure GET latency for the remaining clients.
+ */
+public class FrontEndLoadTest {
+    private static final int IDLE_CONNECTIONS = 500;
+    private static final int GET_REQUESTS = 200;
+
+    @TempDir
+    Path dir;
+
+    private record Result(int served, int timedOut, long p99Micros) {}
+
+    private Result runLoad(String frontend, int port) throws Exception {
+        AggregationServer server = TestServers.start(port, dir.resolve(frontend + ".json"), Map.of("aggregation.frontend", frontend));
+
+        List<Socket> idle = new ArrayList<>();
+        try {
+            new ContentServer("src/main/java/content/weather_1.txt").sendPUT("localhost:" + port);
+            Thread.sleep(200);
+
+            for (int i = 0; i < IDLE_CONNECTIONS; i++) {
+                idle.add(new Socket("localhost", port)); // connect and never send a request
+            }
+
+            long[] latencies = new long[GET_REQUESTS];
+            int served = 0;
+            int timedOut = 0;
+            for (int i = 0; i < GET_REQUESTS && timedOut < 5; i++) {
+                long start = System.nanoTime();
+                if (get(port, "IDS60901")) {
+                    latencies[served++] = (System.nanoTime() - start) / 1000;
+                } else {
+                    timedOut++;
+                }
+            }
+
+            long[] sorted = Arrays.copyOf(latencies, served);
+            Arrays.sort(sorted);
+            long p99 = served == 0 ? -1 : sorted[Math.min(served - 1, (int) Math.ceil(served * 0.99) - 1)];
+            System.out.println("[Load] " + frontend + ": idle connections = " + idle.size() + ", served = " + served
+                    + ", timed out = " + timedOut + ", p99 = " + p99 + " us");
+            return new Result(served, timedOut, p99);
+        } finally {
+            for (Socket socket : idle) {
+                socket.close();
+            }
+            server.stop();
+        }
+    }
+
+    private boolean get(int port, String stationId) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(500);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /weather.json HTTP/1.1\r\n" +
+                    "ClientId: load\r\n" +
+                    "LamportClock: 1\r\n" +
+                    "StationId: " + stationId + "\r\n" +
+                    "\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String status = in.readLine();
+            return status != null && status.startsWith("HTTP/1.1 200");
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+    }
+
+    @Test
+    void testVirtualFrontEndServesWhileConnectionsAreIdle() throws Exception {
+        Result pool = runLoad("pool", 4610);
+        Result virtual = runLoad("virtual", 4611);
+
+        // Four idle sockets are enough to occupy every pool thread
+        assertTrue(pool.timedOut() > 0);
+        assertEquals(GET_REQUESTS, virtual.served());
+        assertEquals(0, virtual.timedOut());
+    }
+}
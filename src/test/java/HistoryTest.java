@@ -0,0 +1,116 @@
+import aggregation.AggregationServer;
+import client.GETClient;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import content.ContentServer;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistoryTest {
+    @TempDir
+    Path dir;
+
+    private AggregationServer startServer(int port) throws Exception {
+        return TestServers.start(port, dir.resolve("data.json"), Map.of(
+                "aggregation.syncPut", "true",
+                "aggregation.historySize", "20"));
+    }
+
+    private static void sendObservations(String address, int count) throws Exception {
+        ContentServer content = new ContentServer("src/main/java/content/weather_1.txt");
+        for (int i = 0; i < count; i++) {
+            content.getWeatherData().addProperty("air_temp", i + ".5");
+            content.getWeatherData().addProperty("local_date_time_full", String.valueOf(20230715160000L + i * 100));
+            assertTrue(content.sendPUT(address) < 300);
+        }
+    }
+
+    @Test
+    void testRangesByLamportAndTime() throws Exception {
+        AggregationServer server = startServer(4710);
+        try {
+            sendObservations("localhost:4710", 5);
+            GETClient client = new GETClient();
+
+            JsonObject all = client.sendHistoryGET("localhost:4710", "IDS60901", -1, -1, false);
+            JsonArray lamports = all.getAsJsonArray("lamport");
+            assertEquals(5, lamports.size());
+            assertEquals(2.5, all.getAsJsonArray("air_temp").get(2).getAsDouble());
+            assertEquals(1023.9, all.getAsJsonArray("press").get(0).getAsDouble());
+            assertEquals("20230715160400", all.getAsJsonArray("local_date_time_full").get(4).getAsString());
+
+            long from = lamports.get(1).getAsLong();
+            long to = lamports.get(3).getAsLong();
+            JsonObject byLamport = client.sendHistoryGET("localhost:4710", "IDS60901", from, to, false);
+            assertEquals(3, byLamport.getAsJsonArray("lamport").size());
+            assertEquals(1.5, byLamport.getAsJsonArray("air_temp").get(0).getAsDouble());
+
+            JsonObject byTime = client.sendHistoryGET("localhost:4710", "IDS60901", 20230715160300L, -1, true);
+            assertEquals(2, byTime.getAsJsonArray("lamport").size());
+            assertEquals(4.5, byTime.getAsJsonArray("air_temp").get(1).getAsDouble());
+
+            assertEquals(0, client.sendHistoryGET("localhost:4710", "UNKNOWN", -1, -1, false).getAsJsonArray("lamport").size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testHistoryIsBoundedAndSurvivesRestarts() throws Exception {
+        AggregationServer server = startServer(4711);
+        sendObservations("localhost:4711", 25);
+        server.stop();
+
+        // The first restart folds the write-ahead log into the snapshot, the second one only has the history log
+        startServer(4712).stop();
+        server = startServer(4713);
+        try {
+            JsonObject history = new GETClient().sendHistoryGET("localhost:4713", "IDS60901", -1, -1, false);
+            JsonArray temps = history.getAsJsonArray("air_temp");
+            assertEquals(20, temps.size());
+            assertEquals(5.5, temps.get(0).getAsDouble());
+            assertEquals(24.5, temps.get(19).getAsDouble());
+            JsonArray lamports = history.getAsJsonArray("lamport");
+            for (int i = 1; i < lamports.size(); i++) {
+                assertTrue(lamports.get(i).getAsLong() > lamports.get(i - 1).getAsLong());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void assertRecordedAsNumbers(int port) throws Exception {
+        JsonObject history = new GETClient().sendHistoryGET("localhost:" + port, "IDS60901", -1, -1, false);
+        assertEquals(20.0, history.getAsJsonArray("air_temp").get(0).getAsDouble());
+        assertEquals(1023.9, history.getAsJsonArray("press").get(0).getAsDouble(), 1e-4);
+    }
+
+    @Test
+    void testValuesKeptAsReceivedAreRecorded() throws Exception {
+        AggregationServer server = startServer(4714);
+        try {
+            // Neither value round-trips through a double, the record keeps them as text
+            ContentServer content = new ContentServer("src/main/java/content/weather_1.txt");
+            content.getWeatherData().addProperty("air_temp", "20.0");
+            content.getWeatherData().addProperty("press", "1023.90");
+            assertEquals(201, content.sendPUT("localhost:4714"));
+            assertRecordedAsNumbers(4714);
+        } finally {
+            server.stop();
+        }
+
+        // Read back from the history log
+        startServer(4715).stop();
+        server = startServer(4716);
+        try {
+            assertRecordedAsNumbers(4716);
+        } finally {
+            server.stop();
+        }
+    }
+}
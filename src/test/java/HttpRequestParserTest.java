@@ -0,0 +1,91 @@
+import org.junit.jupiter.api.Test;
+import utilize.HttpRequestParser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HttpRequestParserTest {
+    private static final String BODY = "{\"id\":\"IDS60901\",\"name\":\"Ngayirdapira – Wäldchen\"}";
+    private static final String PUT = "PUT /weather.json HTTP/1.1\r\n" +
+            "User-Agent: ATOMClient/1/0\r\n" +
+            "ServerId: cs42\r\n" +
+            "LamportClock: 17\r\n" +
+            "Connection: keep-alive\r\n" +
+            "Content-Length: " + BODY.getBytes(StandardCharsets.UTF_8).length + "\r\n" +
+            "\r\n" + BODY;
+    private static final String GET = "\r\nGET /weather.json HTTP/1.1\r\n" +
+            "ClientId: client7\r\n" +
+            "lamportclock: 3\r\n" +
+            "StationId: IDS60901\r\n" +
+            "\r\n";
+
+    @Test
+    void testParseWholeRequest() {
+        HttpRequestParser parser = new HttpRequestParser();
+        assertTrue(parser.parse(ByteBuffer.wrap(PUT.getBytes(StandardCharsets.UTF_8))));
+
+        assertEquals("PUT", parser.method());
+        assertEquals("/weather.json", parser.path());
+        assertEquals("cs42", parser.serverId());
+        assertEquals(17, parser.lamportClock());
+        assertEquals(-1, parser.baseVersion());
+        assertFalse(parser.hasBaseVersion());
+        assertTrue(parser.keepAlive());
+        assertEquals(BODY, parser.bodyAsString());
+    }
+
+    @Test
+    void testParseOneByteAtATime() {
+        byte[] bytes = PUT.getBytes(StandardCharsets.UTF_8);
+        HttpRequestParser parser = new HttpRequestParser();
+        for (int i = 0; i < bytes.length - 1; i++) {
+            assertFalse(parser.parse(ByteBuffer.wrap(bytes, i, 1)));
+        }
+        assertTrue(parser.parse(ByteBuffer.wrap(bytes, bytes.length - 1, 1)));
+        assertEquals(BODY, parser.bodyAsString());
+    }
+
+    @Test
+    void testParsePipelinedRequests() {
+        ByteBuffer buf = ByteBuffer.wrap((PUT + GET).getBytes(StandardCharsets.UTF_8));
+        HttpRequestParser parser = new HttpRequestParser();
+
+        assertTrue(parser.parse(buf));
+        assertEquals("PUT", parser.method());
+
+        parser.reset();
+        assertTrue(parser.parse(buf));
+        assertEquals("GET", parser.method());
+        assertEquals("client7", parser.clientId());
+        assertEquals("IDS60901", parser.stationId());
+        assertEquals(3, parser.lamportClock());
+        assertFalse(parser.keepAlive());
+        assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    void testRejectMalformedHeader() {
+        String bad = "GET /weather.json HTTP/1.1\r\nLamportClock: abc\r\n\r\n";
+        HttpRequestParser parser = new HttpRequestParser();
+        assertThrows(IllegalArgumentException.class, () -> parser.parse(ByteBuffer.wrap(bad.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    void testParseBaseVersion() {
+        HttpRequestParser parser = new HttpRequestParser();
+        assertTrue(parser.parse(ByteBuffer.wrap("PUT /weather.json HTTP/1.1\r\nBaseVersion: 12\r\n\r\n".getBytes(StandardCharsets.UTF_8))));
+        assertEquals(12, parser.baseVersion());
+
+        // A full record asking for its version
+        parser.reset();
+        assertTrue(parser.parse(ByteBuffer.wrap("PUT /weather.json HTTP/1.1\r\nBaseVersion: -1\r\n\r\n".getBytes(StandardCharsets.UTF_8))));
+        assertEquals(-1, parser.baseVersion());
+        assertTrue(parser.hasBaseVersion());
+
+        parser.reset();
+        assertThrows(IllegalArgumentException.class,
+                () -> parser.parse(ByteBuffer.wrap("PUT /weather.json HTTP/1.1\r\nBaseVersion: -2\r\n\r\n".getBytes(StandardCharsets.UTF_8))));
+    }
+}
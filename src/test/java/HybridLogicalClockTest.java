@@ -0,0 +1,89 @@
+import aggregation.AggregationServer;
+import client.GETClient;
+import content.ContentServer;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import utilize.HybridLogicalClock;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HybridLogicalClockTest {
+    @TempDir
+    Path dir;
+
+    private final AtomicLong wall = new AtomicLong(1_000);
+    private final HybridLogicalClock clock = new HybridLogicalClock(1_000, wall::get);
+
+    @Test
+    void testSendFollowsWallClock() {
+        assertEquals(HybridLogicalClock.pack(1_000, 0), clock.onSend());
+        assertEquals(HybridLogicalClock.pack(1_000, 1), clock.onSend());
+        wall.set(1_001);
+        assertEquals(HybridLogicalClock.pack(1_001, 0), clock.onSend());
+        assertEquals(1_001, clock.physicalMillis(clock.get()));
+    }
+
+    @Test
+    void testNeverGoesBackwards() {
+        wall.set(2_000);
+        long before = clock.onSend();
+        wall.set(1_500); // wall clock stepped back
+        long after = clock.onSend();
+        assertTrue(after > before);
+        assertEquals(2_000, clock.physicalMillis(after));
+    }
+
+    @Test
+    void testReceiveMergesRemoteAndPlainLamportTimestamps() {
+        long remote = HybridLogicalClock.pack(1_500, 3);
+        assertEquals(HybridLogicalClock.pack(1_500, 4), clock.onReceive(remote));
+        // A peer that still runs a plain Lamport counter sends small values, they are simply older
+        assertEquals(HybridLogicalClock.pack(1_500, 5), clock.onReceive(5));
+    }
+
+    @Test
+    void testDriftBound() {
+        assertTrue(clock.isPlausible(HybridLogicalClock.pack(1_999, 0)));
+        assertFalse(clock.isPlausible(HybridLogicalClock.pack(2_001, 0)));
+        assertTrue(clock.isPlausible(42));
+    }
+
+    @Test
+    void testServerRejectsTimestampsFromTheFuture() throws Exception {
+        AggregationServer server = TestServers.start(4670, dir.resolve("data.json"), Map.of("aggregation.clock", "hlc"));
+        try {
+            long future = HybridLogicalClock.pack(System.currentTimeMillis() + 3_600_000, 0);
+            String body = "{\"id\":\"IDS60901\",\"air_temp\":\"13.3\"}";
+            try (Socket socket = new Socket("localhost", 4670)) {
+                OutputStream out = socket.getOutputStream();
+                out.write(("PUT /weather.json HTTP/1.1\r\nServerId: cs1\r\nLamportClock: " + future + "\r\n" +
+                        "Content-Length: " + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                assertEquals("HTTP/1.1 400 Bad Request", in.readLine());
+            }
+            assertTrue(server.getLocalLamport() < future);
+
+            // Content servers and clients with a plain Lamport counter still interoperate
+            ContentServer content = new ContentServer("src/main/java/content/weather_1.txt");
+            assertEquals(201, content.sendPUT("localhost:4670"));
+            Thread.sleep(300);
+            GETClient client = new GETClient();
+            assertNotNull(client.sendGET("localhost:4670", "IDS60901"));
+            assertEquals(client.getLocalLamport(), server.getLocalLamport() + 1);
+            long physical = server.getLocalLamport() >>> HybridLogicalClock.LOGICAL_BITS;
+            assertTrue(Math.abs(System.currentTimeMillis() - physical) < 5_000);
+        } finally {
+            server.stop();
+        }
+    }
+}
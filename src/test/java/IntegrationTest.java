@@ -3,6 +3,7 @@ import client.GETClient;
 import com.google.gson.JsonObject;
 import content.ContentServer;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
 import utilize.JsonUtil;
 import utilize.ReqResParser;
 
@@ -13,6 +14,10 @@ import static org.junit.jupiter.api.Assertions.*;
 
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
 public class IntegrationTest {
+    // Shared by the ordered cases: a later one restores what an earlier one stored
+    @TempDir
+    static Path dir;
+
     private AggregationServer aggServer;
     private ContentServer content1;
     private ContentServer content2;
@@ -29,7 +34,7 @@ public class IntegrationTest {
     @BeforeEach
     public void setUp() throws Exception {
         int port = 4567;
-        Path snapshotPath = Path.of("test_data.json");
+        Path snapshotPath = dir.resolve("test_data.json");
         aggServer = new AggregationServer(port, snapshotPath);
 
         new Thread(() -> {
@@ -110,7 +115,7 @@ public class IntegrationTest {
         new Thread(() -> {
             try {
                 int port = 4567;
-                Path snapshotPath = Path.of("test_data.json");
+                Path snapshotPath = dir.resolve("test_data.json");
                 aggServer = new AggregationServer(port, snapshotPath);
                 aggServer.start();
             } catch (Exception e) {
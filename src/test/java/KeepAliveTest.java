@@ -0,0 +1,132 @@
+import aggregation.AggregationServer;
+import client.GETClient;
+import com.google.gson.JsonObject;
+import content.ContentServer;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import utilize.ReqResParser;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KeepAliveTest {
+    @TempDir
+    Path dir;
+
+    private AggregationServer startServer(String frontend, int port) throws Exception {
+        return TestServers.start(port, dir.resolve("data.json"), Map.of("aggregation.frontend", frontend));
+    }
+
+    private void pipelineGets(String frontend, int port) throws Exception {
+        AggregationServer server = startServer(frontend, port);
+        String address = "localhost:" + port;
+        try {
+            ContentServer content1 = new ContentServer("src/main/java/content/weather_1.txt");
+            ContentServer content2 = new ContentServer("src/main/java/content/weather_2.txt");
+            for (int i = 0; i < 3; i++) {
+                content1.sendPUT(address);
+                content2.sendPUT(address);
+            }
+            Thread.sleep(300);
+
+            GETClient client = new GETClient();
+            Map<String, String> responses = client.sendGETs(address, List.of("IDS60901", "IDS96012", "IDS00000", "IDS60901"));
+
+            assertEquals(3, responses.size());
+            JsonObject first = ReqResParser.readBody(responses.get("IDS60901"));
+            JsonObject second = ReqResParser.readBody(responses.get("IDS96012"));
+            assertEquals(content1.getWeatherData().get("air_temp"), first.get("air_temp"));
+            assertEquals(content2.getWeatherData().get("air_temp"), second.get("air_temp"));
+            assertNull(responses.get("IDS00000"));
+            assertEquals(client.getLocalLamport(), server.getLocalLamport() + 1);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testPipelinedGetsOnPersistentConnection() throws Exception {
+        pipelineGets("virtual", 4620);
+    }
+
+    @Test
+    void testPipelinedGetsWhenServerClosesConnections() throws Exception {
+        pipelineGets("pool", 4621);
+    }
+
+    /**
+     * Read one response off a connection
+     * @return status line, null once the server closed the connection
+     */
+    private static String readResponse(BufferedReader in, boolean[] keptOpen) throws Exception {
+        String status = in.readLine();
+        if (status == null) return null;
+        String header;
+        int contentLength = 0;
+        keptOpen[0] = false;
+        while (!(header = in.readLine()).isEmpty()) {
+            if (header.startsWith("Content-Length:")) contentLength = Integer.parseInt(header.substring(15).trim());
+            keptOpen[0] |= header.equals("Connection: keep-alive");
+        }
+        assertEquals(contentLength, in.skip(contentLength));
+        return status;
+    }
+
+    @Test
+    void testDefaultServerKeepsConnectionsOpen() throws Exception {
+        AggregationServer server = TestServers.start(4622, dir.resolve("data.json"));
+        try (Socket socket = new Socket("localhost", 4622)) {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            boolean[] keptOpen = {false};
+            String body = "{\"id\":\"IDS60901\",\"air_temp\":\"13.3\"}";
+            out.write(("PUT /weather.json HTTP/1.1\r\nServerId: cs1\r\nLamportClock: 1\r\nConnection: keep-alive\r\n" +
+                    "Content-Length: " + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("HTTP/1.1 201 Created", readResponse(in, keptOpen));
+            assertTrue(keptOpen[0]);
+
+            out.write(("GET /weather.json HTTP/1.1\r\nStationId: IDS60901\r\nLamportClock: 2\r\n" +
+                    "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertNotNull(readResponse(in, keptOpen), "second request on the same connection");
+            assertTrue(keptOpen[0]);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testMalformedPutIsAnsweredBadRequest() throws Exception {
+        AggregationServer server = TestServers.start(4742, dir.resolve("data.json"));
+        try (Socket socket = new Socket("localhost", 4742)) {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            boolean[] keptOpen = {false};
+            long lamport = 1;
+            for (String body : List.of("{\"id\":\"IDS60901\",", "{\"air_temp\":\"13.3\"}")) {
+                out.write(("PUT /weather.json HTTP/1.1\r\nServerId: cs1\r\nLamportClock: " + lamport++ + "\r\nConnection: keep-alive\r\n" +
+                        "Content-Length: " + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                assertEquals("HTTP/1.1 400 Bad Request", readResponse(in, keptOpen), body);
+                assertTrue(keptOpen[0]);
+            }
+
+            String body = "{\"id\":\"IDS60901\",\"air_temp\":\"13.3\"}";
+            out.write(("PUT /weather.json HTTP/1.1\r\nServerId: cs1\r\nLamportClock: " + lamport + "\r\nConnection: keep-alive\r\n" +
+                    "Content-Length: " + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("HTTP/1.1 201 Created", readResponse(in, keptOpen), "the connection is still usable");
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import aggregation.AggregationServer;
+import loadgen.LoadGenerator;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LoadGeneratorTest {
+    @TempDir
+    Path dir;
+
+    private AggregationServer startServer(int port) throws Exception {
+        return TestServers.start(port, dir.resolve("data.json"), Map.of("aggregation.frontend", "virtual"));
+    }
+
+    private static LoadGenerator generator(String address) {
+        String[][] settings = {{"load.stations", "200"}, {"load.feeders", "20"}, {"load.putRate", "400"},
+                               {"load.readers", "10"}, {"load.getRate", "400"}, {"load.skew", "1.1"}, {"load.seconds", "2"}};
+        for (String[] setting : settings) {
+            System.setProperty(setting[0], setting[1]);
+        }
+        LoadGenerator generator = new LoadGenerator(address);
+        for (String[] setting : settings) {
+            System.clearProperty(setting[0]);
+        }
+        return generator;
+    }
+
+    @Test
+    void testOpenLoopRunReportsEveryRequest() throws Exception {
+        AggregationServer server = startServer(4740);
+        try {
+            LoadGenerator generator = generator("localhost:4740");
+            generator.run();
+
+            // The schedule is fixed: 2 s at 400/s, whatever the server does
+            assertEquals(800, generator.getPuts().sent() + generator.getPuts().dropped());
+            assertEquals(800, generator.getGets().sent() + generator.getGets().dropped());
+            assertEquals(0, generator.getPuts().errors());
+            assertEquals(0, generator.getGets().errors());
+            assertEquals(800, generator.getGets().answered(200));
+            assertEquals(800, generator.getPuts().latency().count());
+            assertEquals(200, server.getStationCount());
+
+            ByteArrayOutputStream report = new ByteArrayOutputStream();
+            generator.report(new PrintStream(report, true, StandardCharsets.UTF_8));
+            String text = report.toString(StandardCharsets.UTF_8);
+            assertTrue(text.contains("PUT  latency ms  p50"), text);
+            assertTrue(text.contains("p999"), text);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testUnreachableServerFailsTheRun() throws Exception {
+        LoadGenerator generator = generator("localhost:4741");
+        assertThrows(IOException.class, generator::run); // seeding needs the server
+    }
+}
@@ -0,0 +1,112 @@
+import org.junit.jupiter.api.*;
+import utilize.Log;
+import utilize.RingBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LogTest {
+    private final List<String> written = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        Log.setSink(lines -> {
+            synchronized (written) {
+                written.add(lines);
+            }
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        Log.flush(1000);
+        Log.setLevel(Log.Level.INFO);
+        Log.setSink(System.out::print);
+    }
+
+    private String text() {
+        synchronized (written) {
+            return String.join("", written);
+        }
+    }
+
+    @Test
+    void testLevelsFilterLines() {
+        Log.setLevel(Log.Level.INFO);
+        Log.info("[Test] shown");
+        Log.debug("[Test] hidden");
+        Log.debug(() -> { throw new AssertionError("DEBUG line built while disabled"); });
+        Log.flush(1000);
+        assertTrue(text().contains("[Test] shown\n"));
+        assertFalse(text().contains("hidden"));
+
+        Log.setLevel(Log.Level.DEBUG);
+        Log.debug(() -> "[Test] now shown");
+        Log.flush(1000);
+        assertTrue(text().contains("[Test] now shown\n"));
+    }
+
+    @Test
+    void testFullRingDropsInsteadOfBlocking() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Log.setSink(lines -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Log.info("[Test] the writer blocks on this one");
+        Thread.sleep(50);
+
+        long before = Log.getDropped();
+        long start = System.nanoTime();
+        for (int i = 0; i < 100_000; i++) {
+            Log.info("[Test] line " + i);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        release.countDown();
+
+        assertTrue(Log.getDropped() - before > 0);
+        assertTrue(elapsedMillis < 5000, "logging blocked for " + elapsedMillis + " ms");
+    }
+
+    @Test
+    void testRingBufferKeepsEveryElementOfConcurrentProducers() throws Exception {
+        RingBuffer<Long> ring = new RingBuffer<>(1024);
+        int producers = 4;
+        int perProducer = 100_000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            Thread t = new Thread(() -> {
+                for (long i = 1; i <= perProducer; i++) {
+                    while (!ring.offer(i)) {
+                        Thread.onSpinWait();
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+
+        long sum = 0;
+        long received = 0;
+        while (received < (long) producers * perProducer) {
+            Long item = ring.poll();
+            if (item == null) {
+                Thread.onSpinWait();
+                continue;
+            }
+            sum += item;
+            received++;
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals((long) producers * perProducer * (perProducer + 1) / 2, sum);
+        assertTrue(ring.isEmpty());
+    }
+}
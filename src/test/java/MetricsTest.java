@@ -0,0 +1,100 @@
+import aggregation.AggregationServer;
+import client.GETClient;
+import content.ContentServer;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import utilize.LatencyHistogram;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetricsTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void testPercentilesWithinBucketResolution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000);
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(500_500_000L, histogram.sumNanos());
+
+        long p50 = histogram.percentile(0.5);
+        long p99 = histogram.percentile(0.99);
+        assertTrue(p50 >= 500_000 && p50 <= 500_000 * 1.125, "p50 = " + p50);
+        assertTrue(p99 >= 990_000 && p99 <= 990_000 * 1.125, "p99 = " + p99);
+        assertEquals(0, new LatencyHistogram().percentile(0.99));
+    }
+
+    @Test
+    void testPrometheusHistogramIsCumulative() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(800);            // 0.8 us
+        histogram.record(3_000_000);      // 3 ms
+        histogram.record(20_000_000_000L); // 20 s
+
+        StringBuilder sb = new StringBuilder();
+        histogram.writePrometheus(sb, "test_seconds", "Test");
+        String text = sb.toString();
+        assertTrue(text.contains("# TYPE test_seconds histogram\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"1.0E-6\"} 1\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"0.005\"} 2\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"10.0\"} 2\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("test_seconds_count 3\n"));
+    }
+
+    @Test
+    void testMetricsEndpoint() throws Exception {
+        AggregationServer server = TestServers.start(4650, dir.resolve("data.json"));
+        try {
+            ContentServer content = new ContentServer("src/main/java/content/weather_1.txt");
+            content.sendPUT("localhost:4650");
+            Thread.sleep(300);
+            new GETClient().sendGET("localhost:4650", "IDS60901");
+            long lamport = server.getLocalLamport();
+
+            String head;
+            StringBuilder body = new StringBuilder();
+            try (Socket socket = new Socket("localhost", 4650)) {
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+                out.print("GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                out.flush();
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                StringBuilder headers = new StringBuilder();
+                String line;
+                while (!(line = in.readLine()).isEmpty()) {
+                    headers.append(line).append('\n');
+                }
+                head = headers.toString();
+                while ((line = in.readLine()) != null) {
+                    body.append(line).append('\n');
+                }
+            }
+
+            assertTrue(head.startsWith("HTTP/1.1 200 OK"));
+            assertTrue(head.contains("Content-Type: text/plain"));
+            String text = body.toString();
+            assertTrue(text.contains("aggregation_put_applied_total 1\n"));
+            assertTrue(text.contains("aggregation_stations 1\n"));
+            assertTrue(text.contains("aggregation_put_accept_to_enqueue_seconds_count 1\n"));
+            assertTrue(text.contains("aggregation_put_queue_wait_seconds_count 1\n"));
+            assertTrue(text.contains("aggregation_wal_commit_seconds_count 1\n"));
+            assertTrue(text.contains("aggregation_get_service_seconds_count 1\n"));
+            assertTrue(text.contains("aggregation_lane_depth{lane=\"0\"} 0\n"));
+            assertTrue(text.contains("# TYPE aggregation_lamport_clock gauge\naggregation_lamport_clock " + lamport + "\n"));
+            // A scrape is not part of the system's causal history
+            assertEquals(lamport, server.getLocalLamport());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+import aggregation.AggregationServer;
+import client.GETClient;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import content.ContentServer;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReplicationTest {
+    @TempDir
+    Path dir;
+
+    private AggregationServer startServer(int port, String primary) throws Exception {
+        Map<String, String> properties = new HashMap<>(Map.of("aggregation.syncPut", "true"));
+        if (primary != null) properties.put("aggregation.replicaOf", primary);
+        return TestServers.start(port, dir.resolve("data" + port + ".json"), properties);
+    }
+
+    private static void awaitCaughtUp(AggregationServer primary, AggregationServer replica) throws InterruptedException {
+        for (int i = 0; i < 250 && replica.getReplicatedSeq() < primary.getReplicationHead(); i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(primary.getReplicationHead(), replica.getReplicatedSeq());
+    }
+
+    private static String airTemp(String body) {
+        return JsonParser.parseString(body).getAsJsonObject().get("air_temp").getAsString();
+    }
+
+    @Test
+    void testReplicasFollowThePrimary() throws Exception {
+        AggregationServer primary = startServer(4690, null);
+        List<AggregationServer> replicas = new ArrayList<>();
+        try {
+            ContentServer content = new ContentServer("src/main/java/content/weather_1.txt");
+            assertEquals(201, content.sendPUT("localhost:4690"));
+
+            // Started after the first update: they get it from the snapshot, the next ones from the log
+            for (int port = 4691; port <= 4693; port++) {
+                replicas.add(startServer(port, "localhost:4690"));
+            }
+            assertEquals(201, new ContentServer("src/main/java/content/weather_2.txt").sendPUT("localhost:4690"));
+            for (int i = 0; i < 20; i++) {
+                content.getWeatherData().addProperty("air_temp", String.valueOf(i));
+                assertEquals(200, content.sendPUT("localhost:4690"));
+            }
+
+            GETClient client = new GETClient();
+            for (int i = 0; i < replicas.size(); i++) {
+                AggregationServer replica = replicas.get(i);
+                awaitCaughtUp(primary, replica);
+                assertEquals(0, replica.getReplicationLag());
+                String address = "localhost:" + (4691 + i);
+                assertEquals("19", airTemp(client.sendGET(address, "IDS60901")));
+                assertNotNull(client.sendGET(address, "IDS96012"));
+            }
+
+            // Replicas are read-only: a PUT is redirected to the primary
+            assertEquals(307, content.sendPUT("localhost:4691"));
+        } finally {
+            for (AggregationServer replica : replicas) {
+                replica.stop();
+            }
+            primary.stop();
+        }
+    }
+
+    @Test
+    void testReplicaResumesAndFailoverReadsIt() throws Exception {
+        AggregationServer primary = startServer(4694, null);
+        AggregationServer replica = startServer(4695, "localhost:4694");
+        try {
+            ContentServer content = new ContentServer("src/main/java/content/weather_1.txt");
+            assertEquals(201, content.sendPUT("localhost:4694"));
+            awaitCaughtUp(primary, replica);
+
+            // A restarted replica re-syncs from its snapshot and keeps following
+            replica.stop();
+            content.getWeatherData().addProperty("air_temp", "25.5");
+            assertEquals(200, content.sendPUT("localhost:4694"));
+            replica = startServer(4696, "localhost:4694");
+            awaitCaughtUp(primary, replica);
+
+            // With the primary gone, a client listing both servers reads from the replica
+            primary.stop();
+            String body = new GETClient().sendGET("localhost:4694,localhost:4696", "IDS60901");
+            JsonObject station = JsonParser.parseString(body).getAsJsonObject();
+            assertEquals("25.5", station.get("air_temp").getAsString());
+        } finally {
+            replica.stop();
+            primary.stop();
+        }
+    }
+}
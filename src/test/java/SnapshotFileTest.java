@@ -0,0 +1,185 @@
+import aggregation.AggregationServer;
+import aggregation.SnapshotFile;
+import client.GETClient;
+import com.google.gson.JsonObject;
+import content.ContentServer;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import utilize.ReqResParser;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotFileTest {
+    @TempDir
+    Path dir;
+
+    private static byte[] json(String id, int temp) {
+        return ("{\"id\":\"" + id + "\",\"air_temp\":\"" + temp + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testWriteAndMapRoundTrip() throws Exception {
+        Path path = dir.resolve("data.json.bin");
+        List<SnapshotFile.Station> stations = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            stations.add(new SnapshotFile.Station("IDS" + i, i + 1, json("IDS" + i, i)));
+        }
+        long size = SnapshotFile.write(path, 5000, stations);
+        assertEquals(Files.size(path), size);
+        assertTrue(SnapshotFile.isBinary(path));
+
+        SnapshotFile file = SnapshotFile.open(path);
+        assertEquals(5000, file.getLamport());
+        assertEquals(1000, file.getCount());
+        Map<String, byte[]> bodies = new HashMap<>();
+        Map<String, Long> lamports = new HashMap<>();
+        file.forEach((id, lamport, offset) -> {
+            bodies.put(id, file.readJson(offset));
+            lamports.put(id, lamport);
+        });
+        assertEquals(1000, bodies.size());
+        assertArrayEquals(json("IDS42", 42), bodies.get("IDS42"));
+        assertEquals(43L, lamports.get("IDS42"));
+    }
+
+    @Test
+    void testCorruptionIsDetected() throws Exception {
+        Path path = dir.resolve("data.json.bin");
+        SnapshotFile.write(path, 7, List.of(new SnapshotFile.Station("IDS1", 7, json("IDS1", 20))));
+        byte[] bytes = Files.readAllBytes(path);
+
+        // A damaged record body is found when the station is read, opening does not touch it
+        bytes[30] ^= 1;
+        Files.write(path, bytes);
+        SnapshotFile file = SnapshotFile.open(path);
+        int[] offset = {-1};
+        file.forEach((id, lamport, at) -> offset[0] = at);
+        UncheckedIOException record = assertThrows(UncheckedIOException.class, () -> file.readJson(offset[0]));
+        assertTrue(record.getMessage().contains("checksum"));
+
+        // A damaged index is found on open
+        bytes[30] ^= 1;
+        bytes[bytes.length - 12] ^= 1;
+        Files.write(path, bytes);
+        IOException e = assertThrows(IOException.class, () -> SnapshotFile.open(path));
+        assertTrue(e.getMessage().contains("checksum"));
+        assertFalse(SnapshotFile.isBinary(dir.resolve("missing.bin")));
+    }
+
+    private AggregationServer startServer(int port) throws Exception {
+        return TestServers.start(port, dir.resolve("data.json"), Map.of("aggregation.snapshotFormat", "binary"));
+    }
+
+    @Test
+    void testServerRestoresFromBinarySnapshot() throws Exception {
+        String address = "localhost:4660";
+        ContentServer content = new ContentServer("src/main/java/content/weather_1.txt");
+
+        AggregationServer server = startServer(4660);
+        long lamport;
+        try {
+            content.sendPUT(address);
+            Thread.sleep(300);
+            server.exportJson(dir.resolve("export.json"));
+            lamport = server.getLocalLamport();
+        } finally {
+            server.stop();
+        }
+        Thread.sleep(200);
+
+        // Opening the server again folds the write-ahead log tail into a binary snapshot
+        System.setProperty("aggregation.snapshotFormat", "binary");
+        new AggregationServer(4661, dir.resolve("data.json")).stop();
+        System.clearProperty("aggregation.snapshotFormat");
+        assertTrue(SnapshotFile.isBinary(dir.resolve("data.json.bin")));
+        assertEquals(0, Files.size(dir.resolve("data.json.wal")));
+        assertTrue(Files.readString(dir.resolve("export.json")).contains("IDS60901"));
+
+        AggregationServer restarted = startServer(4661);
+        try {
+            assertEquals(lamport - 1, restarted.getLocalLamport()); // Lamport of the applied update, before the response tick
+            String response = new GETClient().sendGET("localhost:4661", "IDS60901");
+            JsonObject body = ReqResParser.readBody(response);
+            assertEquals(content.getWeatherData(), body);
+        } finally {
+            restarted.stop();
+        }
+    }
+
+    @Test
+    void testRestoredStationsStayUndecoded() throws Exception {
+        AggregationServer server = startServer(4662);
+        try {
+            assertEquals(201, new ContentServer("src/main/java/content/weather_1.txt").sendPUT("localhost:4662"));
+            assertEquals(201, new ContentServer("src/main/java/content/weather_2.txt").sendPUT("localhost:4662"));
+            Thread.sleep(300);
+        } finally {
+            server.stop();
+        }
+        Thread.sleep(200);
+        // Fold the write-ahead log into the binary snapshot, so the next start restores every station from it
+        System.setProperty("aggregation.snapshotFormat", "binary");
+        new AggregationServer(4663, dir.resolve("data.json")).stop();
+        System.clearProperty("aggregation.snapshotFormat");
+
+        AggregationServer restarted = startServer(4663);
+        try {
+            assertEquals(0, restarted.getDecodedCount());
+            assertNotNull(new GETClient().sendGET("localhost:4663", "IDS60901"));
+            assertEquals(0, restarted.getDecodedCount()); // answered with the stored JSON
+
+            // The first aggregate query indexes the restored stations
+            JsonObject all = new GETClient().sendAggregateGET("localhost:4663", "all", null);
+            assertEquals(2, all.getAsJsonObject("groups").getAsJsonObject("all").getAsJsonObject("air_temp").get("count").getAsLong());
+            assertEquals(2, restarted.getDecodedCount());
+        } finally {
+            restarted.stop();
+        }
+    }
+
+    @Test
+    void testJsonServerRestoresNewerBinarySnapshot() throws Exception {
+        ContentServer content = new ContentServer("src/main/java/content/weather_1.txt");
+        AggregationServer json = TestServers.start(4664, dir.resolve("data.json"));
+        try {
+            assertEquals(201, content.sendPUT("localhost:4664"));
+            Thread.sleep(300);
+        } finally {
+            json.stop();
+        }
+        // Fold the write-ahead log into a JSON snapshot, then update the station in binary mode
+        new AggregationServer(4665, dir.resolve("data.json")).stop();
+        AggregationServer binary = startServer(4665);
+        try {
+            content.getWeatherData().addProperty("air_temp", "30.5");
+            assertEquals(200, content.sendPUT("localhost:4665"));
+            Thread.sleep(300);
+        } finally {
+            binary.stop();
+        }
+        System.setProperty("aggregation.snapshotFormat", "binary");
+        new AggregationServer(4666, dir.resolve("data.json")).stop();
+        System.clearProperty("aggregation.snapshotFormat");
+        assertTrue(Files.exists(dir.resolve("data.json")));
+        assertEquals(0, Files.size(dir.resolve("data.json.wal")));
+
+        // Back in the default format: the binary snapshot is the newer one
+        AggregationServer restarted = TestServers.start(4666, dir.resolve("data.json"));
+        try {
+            JsonObject body = ReqResParser.readBody(new GETClient().sendGET("localhost:4666", "IDS60901"));
+            assertEquals("30.5", body.get("air_temp").getAsString());
+        } finally {
+            restarted.stop();
+        }
+    }
+}
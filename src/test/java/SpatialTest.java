@@ -0,0 +1,112 @@
+import aggregation.AggregationServer;
+import client.GETClient;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import content.ContentServer;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import utilize.Geo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SpatialTest {
+    @TempDir
+    Path dir;
+
+    private AggregationServer startServer(int port, long ttlMillis) throws Exception {
+        return TestServers.start(port, dir.resolve("data.json"), Map.of(
+                "aggregation.syncPut", "true",
+                "aggregation.ttlMillis", String.valueOf(ttlMillis),
+                "aggregation.expiryTickMillis", "100",
+                "aggregation.gridCellDegrees", "5"));
+    }
+
+    /**
+     * Random stations over the whole globe, with a few on the antimeridian and near the poles
+     */
+    private Map<String, double[]> sendStations(String address, int count) throws Exception {
+        Random random = new Random(42);
+        Map<String, double[]> positions = new LinkedHashMap<>();
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            double lat = i % 50 == 0 ? 89.5 - random.nextDouble() : Math.round((random.nextDouble() * 180 - 90) * 1000) / 1000.0;
+            double lon = i % 40 == 0 ? 180 : Math.round((random.nextDouble() * 360 - 180) * 1000) / 1000.0;
+            positions.put("ST" + i, new double[]{lat, lon});
+            Path file = dir.resolve("station" + i + ".txt");
+            Files.writeString(file, "id:ST" + i + "\nlat:" + lat + "\nlon:" + lon + "\nair_temp:20\n");
+            files.add(file.toString());
+        }
+        assertEquals(201, new ContentServer(files).sendBatchPUT(address));
+        return positions;
+    }
+
+    private static List<String> ids(JsonArray stations) {
+        List<String> ids = new ArrayList<>();
+        for (JsonElement station : stations) {
+            ids.add(station.getAsJsonObject().get("id").getAsString());
+        }
+        return ids;
+    }
+
+    @Test
+    void testQueriesMatchAFullScan() throws Exception {
+        AggregationServer server = startServer(4730, 30_000);
+        try {
+            Map<String, double[]> positions = sendStations("localhost:4730", 400);
+            GETClient client = new GETClient();
+
+            double[][] points = {{-34.9, 138.6}, {0, 179.9}, {0, -180}, {88, 10}, {-90, 0}, {45, -100}};
+            for (double[] point : points) {
+                List<String> expected = new ArrayList<>(positions.keySet());
+                expected.sort(Comparator.comparingDouble(id -> Geo.distanceKm(point[0], point[1], positions.get(id)[0], positions.get(id)[1])));
+                assertEquals(expected.subList(0, 7), ids(client.sendNearestGET("localhost:4730", point[0], point[1], 7)),
+                             "nearest to " + Arrays.toString(point));
+            }
+
+            double[][] boxes = {{-40, 110, -10, 155}, {-20, 170, 20, -170}, {60, -180, 90, 180}, {-5, 175, 5, 180}};
+            for (double[] box : boxes) {
+                Set<String> expected = new TreeSet<>();
+                for (Map.Entry<String, double[]> station : positions.entrySet()) {
+                    if (Geo.inBox(station.getValue()[0], station.getValue()[1], box[0], box[1], box[2], box[3])) {
+                        expected.add(station.getKey());
+                    }
+                }
+                assertEquals(expected, new TreeSet<>(ids(client.sendBoxGET("localhost:4730", box[0], box[1], box[2], box[3]))),
+                             "box " + Arrays.toString(box));
+            }
+            assertThrows(IOException.class, () -> client.sendBoxGET("localhost:4730", 10, 0, -10, 5));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testMovedAndExpiredStationsLeaveTheGrid() throws Exception {
+        AggregationServer server = startServer(4731, 1_000);
+        try {
+            Path file = dir.resolve("moving.txt");
+            Files.writeString(file, "id:MOVING\nlat:-34.9\nlon:138.6\n");
+            assertEquals(201, new ContentServer(file.toString()).sendPUT("localhost:4731"));
+            GETClient client = new GETClient();
+            assertEquals(List.of("MOVING"), ids(client.sendBoxGET("localhost:4731", -35, 138, -34, 139)));
+
+            Files.writeString(file, "id:MOVING\nlat:-31.9\nlon:115.9\n");
+            assertEquals(200, new ContentServer(file.toString()).sendPUT("localhost:4731"));
+            assertEquals(List.of(), ids(client.sendBoxGET("localhost:4731", -35, 138, -34, 139)));
+            assertEquals(List.of("MOVING"), ids(client.sendNearestGET("localhost:4731", -34.9, 138.6, 3)));
+
+            for (int i = 0; i < 100 && server.getStationCount() > 0; i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(0, server.getStationCount());
+            assertEquals(0, client.sendNearestGET("localhost:4731", -31.9, 115.9, 3).size());
+        } finally {
+            server.stop();
+        }
+    }
+}
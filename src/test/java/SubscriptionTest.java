@@ -0,0 +1,110 @@
+import aggregation.AggregationServer;
+import client.GETClient;
+import content.ContentServer;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SubscriptionTest {
+    @TempDir
+    Path dir;
+
+    private AggregationServer startServer(int port) throws Exception {
+        return TestServers.start(port, dir.resolve("data.json"), Map.of(
+                "aggregation.syncPut", "true",
+                "aggregation.longPollMillis", "2000"));
+    }
+
+    private static void awaitSubscribers(AggregationServer server, int count) throws InterruptedException {
+        for (int i = 0; i < 100 && server.getSubscriberCount() < count; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(count, server.getSubscriberCount());
+    }
+
+    @Test
+    void testSubscriberGetsNextUpdate() throws Exception {
+        AggregationServer server = startServer(4684);
+        String address = "localhost:4684";
+        try {
+            ContentServer content = new ContentServer("src/main/java/content/weather_1.txt");
+            assertEquals(201, content.sendPUT(address));
+
+            // Without a version the current record comes back at once
+            GETClient client = new GETClient();
+            GETClient.Update current = client.subscribe(address, List.of("IDS60901"), -1);
+            assertEquals(1, current.stations().size());
+
+            CompletableFuture<GETClient.Update> next = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return client.subscribe(address, List.of("IDS60901"), current.version());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            awaitSubscribers(server, 1);
+            content.getWeatherData().addProperty("air_temp", "30.1");
+            assertEquals(200, content.sendPUT(address));
+
+            GETClient.Update update = next.get(5, TimeUnit.SECONDS);
+            assertTrue(update.version() > current.version());
+            assertEquals("30.1", update.stations().get(0).getAsJsonObject().get("air_temp").getAsString());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testLongPollTimesOutWithoutUpdate() throws Exception {
+        AggregationServer server = startServer(4685);
+        try {
+            GETClient.Update update = new GETClient().subscribe("localhost:4685", List.of("IDS00000"), 7);
+            assertEquals(0, update.stations().size());
+            assertEquals(7, update.version());
+            assertEquals(0, server.getSubscriberCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testParkedSubscribersHoldNoWorkerThread() throws Exception {
+        AggregationServer server = startServer(4686);
+        String address = "localhost:4686";
+        try {
+            // Far more subscribers than the 4 worker threads of the pool front end
+            ExecutorService clients = Executors.newFixedThreadPool(32);
+            List<CompletableFuture<GETClient.Update>> updates = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                GETClient client = new GETClient();
+                updates.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return client.subscribe(address, List.of(), 0);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }, clients));
+            }
+            awaitSubscribers(server, 32);
+
+            assertEquals(201, new ContentServer("src/main/java/content/weather_2.txt").sendPUT(address));
+            for (CompletableFuture<GETClient.Update> update : updates) {
+                assertEquals("IDS96012", update.get(5, TimeUnit.SECONDS).stations().get(0).getAsJsonObject().get("id").getAsString());
+            }
+            clients.shutdown();
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import aggregation.AggregationServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Starts aggregation servers for the tests. System properties only hold while the server is
+ * constructed, and a start returns once the port accepts connections rather than after a fixed sleep.
+ */
+final class TestServers {
+    private static final long START_TIMEOUT_MILLIS = 10_000;
+
+    private TestServers() {}
+
+    /**
+     * Construct a server with some system properties set, then start it
+     * @param port (int)
+     * @param snapshotPath (Path)
+     * @param properties (Map) property name and value, cleared once the server is constructed
+     * @return the server, accepting connections
+     */
+    static AggregationServer start(int port, Path snapshotPath, Map<String, String> properties) throws Exception {
+        properties.forEach(System::setProperty);
+        AggregationServer server;
+        try {
+            server = new AggregationServer(port, snapshotPath);
+        } finally {
+            properties.keySet().forEach(System::clearProperty);
+        }
+        return start(server, port);
+    }
+
+    static AggregationServer start(int port, Path snapshotPath) throws Exception {
+        return start(port, snapshotPath, Map.of());
+    }
+
+    /**
+     * Start a constructed server on a thread of its own
+     * @param server (AggregationServer)
+     * @param port (int) the port it listens on
+     * @return the server, accepting connections
+     */
+    static AggregationServer start(AggregationServer server, int port) throws Exception {
+        new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }, "Server-" + port).start();
+        awaitListening(port);
+        return server;
+    }
+
+    /**
+     * Wait until a port on localhost accepts connections
+     * @param port (int)
+     */
+    static void awaitListening(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", port), 1_000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    fail("Server on port " + port + " did not start", e);
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+import aggregation.AggregationServer;
+import aggregation.WriteAheadLog;
+import client.GETClient;
+import content.ContentServer;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import utilize.ReqResParser;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VersionTest {
+    @TempDir
+    Path dir;
+
+    private AggregationServer startServer(int port) throws Exception {
+        return TestServers.start(port, dir.resolve("data.json"), Map.of("aggregation.syncPut", "true"));
+    }
+
+    @Test
+    void testUnchangedPutIsNotLogged() throws Exception {
+        AggregationServer server = startServer(4680);
+        try {
+            ContentServer content = new ContentServer("src/main/java/content/weather_1.txt");
+            assertEquals(201, content.sendPUT("localhost:4680"));
+            assertEquals(200, content.sendPUT("localhost:4680"));
+            assertEquals(200, content.sendPUT("localhost:4680"));
+
+            assertEquals(3, server.getAppliedCount());
+            assertEquals(2, server.getUnchangedCount());
+            assertEquals(0, server.getStaleCount());
+            assertEquals(1, WriteAheadLog.replay(dir.resolve("data.json.wal")).size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testConcurrentFeedersKeepOneVersion() throws Exception {
+        AggregationServer server = startServer(4681);
+        try {
+            // Two feeders report different readings for the same station
+            String station = Files.readString(Path.of("src/main/java/content/weather_1.txt"));
+            List<Thread> feeders = new ArrayList<>();
+            for (int f = 0; f < 2; f++) {
+                Path file = dir.resolve("feeder_" + f + ".txt");
+                Files.writeString(file, station.replaceAll("air_temp:.*", "air_temp:" + (10 + f)));
+                ContentServer content = new ContentServer(file.toString());
+                Thread t = new Thread(() -> {
+                    for (int i = 0; i < 20; i++) {
+                        try {
+                            content.sendPUT("localhost:4681");
+                        } catch (Exception e) {
+                            fail(e);
+                        }
+                    }
+                });
+                feeders.add(t);
+                t.start();
+            }
+            for (Thread t : feeders) {
+                t.join();
+            }
+
+            // Every update is either applied, refreshed, coalesced or dropped as stale, never lost
+            assertEquals(40, server.getAppliedCount() + server.getStaleCount() + server.getCoalescedCount());
+            assertEquals(0, server.getPendingCount());
+            assertTrue(server.getAppliedCount() >= 1);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Send one PUT of a station reading as content server cs1
+     * @return status line and headers of the response
+     */
+    private static String put(int port, long lamport, String airTemp) throws Exception {
+        String body = "{\"id\":\"IDS60901\",\"air_temp\":\"" + airTemp + "\"}";
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("PUT /weather.json HTTP/1.1\r\nServerId: cs1\r\nLamportClock: " + lamport + "\r\n" +
+                    "Content-Length: " + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            StringBuilder head = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                head.append(line).append('\n');
+            }
+            return head.toString();
+        }
+    }
+
+    @Test
+    void testOlderUpdateReceivedSecondIsStale() throws Exception {
+        AggregationServer server = startServer(4687);
+        try {
+            // The content server sent 15 before 20, but the requests arrive the other way round
+            String first = put(4687, 10, "20");
+            assertTrue(first.startsWith("HTTP/1.1 201 Created\n"));
+            String version = first.substring(first.indexOf("StationVersion: ") + 16).lines().findFirst().orElseThrow();
+
+            // Acknowledged, but only with the version stored: the dropped update never had one
+            String second = put(4687, 5, "15");
+            assertTrue(second.startsWith("HTTP/1.1 200 OK\n"));
+            assertFalse(second.contains("StationVersion:"));
+            assertTrue(second.contains("StoredVersion: " + version + "\n"));
+
+            assertEquals(1, server.getAppliedCount());
+            assertEquals(1, server.getStaleCount());
+            String response = new GETClient().sendGET("localhost:4687", "IDS60901");
+            assertEquals("20", ReqResParser.readBody(response).get("air_temp").getAsString());
+        } finally {
+            server.stop();
+        }
+    }
+}
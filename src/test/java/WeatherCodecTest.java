@@ -0,0 +1,65 @@
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+import utilize.JsonUtil;
+import utilize.WeatherCodec;
+import utilize.WeatherData;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WeatherCodecTest {
+    @Test
+    void testRoundTripKeepsEveryValue() throws Exception {
+        JsonObject original = JsonUtil.fromText("src/main/java/content/weather_1.txt");
+        original.addProperty("sensor", "north mast");
+        original.add("extra", JsonParser.parseString("{\"gust\":[1,2]}"));
+
+        WeatherData data = WeatherCodec.decode(original.toString());
+        JsonObject encoded = JsonParser.parseString(WeatherCodec.encodeToString(data)).getAsJsonObject();
+
+        assertEquals(original, encoded);
+        assertEquals("IDS60901", data.id());
+        assertEquals(-34.9, data.number("lat"));
+        assertEquals("13.3", data.text("air_temp"));
+        assertEquals("north mast", data.text("sensor"));
+        assertEquals(data, WeatherCodec.fromJson(original));
+        assertEquals(data.hashCode(), WeatherCodec.fromJson(original).hashCode());
+    }
+
+    @Test
+    void testValuesThatDoNotRoundTripStayAsText() {
+        WeatherData data = WeatherCodec.decode("{\"id\":\"ST01\",\"press\":\"1023.90\",\"rel_hum\":60,\"dewpt\":\"-\",\"lat\":1e2}");
+
+        assertEquals("1023.90", data.text("press"));
+        assertTrue(Double.isNaN(data.number("press")));
+        assertEquals("-", data.text("dewpt"));
+        assertEquals(60, data.number("rel_hum"));
+        assertTrue(Double.isNaN(data.number("lat")));
+
+        JsonObject encoded = WeatherCodec.toJson(data);
+        assertEquals("1023.90", encoded.get("press").getAsString());
+        assertTrue(encoded.get("rel_hum").getAsJsonPrimitive().isNumber());
+        assertEquals("1e2", encoded.get("lat").toString());
+    }
+
+    @Test
+    void testMergeAppliesDeltaFields() {
+        WeatherData base = WeatherCodec.decode("{\"id\":\"ST01\",\"state\":\"SA\",\"air_temp\":\"13.3\",\"press\":\"1023.90\"}");
+        WeatherData delta = WeatherCodec.decode("{\"id\":\"ST01\",\"air_temp\":\"9.5\",\"press\":\"1024\"}");
+
+        WeatherData merged = base.merge(delta);
+
+        assertEquals("SA", merged.text("state"));
+        assertEquals(9.5, merged.number("air_temp"));
+        assertEquals(1024, merged.number("press"));
+        assertEquals("13.3", base.text("air_temp"));
+    }
+
+    @Test
+    void testRejectsMalformedInput() {
+        assertThrows(JsonParseException.class, () -> WeatherCodec.decode("[1,2]"));
+        assertThrows(JsonParseException.class, () -> WeatherCodec.decode("{\"id\":\"ST01\""));
+        assertThrows(JsonParseException.class, () -> WeatherCodec.decode("{\"id\":\"ST01\"} {}"));
+    }
+}
@@ -0,0 +1,91 @@
+import aggregation.WriteAheadLog;
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteAheadLogTest {
+    @TempDir
+    Path dir;
+
+    private JsonObject body(String id, String temp) {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("id", id);
+        obj.addProperty("air_temp", temp);
+        return obj;
+    }
+
+    @Test
+    void testAppendAndReplay() throws Exception {
+        Path path = dir.resolve("data.json.wal");
+        try (WriteAheadLog wal = new WriteAheadLog(path)) {
+            wal.appendAll(List.of(
+                    new WriteAheadLog.Entry(WriteAheadLog.PUT, "ST01", 3, body("ST01", "13.3")),
+                    new WriteAheadLog.Entry(WriteAheadLog.PUT, "ST02", 4, body("ST02", "9.5"))));
+            wal.appendAll(List.of(new WriteAheadLog.Entry(WriteAheadLog.DEL, "ST01", 7, null)));
+            assertEquals(3, wal.getEntryCount());
+        }
+
+        List<WriteAheadLog.Entry> entries = WriteAheadLog.replay(path);
+        assertEquals(3, entries.size());
+        assertEquals("ST01", entries.get(0).stationId());
+        assertEquals("9.5", entries.get(1).body().get("air_temp").getAsString());
+        assertEquals(WriteAheadLog.DEL, entries.get(2).op());
+        assertEquals(7, entries.get(2).lamport());
+    }
+
+    @Test
+    void testReplayIgnoresTornTail() throws Exception {
+        Path path = dir.resolve("data.json.wal");
+        try (WriteAheadLog wal = new WriteAheadLog(path)) {
+            wal.appendAll(List.of(new WriteAheadLog.Entry(WriteAheadLog.PUT, "ST01", 3, body("ST01", "13.3"))));
+        }
+        Files.writeString(path, "{\"op\":\"PUT\",\"stationId\":\"ST0", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        assertEquals(1, WriteAheadLog.replay(path).size());
+    }
+
+    @Test
+    void testCompactTruncatesLog() throws Exception {
+        Path path = dir.resolve("data.json.wal");
+        boolean[] snapshotWritten = {false};
+        try (WriteAheadLog wal = new WriteAheadLog(path)) {
+            wal.appendAll(List.of(new WriteAheadLog.Entry(WriteAheadLog.PUT, "ST01", 3, body("ST01", "13.3"))));
+            wal.compact(() -> snapshotWritten[0] = true);
+            assertEquals(0, wal.getEntryCount());
+        }
+
+        assertTrue(snapshotWritten[0]);
+        assertTrue(WriteAheadLog.replay(path).isEmpty());
+    }
+
+    @Test
+    void testFailedSnapshotKeepsLog() throws Exception {
+        Path path = dir.resolve("data.json.wal");
+        try (WriteAheadLog wal = new WriteAheadLog(path)) {
+            wal.appendAll(List.of(
+                    new WriteAheadLog.Entry(WriteAheadLog.PUT, "ST01", 3, body("ST01", "13.3")),
+                    new WriteAheadLog.Entry(WriteAheadLog.PUT, "ST02", 4, body("ST02", "9.5"))));
+            IOException failure = assertThrows(IOException.class, () -> wal.compact(() -> {
+                throw new IOException("No space left on device");
+            }));
+            assertEquals("No space left on device", failure.getMessage());
+            assertEquals(2, wal.getEntryCount());
+            wal.appendAll(List.of(new WriteAheadLog.Entry(WriteAheadLog.DEL, "ST01", 7, null)));
+        }
+
+        // Restart: nothing was folded into a snapshot, so every entry is replayed
+        List<WriteAheadLog.Entry> entries = WriteAheadLog.replay(path);
+        assertEquals(3, entries.size());
+        assertEquals("ST02", entries.get(1).stationId());
+        assertEquals(WriteAheadLog.DEL, entries.get(2).op());
+    }
+}